@@ -1,20 +1,48 @@
 package net.shadew.gradle.decompile;
 
 import java.io.File;
-import java.util.HashMap;
-import java.util.LinkedHashSet;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.shadew.gradle.decompile.task.Task;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.BuildCache;
+import net.shadew.gradle.decompile.util.DownloadPolicy;
+import net.shadew.gradle.decompile.util.HttpTransport;
+import net.shadew.gradle.decompile.util.NamedThreadFactory;
+import net.shadew.gradle.decompile.util.ObjectStore;
 import net.shadew.gradle.decompile.util.OS;
+import net.shadew.gradle.decompile.util.SnapshotCache;
 
 public class Environment {
-    private final Map<String, Object> properties = new HashMap<>();
+    private static final int MAX_TEMPLATES = 1024;
+
+    private final Map<String, Object> properties = new ConcurrentHashMap<>();
+    private final Map<String, PathTemplate> templates = new ConcurrentHashMap<>();
+    private final AtomicInteger modCount = new AtomicInteger();
     private int loggingLevel = EnvironmentTaskContext.WARNING;
+    private int workers = 1;
+    private ProgressRenderer.Mode progressMode = ProgressRenderer.Mode.AUTO;
+    private int progressFrameRate = 10;
     private File cacheDir = new File("./cache");
     private File workingDir = new File("./env");
+    private boolean buildCacheEnabled = true;
+    private BuildCache buildCache;
+    private ObjectStore objectStore;
+    private boolean snapshotsEnabled = true;
+    private SnapshotCache snapshotCache;
+    private final ArtifactStore artifactStore = new ArtifactStore(Runtime.getRuntime().maxMemory() / 4);
+    private File reportDir;
+    private boolean writeReports = true;
+    private HttpTransport httpTransport = new HttpTransport();
+    private DownloadPolicy downloadPolicy = new DownloadPolicy();
 
     public Environment() {
         OS os = OS.get();
@@ -29,35 +57,42 @@ public class Environment {
         setProperty("MCVersion", mcVer);
     }
 
-    public String file(String path) {
-        path = path.replace('\\', '/');
-
-        Pattern property = Pattern.compile("\\[\\[(.*?)]]");
-        Matcher matcher = property.matcher(path);
-        StringBuffer buf = new StringBuffer();
-        while (matcher.find()) {
-            Object prop = getProperty(matcher.group(1));
-            if (prop != null)
-                matcher.appendReplacement(buf, prop.toString());
-            else
-                matcher.appendReplacement(buf, matcher.group(1));
-        }
-        matcher.appendTail(buf);
-        path = buf.toString();
+    /**
+     * Returns the parsed form of a path template. Parsed templates are cached, so resolving the same template again
+     * does not parse it again.
+     */
+    public PathTemplate template(String path) {
+        PathTemplate template = templates.get(path);
+        if (template == null) {
+            // Keep the cache bounded, in case someone resolves many distinct paths
+            if (templates.size() >= MAX_TEMPLATES)
+                templates.clear();
 
-        if (path.equals("{cacheDir}"))
-            return cacheDir.getAbsolutePath() + "";
-
-        if (path.equals("{workingDir}"))
-            return workingDir.getAbsolutePath() + "";
+            template = PathTemplate.parse(path);
+            templates.put(path, template);
+        }
+        return template;
+    }
 
-        if (path.startsWith("{cacheDir}/"))
-            return cacheDir.getAbsolutePath() + "/" + path.substring("{cacheDir}/".length());
+    /**
+     * Resolves a path template, see {@link PathTemplate}
+     */
+    public String file(String path) {
+        return template(path).resolve(this, null);
+    }
 
-        if (path.startsWith("{workingDir}/"))
-            return workingDir.getAbsolutePath() + "/" + path.substring("{workingDir}/".length());
+    /**
+     * Resolves a path template into one path per value of the given key, see {@link PathTemplate#resolveAll}
+     */
+    public List<String> files(String path, String key, Collection<?> values) {
+        return template(path).resolveAll(this, null, key, values);
+    }
 
-        return path;
+    /**
+     * Returns a counter that changes every time a property or directory of this environment changes
+     */
+    int modCount() {
+        return modCount.get();
     }
 
     public File getCacheDir() {
@@ -70,10 +105,130 @@ public class Environment {
 
     public void setCacheDir(File cacheDir) {
         this.cacheDir = cacheDir;
+        this.buildCache = null;
+        this.objectStore = null;
+        this.snapshotCache = null;
+        modCount.incrementAndGet();
+    }
+
+    /**
+     * Sets whether tasks may restore their outputs from, and store them in, the build cache in the cache directory
+     */
+    public void setBuildCacheEnabled(boolean enabled) {
+        this.buildCacheEnabled = enabled;
+    }
+
+    public boolean isBuildCacheEnabled() {
+        return buildCacheEnabled;
+    }
+
+    /**
+     * Returns the build cache in {@code {cacheDir}/build}, or null when the build cache is disabled
+     */
+    public synchronized BuildCache getBuildCache() {
+        if (!buildCacheEnabled)
+            return null;
+
+        if (buildCache == null)
+            buildCache = new BuildCache(new File(cacheDir, "build"));
+        return buildCache;
+    }
+
+    /**
+     * Sets the HTTP transport used by all download tasks. Tasks share the transport so that they share connections.
+     */
+    public void setHttpTransport(HttpTransport httpTransport) {
+        this.httpTransport = httpTransport;
+    }
+
+    public HttpTransport getHttpTransport() {
+        return httpTransport;
+    }
+
+    /**
+     * Sets the retry, backoff, timeout and mirror policy of all download tasks
+     */
+    public void setDownloadPolicy(DownloadPolicy downloadPolicy) {
+        this.downloadPolicy = downloadPolicy;
+    }
+
+    public DownloadPolicy getDownloadPolicy() {
+        return downloadPolicy;
+    }
+
+    /**
+     * Returns the object store in {@code {cacheDir}/objects}, which is shared by all environments with the same cache
+     * directory
+     */
+    public synchronized ObjectStore getObjectStore() {
+        if (objectStore == null)
+            objectStore = new ObjectStore(new File(cacheDir, "objects"));
+        return objectStore;
+    }
+
+    /**
+     * Sets whether manifests, version info and assets indexes are loaded from binary snapshots in the cache directory
+     */
+    public void setSnapshotsEnabled(boolean enabled) {
+        this.snapshotsEnabled = enabled;
+    }
+
+    public boolean isSnapshotsEnabled() {
+        return snapshotsEnabled;
+    }
+
+    /**
+     * Returns the snapshot cache in {@code {cacheDir}/snapshots}, or null when snapshots are disabled
+     */
+    public synchronized SnapshotCache getSnapshotCache() {
+        if (!snapshotsEnabled)
+            return null;
+
+        if (snapshotCache == null)
+            snapshotCache = new SnapshotCache(new File(cacheDir, "snapshots"));
+        return snapshotCache;
+    }
+
+    /**
+     * Sets the maximum amount of bytes that intermediate jars may take in memory. Defaults to a quarter of the maximum
+     * heap size.
+     */
+    public void setArtifactBudget(long budget) throws IOException {
+        artifactStore.setBudget(budget);
+    }
+
+    /**
+     * Returns the store that keeps intermediate jars in memory between tasks
+     */
+    public ArtifactStore getArtifactStore() {
+        return artifactStore;
     }
 
     public void setWorkingDir(File workingDir) {
         this.workingDir = workingDir;
+        modCount.incrementAndGet();
+    }
+
+    /**
+     * Sets the directory to write run reports to. When not set, reports are written to {@code {workingDir}/reports}.
+     */
+    public void setReportDir(File reportDir) {
+        this.reportDir = reportDir;
+    }
+
+    public File getReportDir() {
+        return reportDir != null ? reportDir : new File(workingDir, "reports");
+    }
+
+    /**
+     * Sets whether a metrics report and a Chrome trace-event file are written after each run
+     */
+    public void setWriteReports(boolean writeReports) {
+        this.writeReports = writeReports;
+    }
+
+    public boolean doesWriteReports() {
+        return writeReports;
     }
 
     public void setLoggingLevel(int loggingLevel) {
@@ -84,13 +239,54 @@ public class Environment {
         return loggingLevel;
     }
 
+    /**
+     * Sets the amount of tasks that may run at the same time. With one worker, tasks run one after another. With more
+     * workers, a task is started as soon as its dependencies are finished.
+     */
+    public void setWorkers(int workers) {
+        if (workers < 1)
+            throw new IllegalArgumentException("At least one worker is required");
+        this.workers = workers;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Sets how progress is rendered: redrawn in place on a terminal, or as plain lines for logs and CI. The default,
+     * {@link ProgressRenderer.Mode#AUTO}, picks based on whether a console is attached.
+     */
+    public void setProgressMode(ProgressRenderer.Mode progressMode) {
+        this.progressMode = progressMode;
+    }
+
+    public ProgressRenderer.Mode getProgressMode() {
+        return progressMode;
+    }
+
+    /**
+     * Sets how many times per second the progress is redrawn
+     */
+    public void setProgressFrameRate(int progressFrameRate) {
+        this.progressFrameRate = progressFrameRate;
+    }
+
+    public int getProgressFrameRate() {
+        return progressFrameRate;
+    }
+
     @SuppressWarnings("unchecked")
     public <T> T getProperty(String key) {
         return (T) properties.get(key);
     }
 
     public void setProperty(String key, Object value) {
-        properties.put(key, value);
+        if (value == null)
+            properties.remove(key);
+        else
+            properties.put(key, value);
+        modCount.incrementAndGet();
     }
 
     public boolean hasProperty(String key) {
@@ -111,38 +307,91 @@ public class Environment {
         }
     }
 
-    private EnvironmentTaskContext createContext(Task task) {
+    private EnvironmentTaskContext createContext(Task task, RunMetrics metrics, ProgressRenderer renderer) {
         EnvironmentTaskContext ctx = new EnvironmentTaskContext(this, task);
         ctx.setLoggingLevel(loggingLevel);
+        ctx.setRenderer(renderer);
+        ctx.setMetrics(metrics.create(task.getName()));
         return ctx;
     }
 
-    private void runTask(Task task) throws TaskFailException {
-        EnvironmentTaskContext ctx = createContext(task);
-        ctx.printProgress();
-        runTask(task, ctx);
-        System.out.println();
+    private void runTask(Task task, RunMetrics metrics, ProgressRenderer renderer) throws TaskFailException {
+        EnvironmentTaskContext ctx = createContext(task, metrics, renderer);
+        ctx.metrics().start();
+        renderer.add(ctx);
+        try {
+            runTask(task, ctx);
+        } finally {
+            renderer.remove(ctx);
+            ctx.metrics().finish(ctx.getStatus());
+        }
     }
 
-    private int runTasks(Task goal) throws TaskFailException {
-        LinkedHashSet<Task> graph = new LinkedHashSet<>();
-        goal.collectDependencies(graph);
-        graph.add(goal);
+    private int runTasks(Task goal, RunMetrics metrics, ProgressRenderer renderer, ExecutorService releaser) throws TaskFailException {
+        // Intermediate jars of a task are written to disk in the background once every task reading them is done
+        return new TaskScheduler(
+            workers,
+            task -> runTask(task, metrics, renderer),
+            task -> releaser.execute(() -> releaseArtifacts(task))
+        ).run(goal);
+    }
 
-        for (Task task : graph) {
-            runTask(task);
+    private void releaseArtifacts(Object owner) {
+        try {
+            if (owner == null) {
+                artifactStore.spillAll();
+            } else {
+                artifactStore.release(owner);
+            }
+        } catch (IOException exc) {
+            // They're rebuilt in the next run, nothing is lost
+            System.out.println("Failed to write intermediate jars: " + exc.getMessage());
+        }
+    }
+
+    private void finishArtifacts(ExecutorService releaser) {
+        releaser.shutdown();
+        try {
+            releaser.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+
+        // Whatever is left, for example after a failure, is written too, so the next run finds it
+        releaseArtifacts(null);
+    }
+
+    private void writeReports(Task goal, RunMetrics metrics) {
+        File dir = getReportDir();
+        try {
+            metrics.writeReport(new File(dir, goal.getName() + "-metrics.json"));
+            metrics.writeTrace(new File(dir, goal.getName() + "-trace.json"));
+        } catch (IOException exc) {
+            System.out.println("Failed to write run reports: " + exc.getMessage());
         }
-        return graph.size();
     }
 
     public void run(Task goal) throws TaskFailException {
+        RunMetrics metrics = new RunMetrics(goal.getName(), workers);
+        ProgressRenderer renderer = new ProgressRenderer(System.out, progressMode, progressFrameRate);
+        ExecutorService releaser = Executors.newSingleThreadExecutor(new NamedThreadFactory("ArtifactRelease"));
+        int exec;
         try {
             System.out.println("Running tasks for " + goal.getName() + "...");
-            int exec = runTasks(goal);
-            System.out.println("Successfully executed " + exec + " tasks!");
+            renderer.start();
+            exec = runTasks(goal, metrics, renderer, releaser);
         } catch (TaskFailException exc) {
+            // Stop first so that all task output is printed before the failure message
+            renderer.stop();
             System.out.println("Task execution failed!");
             throw exc;
+        } finally {
+            renderer.stop();
+            finishArtifacts(releaser);
+            metrics.finish();
+            if (writeReports)
+                writeReports(goal, metrics);
         }
+        System.out.println("Successfully executed " + exec + " tasks!");
     }
 }
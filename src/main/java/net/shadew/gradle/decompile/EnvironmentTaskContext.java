@@ -1,8 +1,9 @@
 package net.shadew.gradle.decompile;
 
-import java.io.File;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collection;
+import java.util.List;
 
 import net.shadew.gradle.decompile.task.Task;
 
@@ -16,40 +17,71 @@ public class EnvironmentTaskContext implements TaskRunContext {
     private final Environment env;
     private final Task task;
 
-    private double progress = -1;
-    private String status;
-    private boolean skipLast;
+    private volatile double progress = -1;
+    private volatile String status;
+    private volatile boolean skipLast;
 
     private int loggingLevel = WARNING;
+    private ProgressRenderer renderer;
+    private TaskMetrics metrics;
 
     public EnvironmentTaskContext(Environment env, Task task) {
         this.env = env;
         this.task = task;
+        this.metrics = new TaskMetrics(task.getName());
     }
 
-    public void printProgress() {
-        System.out.print("\r");
-        System.out.print("> ");
-        System.out.print(task.getName());
+    /**
+     * Appends the progress line of this task: its name, a progress bar when progress is known and its status
+     */
+    public void appendProgress(StringBuilder line) {
+        double progress = this.progress;
+        String status = this.status;
+
+        line.append("> ").append(task.getName());
         if (progress >= 0) {
-            System.out.print(" [");
+            line.append(" [");
             for (int i = 0; i < 50; i++) {
-                if (i < progress * 50) {
-                    System.out.print("#");
-                } else {
-                    System.out.print(" ");
-                }
+                line.append(i < progress * 50 ? '#' : ' ');
             }
-            System.out.print("] ");
-            System.out.print((int) (progress * 100) + "%");
+            line.append("] ").append((int) (progress * 100)).append('%');
         }
-        if(status != null) {
-            System.out.print(" (");
-            System.out.print(status);
-            System.out.print(")");
+        if (status != null) {
+            line.append(" (").append(status).append(')');
         }
     }
 
+    /**
+     * Returns the line that shows the final state of this task
+     */
+    public String resultLine() {
+        StringBuilder line = new StringBuilder("> ").append(task.getName());
+        if (status != null)
+            line.append(" (").append(status).append(")");
+        return line.toString();
+    }
+
+    /**
+     * Sets the renderer that prints log messages of this task. Without a renderer, messages go straight to
+     * {@link System#out}.
+     */
+    public void setRenderer(ProgressRenderer renderer) {
+        this.renderer = renderer;
+    }
+
+    public void setMetrics(TaskMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public TaskMetrics metrics() {
+        return metrics;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
     public void setLoggingLevel(int loggingLevel) {
         this.loggingLevel = loggingLevel;
     }
@@ -59,20 +91,28 @@ public class EnvironmentTaskContext implements TaskRunContext {
     }
 
     private void println(String msg) {
-        System.out.print("\r");
-        System.out.println(msg);
+        String line = "[" + task.getName() + "] " + msg;
+        if (renderer != null) {
+            renderer.println(line);
+        } else {
+            System.out.println(line);
+        }
+    }
+
+    private void println(String msg, Throwable stacktrace) {
+        StringWriter trace = new StringWriter();
+        stacktrace.printStackTrace(new PrintWriter(trace));
+        println(msg + System.lineSeparator() + trace.toString().trim());
     }
 
     @Override
     public void progress(double progress) {
         this.progress = progress;
-        printProgress();
     }
 
     @Override
     public void status(String status) {
         this.status = status;
-        printProgress();
     }
 
     @Override
@@ -89,7 +129,6 @@ public class EnvironmentTaskContext implements TaskRunContext {
     public void debug(String message) {
         if (loggingLevel <= DEBUG) {
             println("DEBUG: " + message);
-            printProgress();
         }
     }
 
@@ -97,7 +136,6 @@ public class EnvironmentTaskContext implements TaskRunContext {
     public void info(String message) {
         if (loggingLevel <= INFO) {
             println("INFO : " + message);
-            printProgress();
         }
     }
 
@@ -105,7 +143,6 @@ public class EnvironmentTaskContext implements TaskRunContext {
     public void warning(String message) {
         if (loggingLevel <= WARNING) {
             println("WARN : " + message);
-            printProgress();
         }
     }
 
@@ -113,43 +150,34 @@ public class EnvironmentTaskContext implements TaskRunContext {
     public void error(String message) {
         if (loggingLevel <= ERROR) {
             println("ERROR: " + message);
-            printProgress();
         }
     }
 
     @Override
     public void debug(String message, Throwable stacktrace) {
         if (loggingLevel <= DEBUG) {
-            println("DEBUG: " + message);
-            stacktrace.printStackTrace(System.out);
-            printProgress();
+            println("DEBUG: " + message, stacktrace);
         }
     }
 
     @Override
     public void info(String message, Throwable stacktrace) {
         if (loggingLevel <= INFO) {
-            println("INFO : " + message);
-            stacktrace.printStackTrace(System.out);
-            printProgress();
+            println("INFO : " + message, stacktrace);
         }
     }
 
     @Override
     public void warning(String message, Throwable stacktrace) {
         if (loggingLevel <= WARNING) {
-            println("WARN : " + message);
-            stacktrace.printStackTrace(System.out);
-            printProgress();
+            println("WARN : " + message, stacktrace);
         }
     }
 
     @Override
     public void error(String message, Throwable stacktrace) {
         if (loggingLevel <= ERROR) {
-            println("ERROR: " + message);
-            stacktrace.printStackTrace(System.out);
-            printProgress();
+            println("ERROR: " + message, stacktrace);
         }
     }
 
@@ -159,41 +187,17 @@ public class EnvironmentTaskContext implements TaskRunContext {
     }
 
     @Override
-    public String file(String path) {
-        path = path.replace('\\', '/');
-
-        Pattern property = Pattern.compile("\\[\\[(.*?)]]");
-        Matcher matcher = property.matcher(path);
-        StringBuffer buf = new StringBuffer();
-        while(matcher.find()) {
-            matcher.appendReplacement(buf, env.getProperty(matcher.group(1)));
-        }
-        matcher.appendTail(buf);
-        path = buf.toString();
-
-        if (path.equals("{taskDir}")) {
-            return new File(env.getWorkingDir(), task.getName()).getAbsolutePath() + "";
-        }
-
-        if (path.startsWith("{taskDir}/")) {
-            return new File(env.getWorkingDir(), task.getName()).getAbsolutePath()
-                       + "/" + path.substring("{taskDir}/".length());
-        }
-
-        specificTaskPath:
-        if (path.startsWith("{taskDir:")) {
-            int close = path.indexOf('}');
-            if (close < 0) break specificTaskPath;
-
-            String task = path.substring("{taskDir:".length(), close);
-            if (close + 1 == path.length()) {
-                return new File(env.getWorkingDir(), task).getAbsolutePath() + "";
-            }
+    public Task task() {
+        return task;
+    }
 
-            if (path.charAt(close + 1) != '/') break specificTaskPath;
+    @Override
+    public String file(String path) {
+        return env.template(path).resolve(env, task.getName());
+    }
 
-            return new File(env.getWorkingDir(), task).getAbsolutePath() + "/" + path.substring(close + 1);
-        }
-        return env.file(path);
+    @Override
+    public List<String> files(String path, String key, Collection<?> values) {
+        return env.template(path).resolveAll(env, task.getName(), key, values);
     }
 }
@@ -0,0 +1,273 @@
+package net.shadew.gradle.decompile;
+
+import java.io.File;
+import java.util.*;
+
+/**
+ * A parsed path template, as accepted by {@link Environment#file} and {@link TaskRunContext#file}. A template may start
+ * with a root directory ({@code {cacheDir}}, {@code {workingDir}}, {@code {taskDir}} or {@code {taskDir:name}}) and may
+ * reference environment properties as {@code [[Name]]}. Properties that are not set are replaced by their own name.
+ * Properties are substituted before the root directory is expanded, so a property may hold the root directory, as in
+ * {@code [[OutputDir]]/x.jar} with {@code OutputDir} set to {@code {workingDir}/out}.
+ * <p>
+ * Templates are parsed once into literal and property segments. The last resolved path is cached and returned as long
+ * as none of the referenced properties or root directories changed. Properties whose value is a {@link Collection} are
+ * multi-valued: {@link #resolveAll} resolves one path for every value (or every combination of values).
+ */
+public final class PathTemplate {
+    private final String template;
+    private final Root root;
+    private final String rootTask;
+
+    // There is always one more literal than there are properties: literal, property, literal, ..., literal
+    private final String[] literals;
+    private final String[] properties;
+
+    private volatile Cached cached;
+
+    private PathTemplate(String template, Root root, String rootTask, String[] literals, String[] properties) {
+        this.template = template;
+        this.root = root;
+        this.rootTask = rootTask;
+        this.literals = literals;
+        this.properties = properties;
+    }
+
+    /**
+     * Parses a path template
+     */
+    public static PathTemplate parse(String template) {
+        String path = template.replace('\\', '/');
+
+        Root root = Root.DEFERRED;
+        String rootTask = null;
+        if (!hasPropertyInRoot(path)) {
+            RootRef ref = RootRef.parse(path);
+            root = ref.root;
+            rootTask = ref.task;
+            path = ref.rest;
+        }
+
+        List<String> literals = new ArrayList<>();
+        List<String> properties = new ArrayList<>();
+        int from = 0;
+        while (true) {
+            int open = path.indexOf("[[", from);
+            int close = open < 0 ? -1 : path.indexOf("]]", open + 2);
+            if (close < 0) {
+                literals.add(path.substring(from));
+                break;
+            }
+            literals.add(path.substring(from, open));
+            properties.add(path.substring(open + 2, close));
+            from = close + 2;
+        }
+
+        return new PathTemplate(
+            template, root, rootTask,
+            literals.toArray(new String[0]),
+            properties.toArray(new String[0])
+        );
+    }
+
+    private static boolean isRoot(String path, String root) {
+        return path.equals(root) || path.startsWith(root + "/");
+    }
+
+    /**
+     * Returns whether the root directory of a path depends on a property, in which case it can only be expanded after
+     * the properties are substituted
+     */
+    private static boolean hasPropertyInRoot(String path) {
+        if (path.startsWith("[["))
+            return true;
+
+        int close = path.indexOf('}');
+        return path.startsWith("{") && close > 0 && path.substring(0, close).contains("[[");
+    }
+
+    /**
+     * Expands the root directory of a path of which the properties are already substituted
+     */
+    private static String expandRoot(Environment env, String task, String path) {
+        RootRef ref = RootRef.parse(path);
+        return rootPath(env, task, ref.root, ref.task) + ref.rest;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    /**
+     * Returns the names of all properties referenced by this template
+     */
+    public List<String> getProperties() {
+        return Collections.unmodifiableList(Arrays.asList(properties));
+    }
+
+    /**
+     * Resolves this template into a single path
+     *
+     * @param task The name of the task resolving the path, used for {@code {taskDir}}. When null, {@code {taskDir}} is
+     *             not expanded.
+     * @throws IllegalArgumentException When a referenced property is multi-valued
+     */
+    public String resolve(Environment env, String task) {
+        int stamp = env.modCount();
+        Cached c = cached;
+        if (c != null && c.stamp == stamp && Objects.equals(c.task, task))
+            return c.result;
+
+        // Something in the environment changed, but if it's nothing we reference we can keep the result
+        String rootPath = rootPath(env, task, root, rootTask);
+        Object[] values = new Object[properties.length];
+        for (int i = 0; i < properties.length; i++) {
+            values[i] = env.getProperty(properties[i]);
+        }
+        if (c != null && root != Root.DEFERRED && Objects.equals(c.task, task) && c.root.equals(rootPath) && Arrays.equals(c.values, values)) {
+            cached = new Cached(stamp, task, rootPath, values, c.result);
+            return c.result;
+        }
+
+        StringBuilder builder = new StringBuilder(rootPath).append(literals[0]);
+        for (int i = 0; i < properties.length; i++) {
+            Object value = values[i];
+            if (value instanceof Collection)
+                throw new IllegalArgumentException("Property " + properties[i] + " is multi-valued, use resolveAll");
+
+            builder.append(value != null ? value.toString() : properties[i]).append(literals[i + 1]);
+        }
+
+        String result = builder.toString();
+        if (root == Root.DEFERRED)
+            result = expandRoot(env, task, result);
+        cached = new Cached(stamp, task, rootPath, values, result);
+        return result;
+    }
+
+    /**
+     * Resolves this template into one path for each combination of values of multi-valued properties
+     */
+    public List<String> resolveAll(Environment env, String task) {
+        return resolveAll(env, task, Collections.emptyMap());
+    }
+
+    /**
+     * Resolves this template into one path per value of the given key, as if the key was a multi-valued property. This
+     * resolves a whole batch of paths at once, for example one per asset.
+     */
+    public List<String> resolveAll(Environment env, String task, String key, Collection<?> values) {
+        return resolveAll(env, task, Collections.singletonMap(key, values));
+    }
+
+    private List<String> resolveAll(Environment env, String task, Map<String, ?> bindings) {
+        // Single valued parts are collected in the tail, which is only appended to all paths when the amount of paths
+        // grows or when we're done
+        List<String> paths = Collections.singletonList("");
+        StringBuilder tail = new StringBuilder(rootPath(env, task, root, rootTask)).append(literals[0]);
+
+        for (int i = 0; i < properties.length; i++) {
+            String name = properties[i];
+            Object value = bindings.containsKey(name) ? bindings.get(name) : env.getProperty(name);
+
+            if (value instanceof Collection) {
+                Collection<?> multi = (Collection<?>) value;
+                List<String> expanded = new ArrayList<>(paths.size() * multi.size());
+                for (String path : paths) {
+                    String prefix = path + tail;
+                    for (Object v : multi) {
+                        expanded.add(prefix + v);
+                    }
+                }
+                paths = expanded;
+                tail.setLength(0);
+            } else {
+                tail.append(value != null ? value.toString() : name);
+            }
+            tail.append(literals[i + 1]);
+        }
+
+        List<String> out = new ArrayList<>(paths.size());
+        String suffix = tail.toString();
+        for (String path : paths) {
+            out.add(root == Root.DEFERRED ? expandRoot(env, task, path + suffix) : path + suffix);
+        }
+        return out;
+    }
+
+    private static String rootPath(Environment env, String task, Root root, String rootTask) {
+        switch (root) {
+            default:
+            case NONE:
+            case DEFERRED:
+                return "";
+            case CACHE_DIR:
+                return env.getCacheDir().getAbsolutePath();
+            case WORKING_DIR:
+                return env.getWorkingDir().getAbsolutePath();
+            case TASK_DIR:
+                return task == null ? "{taskDir}" : new File(env.getWorkingDir(), task).getAbsolutePath();
+            case NAMED_TASK_DIR:
+                return new File(env.getWorkingDir(), rootTask).getAbsolutePath();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private enum Root {
+        NONE,
+        CACHE_DIR,
+        WORKING_DIR,
+        TASK_DIR,
+        NAMED_TASK_DIR,
+
+        // Decided after substituting properties
+        DEFERRED
+    }
+
+    private static class RootRef {
+        final Root root;
+        final String task;
+        final String rest;
+
+        RootRef(Root root, String task, String rest) {
+            this.root = root;
+            this.task = task;
+            this.rest = rest;
+        }
+
+        static RootRef parse(String path) {
+            if (isRoot(path, "{cacheDir}"))
+                return new RootRef(Root.CACHE_DIR, null, path.substring("{cacheDir}".length()));
+            if (isRoot(path, "{workingDir}"))
+                return new RootRef(Root.WORKING_DIR, null, path.substring("{workingDir}".length()));
+            if (isRoot(path, "{taskDir}"))
+                return new RootRef(Root.TASK_DIR, null, path.substring("{taskDir}".length()));
+            if (path.startsWith("{taskDir:")) {
+                int close = path.indexOf('}');
+                if (close >= 0 && isRoot(path, path.substring(0, close + 1)))
+                    return new RootRef(Root.NAMED_TASK_DIR, path.substring("{taskDir:".length(), close), path.substring(close + 1));
+            }
+            return new RootRef(Root.NONE, null, path);
+        }
+    }
+
+    private static class Cached {
+        final int stamp;
+        final String task;
+        final String root;
+        final Object[] values;
+        final String result;
+
+        Cached(int stamp, String task, String root, Object[] values, String result) {
+            this.stamp = stamp;
+            this.task = task;
+            this.root = root;
+            this.values = values;
+            this.result = result;
+        }
+    }
+}
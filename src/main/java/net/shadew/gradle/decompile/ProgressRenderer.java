@@ -0,0 +1,191 @@
+package net.shadew.gradle.decompile;
+
+import java.io.PrintStream;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Renders the progress of running tasks from a background thread. Tasks only update their state in their
+ * {@link EnvironmentTaskContext}; the renderer samples that state at a fixed frame rate and writes each frame to the
+ * console as one string, so a task that reports progress thousands of times per second costs no console output.
+ * <p>
+ * In {@link Mode#TTY} mode, one progress line per running task is redrawn in place using ANSI escape codes. In
+ * {@link Mode#PLAIN} mode, which suits log files and CI consoles, nothing is redrawn: log messages and finished tasks are
+ * printed as they come, and the progress of running tasks is printed at a much lower rate.
+ */
+public class ProgressRenderer {
+    private static final long PLAIN_INTERVAL = 5000;
+
+    private final PrintStream out;
+    private final Mode mode;
+    private final long frameMillis;
+
+    private final List<EnvironmentTaskContext> active = new CopyOnWriteArrayList<>();
+    private final Queue<String> lines = new ConcurrentLinkedQueue<>();
+
+    private Thread thread;
+    private volatile boolean running;
+
+    // Only accessed while holding the lock on this renderer
+    private int drawnLines;
+    private String lastFrame = "";
+    private long lastPlainProgress;
+
+    public ProgressRenderer(PrintStream out, Mode mode, int framesPerSecond) {
+        this.out = out;
+        this.mode = mode == Mode.AUTO ? Mode.detect() : mode;
+        this.frameMillis = 1000 / Math.max(1, framesPerSecond);
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Starts the render thread
+     */
+    public synchronized void start() {
+        if (running) return;
+
+        running = true;
+        lastPlainProgress = System.currentTimeMillis();
+        thread = new Thread(this::loop, "ProgressRenderer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the render thread and writes all remaining output
+     */
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            running = false;
+            t = thread;
+            thread = null;
+        }
+
+        if (t != null) {
+            t.interrupt();
+            try {
+                t.join();
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        render();
+    }
+
+    /**
+     * Starts showing the progress of a task
+     */
+    public void add(EnvironmentTaskContext ctx) {
+        active.add(ctx);
+    }
+
+    /**
+     * Stops showing the progress of a task and prints its final state
+     */
+    public void remove(EnvironmentTaskContext ctx) {
+        active.remove(ctx);
+        lines.add(ctx.resultLine());
+    }
+
+    /**
+     * Prints a line above the progress lines in the next frame
+     */
+    public void println(String line) {
+        lines.add(line);
+    }
+
+    private void loop() {
+        while (running) {
+            render();
+            try {
+                Thread.sleep(frameMillis);
+            } catch (InterruptedException exc) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Renders one frame
+     */
+    public synchronized void render() {
+        StringBuilder frame = new StringBuilder();
+
+        if (mode == Mode.TTY) {
+            // Erase the progress lines of the previous frame
+            int erased = drawnLines;
+            if (erased > 0) {
+                frame.append("\033[").append(erased).append("A\r");
+            }
+            frame.append("\033[J");
+
+            boolean printed = appendLines(frame);
+
+            drawnLines = 0;
+            if (running) {
+                for (EnvironmentTaskContext ctx : active) {
+                    ctx.appendProgress(frame);
+                    frame.append('\n');
+                    drawnLines++;
+                }
+            }
+
+            String str = frame.toString();
+            if (!printed && (erased == 0 && drawnLines == 0 || str.equals(lastFrame))) return;
+            lastFrame = str;
+        } else {
+            appendLines(frame);
+
+            long time = System.currentTimeMillis();
+            if (running && time - lastPlainProgress >= PLAIN_INTERVAL) {
+                lastPlainProgress = time;
+                for (EnvironmentTaskContext ctx : active) {
+                    ctx.appendProgress(frame);
+                    frame.append('\n');
+                }
+            }
+
+            if (frame.length() == 0) return;
+        }
+
+        out.print(frame);
+        out.flush();
+    }
+
+    private boolean appendLines(StringBuilder frame) {
+        boolean any = false;
+        String line;
+        while ((line = lines.poll()) != null) {
+            frame.append(line).append('\n');
+            any = true;
+        }
+        return any;
+    }
+
+    public enum Mode {
+        /**
+         * Use {@link #TTY} when attached to a console, {@link #PLAIN} otherwise
+         */
+        AUTO,
+
+        /**
+         * Redraw progress lines in place
+         */
+        TTY,
+
+        /**
+         * Never redraw, print progress only occasionally
+         */
+        PLAIN;
+
+        static Mode detect() {
+            return System.console() != null ? TTY : PLAIN;
+        }
+    }
+}
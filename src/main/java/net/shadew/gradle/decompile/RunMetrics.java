@@ -0,0 +1,168 @@
+package net.shadew.gradle.decompile;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Collects the {@link TaskMetrics} of all tasks of one {@link Environment#run} and writes them as a JSON report and as a
+ * Chrome trace-event file (open it in {@code chrome://tracing} or Perfetto).
+ */
+class RunMetrics {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+
+    private final String goal;
+    private final int workers;
+    private final long start = System.nanoTime();
+    private final long startMillis = System.currentTimeMillis();
+    private long end = -1;
+    private final List<TaskMetrics> tasks = Collections.synchronizedList(new ArrayList<>());
+
+    RunMetrics(String goal, int workers) {
+        this.goal = goal;
+        this.workers = workers;
+    }
+
+    TaskMetrics create(String task) {
+        TaskMetrics metrics = new TaskMetrics(task);
+        tasks.add(metrics);
+        return metrics;
+    }
+
+    void finish() {
+        end = System.nanoTime();
+    }
+
+    private List<TaskMetrics> tasks() {
+        synchronized (tasks) {
+            List<TaskMetrics> list = new ArrayList<>(tasks);
+            list.sort(Comparator.comparingLong(TaskMetrics::getStart));
+            return list;
+        }
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000d;
+    }
+
+    private static long micros(long nanos) {
+        return nanos / 1000;
+    }
+
+    private static double perSecond(long amount, long nanos) {
+        return nanos <= 0 ? 0 : amount / (nanos / 1000000000d);
+    }
+
+    private static void addCounters(JsonObject json, long read, long written, long items, long duration) {
+        json.addProperty("bytesRead", read);
+        json.addProperty("bytesWritten", written);
+        json.addProperty("items", items);
+        json.addProperty("bytesReadPerSecond", perSecond(read, duration));
+        json.addProperty("bytesWrittenPerSecond", perSecond(written, duration));
+        json.addProperty("itemsPerSecond", perSecond(items, duration));
+    }
+
+    /**
+     * Writes a JSON report with the duration and throughput of each task and each of its actions
+     */
+    void writeReport(File file) throws IOException {
+        JsonObject json = new JsonObject();
+        json.addProperty("goal", goal);
+        json.addProperty("workers", workers);
+        json.addProperty("startTime", startMillis);
+        json.addProperty("durationMs", millis((end < 0 ? System.nanoTime() : end) - start));
+
+        JsonArray jsonTasks = new JsonArray();
+        for (TaskMetrics task : tasks()) {
+            JsonObject jsonTask = new JsonObject();
+            jsonTask.addProperty("name", task.getTask());
+            jsonTask.addProperty("status", task.getStatus());
+            jsonTask.addProperty("thread", task.getThread());
+            jsonTask.addProperty("startMs", millis(task.getStart() - start));
+            jsonTask.addProperty("durationMs", millis(task.getDuration()));
+            addCounters(jsonTask, task.getBytesRead(), task.getBytesWritten(), task.getItems(), task.getDuration());
+
+            JsonArray jsonActions = new JsonArray();
+            for (TaskMetrics.Span span : task.getSpans()) {
+                JsonObject jsonAction = new JsonObject();
+                jsonAction.addProperty("name", span.getName());
+                jsonAction.addProperty("kind", span.getKind());
+                jsonAction.addProperty("startMs", millis(span.getStart() - start));
+                jsonAction.addProperty("durationMs", millis(span.getDuration()));
+                addCounters(jsonAction, span.getBytesRead(), span.getBytesWritten(), span.getItems(), span.getDuration());
+                jsonActions.add(jsonAction);
+            }
+            jsonTask.add("actions", jsonActions);
+            jsonTasks.add(jsonTask);
+        }
+        json.add("tasks", jsonTasks);
+
+        write(json, file);
+    }
+
+    /**
+     * Writes a Chrome trace-event file with one complete event per task and per action, grouped by worker thread
+     */
+    void writeTrace(File file) throws IOException {
+        JsonArray events = new JsonArray();
+        Map<Long, String> threads = new TreeMap<>();
+
+        for (TaskMetrics task : tasks()) {
+            threads.put(task.getThreadId(), task.getThread());
+
+            JsonObject args = new JsonObject();
+            args.addProperty("status", task.getStatus());
+            addCounters(args, task.getBytesRead(), task.getBytesWritten(), task.getItems(), task.getDuration());
+            events.add(event(task.getTask(), "task", task.getStart(), task.getDuration(), task.getThreadId(), args));
+
+            for (TaskMetrics.Span span : task.getSpans()) {
+                JsonObject spanArgs = new JsonObject();
+                addCounters(spanArgs, span.getBytesRead(), span.getBytesWritten(), span.getItems(), span.getDuration());
+                events.add(event(span.getName(), span.getKind(), span.getStart(), span.getDuration(), task.getThreadId(), spanArgs));
+            }
+        }
+
+        for (Map.Entry<Long, String> thread : threads.entrySet()) {
+            JsonObject args = new JsonObject();
+            args.addProperty("name", thread.getValue());
+
+            JsonObject meta = new JsonObject();
+            meta.addProperty("name", "thread_name");
+            meta.addProperty("ph", "M");
+            meta.addProperty("pid", 1);
+            meta.addProperty("tid", thread.getKey());
+            meta.add("args", args);
+            events.add(meta);
+        }
+
+        JsonObject json = new JsonObject();
+        json.add("traceEvents", events);
+        json.addProperty("displayTimeUnit", "ms");
+        write(json, file);
+    }
+
+    private JsonObject event(String name, String category, long eventStart, long duration, long thread, JsonObject args) {
+        JsonObject event = new JsonObject();
+        event.addProperty("name", name);
+        event.addProperty("cat", category);
+        event.addProperty("ph", "X");
+        event.addProperty("ts", micros(eventStart - start));
+        event.addProperty("dur", micros(duration));
+        event.addProperty("pid", 1);
+        event.addProperty("tid", thread);
+        event.add("args", args);
+        return event;
+    }
+
+    private static void write(JsonObject json, File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            GSON.toJson(json, writer);
+        }
+    }
+}
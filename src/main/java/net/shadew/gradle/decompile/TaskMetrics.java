@@ -0,0 +1,177 @@
+package net.shadew.gradle.decompile;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Records how long a task took and how much work it did. Time is measured per action: the task's own execution and
+ * each of its {@code doFirst} and {@code doLast} actions get their own {@link Span}, and bytes and items reported while
+ * an action runs are attributed to that action.
+ */
+public class TaskMetrics {
+    private final String task;
+    private final List<Span> spans = Collections.synchronizedList(new ArrayList<>());
+    private volatile Span current;
+
+    private volatile long start = System.nanoTime();
+    private volatile long end = -1;
+    private volatile String thread = Thread.currentThread().getName();
+    private volatile long threadId = Thread.currentThread().getId();
+    private volatile String status;
+
+    public TaskMetrics(String task) {
+        this.task = task;
+    }
+
+    public String getTask() {
+        return task;
+    }
+
+    /**
+     * Reports bytes read by the current action, from disk or network
+     */
+    public void read(long bytes) {
+        Span span = current;
+        if (span != null) span.read.addAndGet(bytes);
+    }
+
+    /**
+     * Reports bytes written by the current action
+     */
+    public void written(long bytes) {
+        Span span = current;
+        if (span != null) span.written.addAndGet(bytes);
+    }
+
+    /**
+     * Reports items (classes, entries, assets) processed by the current action
+     */
+    public void processed(long items) {
+        Span span = current;
+        if (span != null) span.items.addAndGet(items);
+    }
+
+    /**
+     * Starts measuring an action. The returned span becomes the current span until it is ended.
+     */
+    public Span begin(String name, String kind) {
+        Span span = new Span(name, kind);
+        spans.add(span);
+        current = span;
+        return span;
+    }
+
+    void start() {
+        start = System.nanoTime();
+        thread = Thread.currentThread().getName();
+        threadId = Thread.currentThread().getId();
+    }
+
+    void finish(String status) {
+        end = System.nanoTime();
+        this.status = status;
+        current = null;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getEnd() {
+        return end;
+    }
+
+    public long getDuration() {
+        return (end < 0 ? System.nanoTime() : end) - start;
+    }
+
+    public String getThread() {
+        return thread;
+    }
+
+    public long getThreadId() {
+        return threadId;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public List<Span> getSpans() {
+        synchronized (spans) {
+            return new ArrayList<>(spans);
+        }
+    }
+
+    public long getBytesRead() {
+        return getSpans().stream().mapToLong(Span::getBytesRead).sum();
+    }
+
+    public long getBytesWritten() {
+        return getSpans().stream().mapToLong(Span::getBytesWritten).sum();
+    }
+
+    public long getItems() {
+        return getSpans().stream().mapToLong(Span::getItems).sum();
+    }
+
+    /**
+     * Measures one action of a task
+     */
+    public class Span {
+        private final String name;
+        private final String kind;
+        private final long start = System.nanoTime();
+        private volatile long end = -1;
+
+        private final AtomicLong read = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong items = new AtomicLong();
+
+        private Span(String name, String kind) {
+            this.name = name;
+            this.kind = kind;
+        }
+
+        /**
+         * Stops measuring this action
+         */
+        public void end() {
+            end = System.nanoTime();
+            if (current == this) current = null;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns {@code "doFirst"}, {@code "execute"} or {@code "doLast"}
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        public long getStart() {
+            return start;
+        }
+
+        public long getDuration() {
+            return (end < 0 ? System.nanoTime() : end) - start;
+        }
+
+        public long getBytesRead() {
+            return read.get();
+        }
+
+        public long getBytesWritten() {
+            return written.get();
+        }
+
+        public long getItems() {
+            return items.get();
+        }
+    }
+}
@@ -1,5 +1,9 @@
 package net.shadew.gradle.decompile;
 
+import java.util.Collection;
+import java.util.List;
+
+import net.shadew.gradle.decompile.task.Task;
 import net.shadew.gradle.decompile.util.Constants;
 import net.shadew.gradle.decompile.util.OS;
 
@@ -23,6 +27,21 @@ public interface TaskRunContext {
     Environment env();
     String file(String path);
 
+    /**
+     * Returns the task that is run, which for {@code doFirst} and {@code doLast} actions is the task they belong to
+     */
+    Task task();
+
+    /**
+     * Resolves a path template into one path per value of the given key, which is treated as a multi-valued property
+     */
+    List<String> files(String path, String key, Collection<?> values);
+
+    /**
+     * Returns the metrics of the running task, to which the task reports bytes read and written and items processed
+     */
+    TaskMetrics metrics();
+
     default String mcVersion() {
         return env().getProperty(Constants.MC_VERSION);
     }
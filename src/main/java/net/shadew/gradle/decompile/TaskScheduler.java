@@ -0,0 +1,158 @@
+package net.shadew.gradle.decompile;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import net.shadew.gradle.decompile.task.Task;
+import net.shadew.gradle.decompile.util.NamedThreadFactory;
+
+/**
+ * Runs a task graph on a pool of worker threads. Each task is started as soon as all of its dependencies have finished
+ * and a worker is free, so independent tasks (for example the four Minecraft downloads) run at the same time. Ready
+ * tasks are started in the order of the graph flattened into a {@link LinkedHashSet}, so with one worker, tasks run one
+ * after another in exactly that order.
+ * <p>
+ * Once a task and all tasks depending on it have finished, the task is released: nothing in this run reads its outputs
+ * anymore.
+ */
+class TaskScheduler {
+    private final int workers;
+    private final TaskRunner runner;
+    private final Consumer<Task> released;
+
+    TaskScheduler(int workers, TaskRunner runner) {
+        this(workers, runner, task -> { });
+    }
+
+    TaskScheduler(int workers, TaskRunner runner, Consumer<Task> released) {
+        this.workers = Math.max(1, workers);
+        this.runner = runner;
+        this.released = released;
+    }
+
+    /**
+     * Runs the given goal and all its dependencies, returning the amount of executed tasks.
+     *
+     * @throws TaskFailException When any of the tasks failed. No new tasks are started after a failure, but tasks that
+     *                           are already running are awaited.
+     */
+    int run(Task goal) throws TaskFailException {
+        LinkedHashSet<Task> graph = new LinkedHashSet<>();
+        goal.collectDependencies(graph);
+        graph.add(goal);
+
+        // Count remaining dependencies of each task and collect the reverse edges
+        Map<Task, Integer> pending = new HashMap<>();
+        Map<Task, List<Task>> dependents = new HashMap<>();
+        Map<Task, Integer> order = new HashMap<>();
+        for (Task task : graph) {
+            order.put(task, order.size());
+            for (Task dep : task.getDependencies()) {
+                dependents.computeIfAbsent(dep, k -> new ArrayList<>()).add(task);
+            }
+            pending.put(task, task.getDependencies().size());
+        }
+
+        // Count the dependents of each task that have yet to finish
+        Map<Task, Integer> unfinished = new HashMap<>();
+        for (Task task : graph) {
+            unfinished.put(task, dependents.getOrDefault(task, Collections.emptyList()).size());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new NamedThreadFactory("TaskWorker"));
+        CompletionService<Task> completion = new ExecutorCompletionService<>(executor);
+        AtomicBoolean failed = new AtomicBoolean();
+
+        // Tasks whose dependencies have finished, earliest in the flattened graph first
+        PriorityQueue<Task> ready = new PriorityQueue<>(Comparator.comparing(order::get));
+
+        int running = 0;
+        int executed = 0;
+        TaskFailException failure = null;
+
+        try {
+            for (Task task : graph) {
+                if (pending.get(task) == 0)
+                    ready.add(task);
+            }
+            while (running < workers && !ready.isEmpty()) {
+                submit(completion, ready.poll(), failed);
+                running++;
+            }
+
+            while (running > 0) {
+                Future<Task> future = completion.take();
+                running--;
+
+                try {
+                    Task task = future.get();
+                    if (task == null) continue;
+                    executed++;
+
+                    if (unfinished.get(task) == 0)
+                        released.accept(task);
+                    for (Task dep : task.getDependencies()) {
+                        int left = unfinished.get(dep) - 1;
+                        unfinished.put(dep, left);
+                        if (left == 0)
+                            released.accept(dep);
+                    }
+
+                    // Don't start anything new once a task has failed
+                    if (failure != null) continue;
+
+                    for (Task dependent : dependents.getOrDefault(task, Collections.emptyList())) {
+                        int left = pending.get(dependent) - 1;
+                        pending.put(dependent, left);
+                        if (left == 0)
+                            ready.add(dependent);
+                    }
+                    while (running < workers && !ready.isEmpty()) {
+                        submit(completion, ready.poll(), failed);
+                        running++;
+                    }
+                } catch (ExecutionException exc) {
+                    failed.set(true);
+                    if (failure == null) {
+                        failure = (TaskFailException) exc.getCause();
+                    }
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new TaskFailException("Interrupted while running " + goal.getName(), exc, goal);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (failure != null)
+            throw failure;
+        return executed;
+    }
+
+    private void submit(CompletionService<Task> completion, Task task, AtomicBoolean failed) {
+        completion.submit(() -> {
+            // Tasks that were queued before another task failed are dropped without running
+            if (failed.get())
+                return null;
+
+            try {
+                runner.run(task);
+            } catch (TaskFailException exc) {
+                failed.set(true);
+                throw exc;
+            } catch (RuntimeException | Error exc) {
+                failed.set(true);
+                throw new TaskFailException("Task " + task.getName() + " failed with an exception: " + exc.getMessage(), exc, task);
+            }
+            return task;
+        });
+    }
+
+    @FunctionalInterface
+    interface TaskRunner {
+        void run(Task task) throws TaskFailException;
+    }
+}
@@ -4,10 +4,15 @@ import org.jetbrains.java.decompiler.main.decompiler.ConsoleDecompiler;
 import org.jetbrains.java.decompiler.main.extern.IFernflowerPreferences;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 
 import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.Fingerprint;
 
 public abstract class Decompile extends Task {
     public Decompile(String name) {
@@ -22,21 +27,34 @@ public abstract class Decompile extends Task {
         File inFile = new File(getInputFile(ctx));
         File outFile = new File(getOutputDir(ctx));
 
-        if(outFile.exists()) {
-            ctx.upToDate();
-            return;
-        }
-
-        outFile.getParentFile().mkdirs();
-
         Map<String, Object> opts = new HashMap<>();
         opts.put(IFernflowerPreferences.REMOVE_SYNTHETIC, true);
         opts.put(IFernflowerPreferences.DECOMPILE_GENERIC_SIGNATURES, true);
         opts.put(IFernflowerPreferences.HIDE_EMPTY_SUPER, true);
         opts.put(IFernflowerPreferences.HIDE_DEFAULT_CONSTRUCTOR, true);
+
+        Fingerprint fingerprint = Fingerprint.of(outFile)
+                                             .input("jar", inFile)
+                                             .config("options", new TreeMap<>(opts))
+                                             .cacheable("decompile");
+        if (fingerprint.isUpToDate()) {
+            ctx.upToDate();
+            return;
+        }
+        fingerprint.invalidate();
+        if (fingerprint.restore(ctx.env().getBuildCache())) {
+            ctx.finish("FROM-CACHE");
+            return;
+        }
+
+        // Files from the previous run would otherwise stay in the output and end up in its hash and the build cache
+        delete(outFile.toPath());
+        outFile.mkdirs();
+
         ConsoleDecompiler decompiler = new ConsoleDecompiler(outFile, opts);
         decompiler.addSpace(inFile, true);
         decompiler.decompileContext();
+        ctx.metrics().read(inFile.length());
 
 //        try (JarFile in = new JarFile(inFile, false);
 //             ZipOutputStream out = new ZipOutputStream(new FileOutputStream(outFile))) {
@@ -101,9 +119,30 @@ public abstract class Decompile extends Task {
 //            }
 //        }
 
+        fingerprint.save();
+        fingerprint.store(ctx.env().getBuildCache());
         ctx.done();
     }
 
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
 //    private static class JarTypeResolver implements ITypeLoader, ClassFileSource, IBytecodeProvider {
 //        private final JarFile jar;
 //
@@ -6,13 +6,15 @@ import com.google.gson.JsonParser;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileReader;
+import java.io.IOException;
 import java.io.PrintStream;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.ZipEntry;
 
 import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.RawZipFile;
+import net.shadew.gradle.decompile.util.ZipWriter;
 
 /**
  * Deploys the input JAR file into a local maven repository, generating a POM file and copying the JAR file in the
@@ -25,6 +27,7 @@ public class Deploy extends Task {
     private final String artifactId;
     private String dependencyFile;
     private String classifier;
+    private int compression = ZipWriter.DEFAULT;
     private final List<String> extraDeps = new ArrayList<>();
 
     public Deploy(String name, String jar, String repo, String id) {
@@ -54,6 +57,17 @@ public class Deploy extends Task {
         return this;
     }
 
+    /**
+     * Sets the compression level of the deployed JAR file. The input JAR is repacked: entries that are stored without
+     * compression, like those of intermediate JARs written with {@link ZipWriter#STORED}, are compressed at this level
+     * and compressed entries are copied as is. Defaults to {@link ZipWriter#DEFAULT}.
+     */
+    public Deploy compression(int level) {
+        ZipWriter.checkLevel(level);
+        compression = level;
+        return this;
+    }
+
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
         String version = ctx.env().getProperty("MCVersion");
@@ -103,14 +117,38 @@ public class Deploy extends Task {
             out.printf("</project>%n");
         }
 
-        // Copy JAR file
+        // Repack JAR file
         File jar = new File(path, artifactId + "-" + version + ".jar");
         File in = new File(ctx.file(inputJar));
-        Files.copy(in.toPath(), jar.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        repack(ctx, in, jar);
 
         ctx.status("DONE");
     }
 
+    private void repack(TaskRunContext ctx, File in, File out) throws IOException {
+        try (RawZipFile raw = ctx.env().getArtifactStore().open(in);
+             ZipWriter writer = new ZipWriter(out, compression)) {
+
+            int size = raw.getEntries().size();
+            int n = 0;
+            ctx.metrics().read(raw.length());
+
+            for (RawZipFile.Entry entry : raw.getEntries()) {
+                if (entry.getMethod() == ZipEntry.STORED && entry.getSize() > 0 && compression != ZipWriter.STORED) {
+                    byte[] data = raw.read(entry);
+                    writer.write(entry.getName(), data, 0, data.length);
+                } else {
+                    writer.copy(entry.getName(), raw, entry);
+                }
+
+                ctx.metrics().processed(1);
+                ctx.progress(n++, size);
+            }
+        }
+
+        ctx.metrics().written(out.length());
+    }
+
     private static void printDep(TaskRunContext ctx, PrintStream out, String str) {
         String[] parts = str.split(":");
         if (parts.length < 3) {
@@ -1,22 +1,51 @@
 package net.shadew.gradle.decompile.task;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
 import java.net.UnknownHostException;
 
 import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.Downloader;
 
 public abstract class Download extends Task {
+    private int segments = 4;
+    private long segmentThreshold = 16 * 1024 * 1024;
+
     public Download(String name) {
         super(name);
     }
 
+    /**
+     * Downloads files of at least the given size (in bytes) in the given amount of parallel segments, when the server
+     * supports it. This only applies when the expected size of the download is known. Defaults to 4 segments for files
+     * of 16 MiB or more.
+     */
+    public Download segments(int segments, long threshold) {
+        this.segments = segments;
+        this.segmentThreshold = threshold;
+        return this;
+    }
+
     protected abstract String getDownloadUrl(TaskRunContext ctx) throws Exception;
     protected abstract String getOutputFile(TaskRunContext ctx) throws Exception;
 
+    /**
+     * Returns the SHA-1 hash the downloaded file must have, or null when it is not known. When known, the download is
+     * verified, and the task is up to date when the output already has this hash.
+     */
+    protected String getExpectedSha1(TaskRunContext ctx) throws Exception {
+        return null;
+    }
+
+    /**
+     * Returns the size the downloaded file must have, or -1 when it is not known
+     */
+    protected long getExpectedSize(TaskRunContext ctx) throws Exception {
+        return -1;
+    }
+
+    /**
+     * Returns whether the file must be downloaded, only used when there is no expected SHA-1 hash
+     */
     protected boolean shouldDownload(TaskRunContext ctx, File file) {
         return true;
     }
@@ -25,45 +54,63 @@ public abstract class Download extends Task {
         return false;
     }
 
+    /**
+     * Returns whether to ask the server whether an existing output changed, instead of downloading it again. Only used
+     * when there is no expected SHA-1 hash.
+     */
+    protected boolean conditional(TaskRunContext ctx) {
+        return false;
+    }
+
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
         File out = new File(getOutputFile(ctx));
         ctx.debug("Downloading to " + out);
 
+        String sha1 = getExpectedSha1(ctx);
+        long size = getExpectedSize(ctx);
+
         out.getParentFile().mkdirs();
-        if (!shouldDownload(ctx, out)) {
+        if (sha1 != null ? Downloader.isVerified(out, sha1, size) : !shouldDownload(ctx, out)) {
             ctx.info("Download is up to date");
             ctx.upToDate();
             return;
         }
 
-        URL url = new URL(getDownloadUrl(ctx));
+        String url = getDownloadUrl(ctx);
         ctx.debug("Downloading from " + url);
 
         try {
-            URLConnection connection = url.openConnection();
-            long len = connection.getContentLengthLong();
-            long read = 0;
-            try (InputStream from = connection.getInputStream();
-                 FileOutputStream to = new FileOutputStream(out)) {
-                byte[] buf = new byte[1024];
-                int r;
-                long time = System.nanoTime();
-                while ((r = from.read(buf)) != -1) {
-                    to.write(buf, 0, r);
-                    read += r;
-
-                    // Update status (progress, kB/s)
-                    long newTime = System.nanoTime();
-                    long diff = newTime - time;
-                    double secs = diff / 1000000000d;
-                    double bps = r / secs;
-                    int kbps = (int) (bps / 1024d);
-                    time = newTime;
-                    ctx.progress((double) read / len);
-                    ctx.status(kbps + " kB/s");
+            Downloader downloader = new Downloader(ctx.env().getHttpTransport(), url, out)
+                                        .sha1(sha1)
+                                        .size(size)
+                                        .segments(segments, segmentThreshold)
+                                        .conditional(sha1 == null && conditional(ctx))
+                                        .policy(ctx.env().getDownloadPolicy())
+                                        .onRetry((from, cause) -> ctx.warning("Retrying download from " + from + ": " + cause));
+
+            // Called from a timer, so that the transfer itself does not have to keep track of time
+            long[] last = {System.nanoTime(), -1};
+            long transferred = downloader.progress((done, total) -> {
+                long newTime = System.nanoTime();
+                if (last[1] >= 0) {
+                    double secs = (newTime - last[0]) / 1000000000d;
+                    double bps = (done - last[1]) / secs;
+                    ctx.status((int) (bps / 1024d) + " kB/s");
                 }
+                last[0] = newTime;
+                last[1] = done;
+                ctx.progress(total < 0 ? -1 : (double) done / total);
+            }).download();
+            if (downloader.isNotModified()) {
+                ctx.info("Download is not modified");
+                ctx.upToDate();
+                return;
             }
+            if (sha1 != null)
+                Downloader.markVerified(out, sha1);
+            ctx.metrics().read(transferred);
+            ctx.metrics().written(transferred);
         } catch (UnknownHostException exc) {
             // Failed to download because of internet problems, if lazy then just don't download
             if(lazyWhenOffline(out)) {
@@ -1,21 +1,37 @@
 package net.shadew.gradle.decompile.task;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.util.Collection;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.shadew.gradle.decompile.TaskFailException;
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.AssetsIndex;
 import net.shadew.gradle.decompile.util.Constants;
-import net.shadew.util.misc.IO;
+import net.shadew.gradle.decompile.util.Downloader;
+import net.shadew.gradle.decompile.util.NamedThreadFactory;
+import net.shadew.gradle.decompile.util.ObjectPack;
+import net.shadew.gradle.decompile.util.ObjectStore;
 
 public class DownloadAssets extends Task {
     private String assetsIndex = Constants.ASSETS_INDEX;
     private String objectsDir = Constants.OBJECTS_DIR;
+    private int concurrency = 8;
+    private ObjectStore.Mode storeMode = ObjectStore.Mode.HARDLINK;
+    private String packDir;
+    private String syncedIndex;
+    private boolean prune;
 
     public DownloadAssets(String name) {
         super(name);
@@ -31,57 +47,271 @@ public class DownloadAssets extends Task {
         return this;
     }
 
+    /**
+     * Sets the maximum amount of assets that are downloaded at the same time. A fresh assets index has thousands of
+     * small objects, so downloading them one by one is bound by latency rather than bandwidth.
+     */
+    public DownloadAssets concurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    /**
+     * Sets how objects get from the shared object store in the cache directory into the objects directory. Objects are
+     * downloaded into the store once, and then hardlinked (the default) or copied into each workspace. In
+     * {@link ObjectStore.Mode#LOOKUP} mode the objects directory is not filled at all. When null, the store is not used
+     * and objects are downloaded into the objects directory directly.
+     */
+    public DownloadAssets objectStore(ObjectStore.Mode storeMode) {
+        this.storeMode = storeMode;
+        return this;
+    }
+
+    /**
+     * Downloads objects into the {@link ObjectPack} in the given directory (for example {@link Constants#PACK_DIR})
+     * instead of as loose files. The objects directory and the object store are not used in this case. When null (the
+     * default), objects are stored as loose files.
+     */
+    public DownloadAssets pack(String packDir) {
+        this.packDir = packDir;
+        return this;
+    }
+
+    /**
+     * Enables incremental syncing. The index that was last synced successfully is kept in the given file (for example
+     * {@link Constants#SYNCED_INDEX}), and the next sync only downloads the objects that are not in that index, instead
+     * of checking every asset again. Objects that were deleted by hand since the last sync are not noticed in this mode.
+     * When null (the default), every asset is checked.
+     */
+    public DownloadAssets incremental(String syncedIndex) {
+        this.syncedIndex = syncedIndex;
+        return this;
+    }
+
+    /**
+     * Deletes objects from the objects directory that the assets index no longer uses. In incremental mode, only the
+     * objects orphaned since the last sync are deleted, otherwise the whole objects directory is scanned. The shared
+     * object store and packs are never pruned, as other workspaces may still use their objects.
+     */
+    public DownloadAssets prune(boolean prune) {
+        this.prune = prune;
+        return this;
+    }
+
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
         AssetsIndex index = ctx.env().getProperty(assetsIndex);
         if (index == null)
             throw new TaskFailException("Assets index was not properly loaded", this);
 
-        Collection<AssetsIndex.Asset> assets = index.getAssets();
+        File synced = syncedIndex == null ? null : new File(ctx.file(syncedIndex));
+        AssetsIndex previous = synced == null ? null : loadSyncedIndex(ctx, synced);
+
+        List<AssetsIndex.Asset> assets;
+        List<AssetsIndex.Asset> orphaned = null;
+        if (previous != null) {
+            AssetsIndex.Diff diff = index.diff(previous);
+            ctx.info("Assets since last sync: " + diff.getAdded().size() + " added, " + diff.getRemoved().size() + " removed, " + diff.getChanged().size() + " changed");
+            assets = diff.getNewObjects();
+            orphaned = diff.getOrphanedObjects();
+        } else {
+            assets = new ArrayList<>(index.getAssets());
+        }
+
+        boolean changed = downloadAssets(ctx, assets);
+        if (prune && prune(ctx, index, orphaned))
+            changed = true;
+
+        if (synced != null)
+            index.toFile(synced);
+
+        ctx.progress(-1);
+        ctx.status(changed ? "DONE" : "UP-TO-DATE");
+    }
+
+    private AssetsIndex loadSyncedIndex(TaskRunContext ctx, File synced) {
+        if (!synced.isFile())
+            return null;
+
+        try {
+            return AssetsIndex.fromFile(synced);
+        } catch (Exception exc) {
+            ctx.warning("Synced assets index is unreadable, checking all assets", exc);
+            return null;
+        }
+    }
+
+    private boolean downloadAssets(TaskRunContext ctx, List<AssetsIndex.Asset> assets) throws Exception {
+        if (assets.isEmpty())
+            return false;
+
+        // Assets with the same hash are the same object, fetch each object once
+        Set<String> hashes = new HashSet<>();
+        List<AssetsIndex.Asset> unique = new ArrayList<>(assets.size());
+        for (AssetsIndex.Asset asset : assets) {
+            if (hashes.add(asset.getHash()))
+                unique.add(asset);
+        }
+        assets = unique;
+
+        // Resolve all output paths in one go
+        List<String> hashPaths = new ArrayList<>(assets.size());
+        for (AssetsIndex.Asset asset : assets) {
+            hashPaths.add(asset.getHashPath());
+        }
+        List<String> outputs = ctx.files(objectsDir + "[[" + Constants.ASSET_HASH_PATH + "]]", Constants.ASSET_HASH_PATH, hashPaths);
 
         int len = assets.size();
-        int i = 0;
+        AtomicInteger done = new AtomicInteger();
+        AtomicBoolean downloaded = new AtomicBoolean();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
         ctx.progress(0);
 
-        String status = "UP-TO-DATE";
-        for (AssetsIndex.Asset asset : assets) {
-            if (!downloadAsset(ctx, asset)) {
-                status = "DONE";
+        ObjectPack pack = packDir == null ? null : ObjectPack.openWritable(new File(ctx.file(packDir)));
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("DownloadAssets"));
+        try {
+            for (int i = 0; i < len; i++) {
+                AssetsIndex.Asset asset = assets.get(i);
+                File out = new File(outputs.get(i));
+
+                executor.execute(() -> {
+                    try {
+                        if (!(pack != null ? downloadAsset(ctx, asset, pack) : downloadAsset(ctx, asset, out))) {
+                            downloaded.set(true);
+                        }
+                    } catch (Exception exc) {
+                        // Keep downloading the other assets, report all failures at the end
+                        ctx.debug("Failed to download " + asset.getName(), exc);
+                        failures.add(asset.getName() + ": " + exc);
+                    }
+
+                    int n = done.incrementAndGet();
+                    ctx.metrics().processed(1);
+                    ctx.progress(n, len);
+                    ctx.status(n + "/" + len);
+                });
             }
 
-            i++;
-            ctx.progress((double) i / len);
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+
+            // Commits the objects that were downloaded, even if others failed
+            if (pack != null)
+                pack.close();
         }
 
-        ctx.progress(-1);
-        ctx.status(status);
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                ctx.error("Failed to download asset " + failure);
+            }
+            throw new TaskFailException(failures.size() + " of " + len + " assets failed to download", this);
+        }
+        return downloaded.get();
+    }
+
+    private boolean prune(TaskRunContext ctx, AssetsIndex index, List<AssetsIndex.Asset> orphaned) {
+        if (packDir != null || storeMode == ObjectStore.Mode.LOOKUP) {
+            ctx.debug("Nothing to prune, objects directory is not used");
+            return false;
+        }
+
+        File dir = new File(ctx.file(objectsDir));
+        int pruned = 0;
+        if (orphaned != null) {
+            for (AssetsIndex.Asset asset : orphaned) {
+                if (new File(dir, asset.getHashPath()).delete())
+                    pruned++;
+            }
+        } else {
+            File[] buckets = dir.listFiles(File::isDirectory);
+            if (buckets == null)
+                return false;
+
+            for (File bucket : buckets) {
+                File[] objects = bucket.listFiles(File::isFile);
+                if (objects == null)
+                    continue;
+
+                for (File object : objects) {
+                    if (index.getByHash(object.getName()) == null && object.delete())
+                        pruned++;
+                }
+                bucket.delete(); // Only succeeds when empty
+            }
+        }
+
+        ctx.info("Pruned " + pruned + " orphaned objects");
+        return pruned > 0;
+    }
+
+    private boolean downloadAsset(TaskRunContext ctx, AssetsIndex.Asset asset, File out) throws Exception {
+        ctx.info(asset.getName());
+
+        if (storeMode == null) {
+            return fetchAsset(ctx, asset, out);
+        }
+
+        ObjectStore store = ctx.env().getObjectStore();
+        boolean fetched = store.fetch(asset.getHash(), asset.getSize(), file -> fetchAsset(ctx, asset, file));
+
+        // A workspace object of the right size came from the store or from a verified download, so it can stay
+        boolean placed = out.isFile() && out.length() == asset.getSize();
+        if (storeMode != ObjectStore.Mode.LOOKUP && (fetched || !placed)) {
+            store.place(asset.getHash(), out, storeMode);
+        }
+        return !fetched;
     }
 
-    private boolean downloadAsset(TaskRunContext ctx, AssetsIndex.Asset asset) throws Exception {
-        String name = asset.getName();
-        String shortName = name.contains("/")
-                           ? name.substring(name.lastIndexOf('/') + 1)
-                           : name;
-        ctx.info(name);
+    private boolean downloadAsset(TaskRunContext ctx, AssetsIndex.Asset asset, ObjectPack pack) throws Exception {
+        ctx.info(asset.getName());
 
-        File out = new File(ctx.file(objectsDir + asset.getHashPath()));
+        if (pack.has(asset.getHash()))
+            return true;
+
+        // A file of our own, another job may be fetching an object with the same hash
+        File tmpDir = new File(pack.getDir(), "tmp");
+        tmpDir.mkdirs();
+        File tmp = Files.createTempFile(tmpDir.toPath(), asset.getHash(), null).toFile();
+        try {
+            tmp.delete();
+            fetchAsset(ctx, asset, tmp);
+            pack.add(asset.getHash(), tmp);
+        } finally {
+            // The name is random, so a partial download left by a failed fetch would never be resumed
+            tmp.delete();
+            Downloader.discardPartial(tmp);
+        }
+        return false;
+    }
+
+    private boolean fetchAsset(TaskRunContext ctx, AssetsIndex.Asset asset, File out) throws IOException {
         ctx.debug("Downloading to " + out);
 
         out.getParentFile().mkdirs();
-        if (out.exists()) {
+
+        // Assets are only moved into place after their hash was verified, and their name is their hash
+        if (out.isFile() && out.length() == asset.getSize()) {
             ctx.debug("Asset up-to-date");
             return true;
         }
 
-        URL url = new URL(asset.getUrl());
+        String url = asset.getUrl();
         ctx.debug("Downloading from " + url);
 
-        ctx.status(shortName);
+        // Downloads to a partial file first, a failed or corrupt download must not look like an existing asset
+        long transferred = new Downloader(ctx.env().getHttpTransport(), url, out)
+                                 .sha1(asset.getHash())
+                                 .size(asset.getSize())
+                                 .policy(ctx.env().getDownloadPolicy())
+                                 .onRetry((from, cause) -> ctx.debug("Retrying " + asset.getName() + ": " + cause))
+                                 .download();
 
-        URLConnection connection = url.openConnection();
-        try (InputStream from = connection.getInputStream(); FileOutputStream to = new FileOutputStream(out)) {
-            IO.copy(from, to);
-        }
+        ctx.metrics().read(transferred);
+        ctx.metrics().written(transferred);
         return false;
     }
 }
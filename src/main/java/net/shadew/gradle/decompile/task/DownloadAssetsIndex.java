@@ -19,12 +19,26 @@ public class DownloadAssetsIndex extends Download {
         return this;
     }
 
-    @Override
-    protected String getDownloadUrl(TaskRunContext ctx) throws Exception {
+    private VersionInfo.Download getDownload(TaskRunContext ctx) throws Exception {
         VersionInfo info = ctx.env().getProperty(versionInfo);
         if (info == null)
             throw new TaskFailException("Version info was not properly loaded", this);
-        return info.getAssetsIndex().getUrl();
+        return info.getAssetsIndex();
+    }
+
+    @Override
+    protected String getDownloadUrl(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getUrl();
+    }
+
+    @Override
+    protected String getExpectedSha1(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getSha1();
+    }
+
+    @Override
+    protected long getExpectedSize(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getSize();
     }
 
     @Override
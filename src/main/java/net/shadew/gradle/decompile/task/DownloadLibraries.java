@@ -0,0 +1,179 @@
+package net.shadew.gradle.decompile.task;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.shadew.gradle.decompile.TaskFailException;
+import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Downloader;
+import net.shadew.gradle.decompile.util.NamedThreadFactory;
+import net.shadew.gradle.decompile.util.OS;
+import net.shadew.gradle.decompile.util.VersionInfo;
+
+/**
+ * Downloads the libraries of a {@link VersionInfo} into a local Maven repository layout, using the paths, URLs and
+ * checksums from the version info. This includes the natives and, optionally, the sources. Only libraries for the
+ * current OS are downloaded, or those for all OSes when there is no current OS.
+ */
+public class DownloadLibraries extends Task {
+    private String versionInfo = Constants.VERSION_INFO;
+    private String librariesDir = Constants.LIBRARIES_DIR;
+    private boolean downloadSources = true;
+    private boolean allOS;
+    private int concurrency = 8;
+
+    public DownloadLibraries(String name) {
+        super(name);
+    }
+
+    public DownloadLibraries versionInfo(String info) {
+        this.versionInfo = info;
+        return this;
+    }
+
+    public DownloadLibraries librariesDir(String librariesDir) {
+        this.librariesDir = librariesDir;
+        return this;
+    }
+
+    public DownloadLibraries downloadSources(boolean downloadSources) {
+        this.downloadSources = downloadSources;
+        return this;
+    }
+
+    /**
+     * Downloads the libraries and natives of all OSes, not just those of the current OS
+     */
+    public DownloadLibraries allOS(boolean allOS) {
+        this.allOS = allOS;
+        return this;
+    }
+
+    /**
+     * Sets the maximum amount of artifacts that are downloaded at the same time
+     */
+    public DownloadLibraries concurrency(int concurrency) {
+        if (concurrency < 1)
+            throw new IllegalArgumentException("Concurrency must be at least 1");
+        this.concurrency = concurrency;
+        return this;
+    }
+
+    @Override
+    public void execute(TaskRunContext ctx) throws Exception {
+        VersionInfo info = ctx.env().getProperty(versionInfo);
+        if (info == null)
+            throw new TaskFailException("Version info was not properly loaded", this);
+
+        OS currentOS = allOS ? null : ctx.os();
+        List<VersionInfo.LibraryDownload> artifacts = collect(info, currentOS);
+
+        File dir = new File(ctx.file(librariesDir));
+        int len = artifacts.size();
+        AtomicInteger done = new AtomicInteger();
+        AtomicBoolean downloaded = new AtomicBoolean();
+        Queue<String> failures = new ConcurrentLinkedQueue<>();
+        ctx.progress(0);
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency, new NamedThreadFactory("DownloadLibraries"));
+        try {
+            for (VersionInfo.LibraryDownload artifact : artifacts) {
+                executor.execute(() -> {
+                    try {
+                        if (!downloadArtifact(ctx, artifact, new File(dir, artifact.getPath()))) {
+                            downloaded.set(true);
+                        }
+                    } catch (Exception exc) {
+                        // Keep downloading the other artifacts, report all failures at the end
+                        ctx.debug("Failed to download " + artifact.getPath(), exc);
+                        failures.add(artifact.getPath() + ": " + exc);
+                    }
+
+                    int n = done.incrementAndGet();
+                    ctx.metrics().processed(1);
+                    ctx.progress(n, len);
+                    ctx.status(n + "/" + len);
+                });
+            }
+
+            executor.shutdown();
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            for (String failure : failures) {
+                ctx.error("Failed to download library " + failure);
+            }
+            throw new TaskFailException(failures.size() + " of " + len + " libraries failed to download", this);
+        }
+
+        ctx.progress(-1);
+        ctx.status(downloaded.get() ? "DONE" : "UP-TO-DATE");
+    }
+
+    private List<VersionInfo.LibraryDownload> collect(VersionInfo info, OS currentOS) {
+        Set<OS> oses = currentOS == null ? EnumSet.allOf(OS.class) : EnumSet.of(currentOS);
+
+        // Artifacts are shared between OSes and libraries, only download each path once
+        Map<String, VersionInfo.LibraryDownload> artifacts = new LinkedHashMap<>();
+        for (OS os : oses) {
+            for (VersionInfo.Library lib : info.getLibraries(os)) {
+                VersionInfo.LibraryDownload artifact = lib.getArtifactDownload();
+                if (artifact != null)
+                    artifacts.putIfAbsent(artifact.getPath(), artifact);
+
+                String classifier = lib.getNatives().getNativeClassifier(os);
+                if (classifier != null) {
+                    // Old natives have their architecture in the classifier
+                    for (String arch : new String[] {"64", "32"}) {
+                        VersionInfo.LibraryDownload natives = lib.getClassifierDownload(classifier.replace("${arch}", arch));
+                        if (natives != null)
+                            artifacts.putIfAbsent(natives.getPath(), natives);
+                    }
+                }
+
+                VersionInfo.LibraryDownload sources = lib.getSourcesDownload();
+                if (downloadSources && sources != null)
+                    artifacts.putIfAbsent(sources.getPath(), sources);
+            }
+        }
+        return new ArrayList<>(artifacts.values());
+    }
+
+    private boolean downloadArtifact(TaskRunContext ctx, VersionInfo.LibraryDownload artifact, File out) throws Exception {
+        ctx.info(artifact.getPath());
+
+        if (Downloader.isVerified(out, artifact.getSha1(), artifact.getSize())) {
+            ctx.debug("Library up-to-date");
+            return true;
+        }
+
+        // Some libraries are not hosted anywhere, and are expected to be present already
+        if (artifact.getUrl().isEmpty())
+            throw new TaskFailException("Library " + artifact.getPath() + " has no download URL", this);
+
+        ctx.debug("Downloading from " + artifact.getUrl());
+        out.getAbsoluteFile().getParentFile().mkdirs();
+
+        long transferred = new Downloader(ctx.env().getHttpTransport(), artifact.getUrl(), out)
+                                 .sha1(artifact.getSha1())
+                                 .size(artifact.getSize())
+                                 .policy(ctx.env().getDownloadPolicy())
+                                 .onRetry((from, cause) -> ctx.debug("Retrying " + artifact.getPath() + ": " + cause))
+                                 .download();
+        Downloader.markVerified(out, artifact.getSha1());
+
+        ctx.metrics().read(transferred);
+        ctx.metrics().written(transferred);
+        return false;
+    }
+}
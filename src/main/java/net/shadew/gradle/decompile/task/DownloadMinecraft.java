@@ -1,7 +1,5 @@
 package net.shadew.gradle.decompile.task;
 
-import java.io.File;
-
 import net.shadew.gradle.decompile.TaskFailException;
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
@@ -28,8 +26,7 @@ public class DownloadMinecraft extends Download {
         return this;
     }
 
-    @Override
-    protected String getDownloadUrl(TaskRunContext ctx) throws Exception {
+    private VersionInfo.Download getDownload(TaskRunContext ctx) throws Exception {
         VersionInfo info = ctx.env().getProperty(versionInfo);
         if (info == null)
             throw new TaskFailException("Version info was not properly loaded", this);
@@ -51,17 +48,27 @@ public class DownloadMinecraft extends Download {
                 download = info.getServerMappings();
                 break;
         }
-        return download.getUrl();
+        return download;
     }
 
     @Override
-    protected String getOutputFile(TaskRunContext ctx) {
-        return ctx.file(outputDir + type.filename());
+    protected String getDownloadUrl(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getUrl();
+    }
+
+    @Override
+    protected String getExpectedSha1(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getSha1();
     }
 
     @Override
-    protected boolean shouldDownload(TaskRunContext ctx, File file) {
-        return !file.exists();
+    protected long getExpectedSize(TaskRunContext ctx) throws Exception {
+        return getDownload(ctx).getSize();
+    }
+
+    @Override
+    protected String getOutputFile(TaskRunContext ctx) {
+        return ctx.file(outputDir + type.filename());
     }
 
     public enum Type {
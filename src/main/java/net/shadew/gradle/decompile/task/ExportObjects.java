@@ -0,0 +1,64 @@
+package net.shadew.gradle.decompile.task;
+
+import java.io.File;
+import java.util.List;
+
+import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.ObjectPack;
+
+/**
+ * Exports all objects in an {@link ObjectPack} as loose objects ({@code <objectsDir>/<first two hash chars>/<hash>}),
+ * for tools that need the loose layout. Objects that already exist with the right size are skipped.
+ */
+public class ExportObjects extends Task {
+    private String objectsDir = Constants.OBJECTS_DIR;
+    private String packDir = Constants.PACK_DIR;
+
+    public ExportObjects(String name) {
+        super(name);
+    }
+
+    public ExportObjects objectsDir(String objectsDir) {
+        this.objectsDir = objectsDir;
+        return this;
+    }
+
+    public ExportObjects packDir(String packDir) {
+        this.packDir = packDir;
+        return this;
+    }
+
+    @Override
+    public void execute(TaskRunContext ctx) throws Exception {
+        File dir = new File(ctx.file(objectsDir));
+
+        int exported = 0;
+        try (ObjectPack pack = ObjectPack.open(new File(ctx.file(packDir)))) {
+            List<String> hashes = pack.getHashes();
+            int size = hashes.size();
+            int n = 0;
+
+            for (String hash : hashes) {
+                File out = new File(dir, hash.substring(0, 2) + "/" + hash);
+                long length = pack.size(hash);
+                if (!out.isFile() || out.length() != length) {
+                    pack.export(hash, out);
+                    exported++;
+                    ctx.metrics().read(length);
+                    ctx.metrics().written(length);
+                }
+
+                ctx.metrics().processed(1);
+                ctx.progress(n++, size);
+            }
+        }
+
+        ctx.info("Exported " + exported + " objects");
+        if (exported == 0) {
+            ctx.upToDate();
+        } else {
+            ctx.done();
+        }
+    }
+}
@@ -1,22 +1,32 @@
 package net.shadew.gradle.decompile.task;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
 import java.util.List;
-import java.util.jar.JarOutputStream;
+import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipFile;
 
+import net.shadew.gradle.decompile.TaskFailException;
 import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.AssetsIndex;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.Hashing;
+import net.shadew.gradle.decompile.util.ObjectPack;
+import net.shadew.gradle.decompile.util.RawZipFile;
+import net.shadew.gradle.decompile.util.ZipWriter;
 import net.shadew.util.misc.IO;
 
 public class ExtractAssets extends Task {
     private String inputDir = Constants.VERSION_DIR;
     private String outputDir = Constants.VERSION_DIR;
+    private String objectsIndex;
+    private String objectsPack;
+    private int compression = ZipWriter.DEFAULT;
 
     public ExtractAssets(String name) {
         super(name);
@@ -32,27 +42,72 @@ public class ExtractAssets extends Task {
         return this;
     }
 
+    /**
+     * Also adds the objects of the given assets index to the assets jar, as {@code assets/<name>}, reading them from the
+     * {@link ObjectPack} in the given directory
+     */
+    public ExtractAssets includeObjects(String assetsIndex, String packDir) {
+        this.objectsIndex = assetsIndex;
+        this.objectsPack = packDir;
+        return this;
+    }
+
+    /**
+     * Sets the compression level of objects added from the pack, from 1 to 9, or {@link ZipWriter#STORED} to not
+     * compress them. Resources from the jars keep their compression. Defaults to {@link ZipWriter#DEFAULT}.
+     */
+    public ExtractAssets compression(int level) {
+        ZipWriter.checkLevel(level);
+        this.compression = level;
+        return this;
+    }
+
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
         File clientFile = new File(ctx.file(inputDir + "client_mapped.jar"));
         File serverFile = new File(ctx.file(inputDir + "server_mapped.jar"));
         File outFile = new File(ctx.file(outputDir + "assets.jar"));
 
-        if (outFile.exists()) {
+        ArtifactStore store = ctx.env().getArtifactStore();
+        Fingerprint fingerprint = Fingerprint.of(outFile)
+                                             .artifacts(store)
+                                             .input("client", clientFile)
+                                             .input("server", serverFile)
+                                             .config("compression", compression);
+
+        AssetsIndex index = null;
+        if (objectsIndex != null) {
+            index = ctx.env().getProperty(objectsIndex);
+            if (index == null)
+                throw new TaskFailException("Assets index was not properly loaded", this);
+
+            // Objects are addressed by hash, so their names and hashes identify them
+            StringBuilder objects = new StringBuilder();
+            for (AssetsIndex.Asset asset : index) {
+                objects.append(asset.getName()).append('=').append(asset.getHash()).append('\n');
+            }
+            fingerprint.config("objects", Hashing.sha1(objects.toString()));
+        }
+
+        if (fingerprint.isUpToDate()) {
             ctx.upToDate();
             return;
         }
+        fingerprint.invalidate();
 
         // Ensure output directory exists
         outFile.getParentFile().mkdirs();
 
-        try (ZipFile client = new ZipFile(clientFile);
-             ZipFile server = new ZipFile(serverFile);
-             JarOutputStream out = new JarOutputStream(new FileOutputStream(outFile))) {
+        long read;
+
+        try (RawZipFile client = store.open(clientFile);
+             RawZipFile server = store.open(serverFile);
+             ZipWriter out = store.create(outFile, compression, false)) {
+            read = client.length() + server.length();
 
             // All resource names to copy
             List<String> resources = Stream.of(client, server)
-                                           .flatMap(zip -> zip.stream().map(ZipEntry::getName))
+                                           .flatMap(zip -> zip.getEntries().stream().map(RawZipFile.Entry::getName))
                                            .distinct()
                                            .filter(name -> !name.endsWith(".class"))
                                            .collect(Collectors.toList());
@@ -61,27 +116,58 @@ public class ExtractAssets extends Task {
             int n = 0;
 
             for (String res : resources) {
-                ZipEntry entry1 = client.getEntry(res);
-                ZipEntry entry2 = server.getEntry(res);
+                RawZipFile.Entry entry1 = client.getEntry(res);
+                RawZipFile.Entry entry2 = server.getEntry(res);
 
                 // Get entry to copy
-                ZipEntry inEntry = entry1;
+                RawZipFile.Entry inEntry = entry1;
                 if (inEntry == null) inEntry = entry2;
                 if (inEntry == null) continue;
 
-                ZipFile inFile = inEntry == entry1 ? client : server;
+                RawZipFile inFile = inEntry == entry1 ? client : server;
 
-                // Copy entry
-                out.putNextEntry(new ZipEntry(inEntry.getName()));
-                try (InputStream in = inFile.getInputStream(inEntry)) {
-                    IO.copy(in, out);
-                }
-                out.closeEntry();
+                // Copy entry, without decompressing it
+                out.copy(inEntry.getName(), inFile, inEntry);
 
+                ctx.metrics().processed(1);
                 ctx.progress(n++, size);
             }
+
+            if (index != null) {
+                addObjects(ctx, index, new HashSet<>(resources), out);
+            }
         }
 
+        ctx.metrics().read(read);
+        ctx.metrics().written(outFile.length());
+
+        fingerprint.save();
         ctx.done();
     }
+
+    private void addObjects(TaskRunContext ctx, AssetsIndex index, Set<String> resources, ZipWriter out) throws Exception {
+        try (ObjectPack pack = ObjectPack.open(new File(ctx.file(objectsPack)))) {
+            int size = index.getAssets().size();
+            int n = 0;
+
+            for (AssetsIndex.Asset asset : index) {
+                // Resources in the jars take precedence
+                String name = "assets/" + asset.getName();
+                if (!resources.add(name))
+                    continue;
+
+                if (!pack.has(asset.getHash()))
+                    throw new TaskFailException("Object " + asset.getHash() + " (" + asset.getName() + ") is not in the pack", this);
+
+                try (InputStream in = pack.read(asset.getHash());
+                     OutputStream entryOut = out.open(name)) {
+                    IO.copy(in, entryOut);
+                }
+
+                ctx.metrics().read(asset.getSize());
+                ctx.metrics().processed(1);
+                ctx.progress(n++, size);
+            }
+        }
+    }
 }
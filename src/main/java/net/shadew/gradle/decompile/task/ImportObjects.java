@@ -0,0 +1,89 @@
+package net.shadew.gradle.decompile.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.ObjectPack;
+
+/**
+ * Imports loose objects ({@code <objectsDir>/<first two hash chars>/<hash>}) into an {@link ObjectPack}. Every object is
+ * verified against its hash while it is imported.
+ */
+public class ImportObjects extends Task {
+    private static final Pattern HASH = Pattern.compile("[0-9a-f]{40}");
+
+    private String objectsDir = Constants.OBJECTS_DIR;
+    private String packDir = Constants.PACK_DIR;
+    private boolean deleteLoose;
+
+    public ImportObjects(String name) {
+        super(name);
+    }
+
+    public ImportObjects objectsDir(String objectsDir) {
+        this.objectsDir = objectsDir;
+        return this;
+    }
+
+    public ImportObjects packDir(String packDir) {
+        this.packDir = packDir;
+        return this;
+    }
+
+    /**
+     * Sets whether loose objects are deleted once they are in the pack, defaults to false
+     */
+    public ImportObjects deleteLoose(boolean deleteLoose) {
+        this.deleteLoose = deleteLoose;
+        return this;
+    }
+
+    @Override
+    public void execute(TaskRunContext ctx) throws Exception {
+        File dir = new File(ctx.file(objectsDir));
+
+        List<File> objects = new ArrayList<>();
+        File[] buckets = dir.listFiles(File::isDirectory);
+        if (buckets != null) {
+            for (File bucket : buckets) {
+                File[] files = bucket.listFiles(f -> f.isFile() && HASH.matcher(f.getName()).matches());
+                if (files == null) continue;
+
+                for (File file : files) {
+                    if (file.getName().startsWith(bucket.getName()))
+                        objects.add(file);
+                }
+            }
+        }
+
+        int size = objects.size();
+        int n = 0;
+        int imported = 0;
+        try (ObjectPack pack = ObjectPack.openWritable(new File(ctx.file(packDir)))) {
+            for (File object : objects) {
+                String hash = object.getName();
+                if (pack.add(hash, object)) {
+                    imported++;
+                    ctx.metrics().read(object.length());
+                    ctx.metrics().written(object.length());
+                }
+                if (deleteLoose)
+                    object.delete();
+
+                ctx.metrics().processed(1);
+                ctx.progress(n++, size);
+            }
+        }
+
+        ctx.info("Imported " + imported + " of " + size + " objects");
+        if (imported == 0) {
+            ctx.upToDate();
+        } else {
+            ctx.done();
+        }
+    }
+}
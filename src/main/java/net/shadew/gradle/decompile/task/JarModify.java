@@ -1,18 +1,41 @@
 package net.shadew.gradle.decompile.task;
 
 import java.io.*;
-import java.util.Enumeration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
+import java.util.jar.JarInputStream;
 
 import net.shadew.gradle.decompile.TaskRunContext;
-import net.shadew.util.misc.IO;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.NamedThreadFactory;
+import net.shadew.gradle.decompile.util.RawZipFile;
+import net.shadew.gradle.decompile.util.ZipWriter;
 
 /**
  * A generic task that can filter, copy and modify files from one JAR file into another JAR file
+ * <p>
+ * Copied entries are not decompressed: their compressed data is copied into the output file as is. The input file is
+ * read through the environment's {@link ArtifactStore}, so it may be an intermediate jar kept in memory, and the output
+ * file can be kept in memory too (see {@link #intermediate}). When the input and output file are the same, the input is
+ * read into memory before it is rewritten.
+ * <p>
+ * Entries can be transformed in parallel (see {@link #parallelism}). Entries are then still read and written by the
+ * thread running the task, in the order of the input file, so the output is the same as when running sequentially. Only
+ * {@link #modify} runs on worker threads, so it must be thread safe in this mode.
  */
 public abstract class JarModify<T extends JarModify<T>> extends Task {
+    private int parallelism = 1;
+    private int window = -1;
+    private int compression = ZipWriter.DEFAULT;
+    private boolean intermediate;
     private boolean verify = true;
 
     public JarModify(String name) {
@@ -20,7 +43,8 @@ public abstract class JarModify<T extends JarModify<T>> extends Task {
     }
 
     /**
-     * Whether to verify the input jar on opening
+     * Whether to verify the signatures of the input jar before transforming it, defaults to true. Only signed jars are
+     * verified, which takes an extra pass over the jar since copied entries are never read.
      */
     @SuppressWarnings("unchecked")
     public T verify(boolean verify) {
@@ -28,6 +52,51 @@ public abstract class JarModify<T extends JarModify<T>> extends Task {
         return (T) this;
     }
 
+    /**
+     * Sets the amount of threads that transform entries, defaults to 1 (transform entries on the task's thread)
+     */
+    @SuppressWarnings("unchecked")
+    public T parallelism(int parallelism) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.parallelism = parallelism;
+        return (T) this;
+    }
+
+    /**
+     * Sets the maximum amount of entries that are read but not yet written when transforming in parallel, which caps
+     * the memory used for entries in flight. Defaults to four times the parallelism.
+     */
+    @SuppressWarnings("unchecked")
+    public T window(int window) {
+        if (window < 1)
+            throw new IllegalArgumentException("Window must be at least 1");
+        this.window = window;
+        return (T) this;
+    }
+
+    /**
+     * Sets the compression level of modified entries, from 1 to 9, or {@link ZipWriter#STORED} to not compress them.
+     * Copied entries keep their compression. Defaults to {@link ZipWriter#DEFAULT}.
+     */
+    @SuppressWarnings("unchecked")
+    public T compression(int level) {
+        ZipWriter.checkLevel(level);
+        this.compression = level;
+        return (T) this;
+    }
+
+    /**
+     * Keeps the output file in memory, in the environment's {@link ArtifactStore}, when the next task reads it right
+     * away. It is written to disk in the background once all tasks depending on this task have finished, or earlier
+     * when the store runs out of memory.
+     */
+    @SuppressWarnings("unchecked")
+    public T intermediate(boolean intermediate) {
+        this.intermediate = intermediate;
+        return (T) this;
+    }
+
     /**
      * Gets and returns the input file path
      */
@@ -66,10 +135,22 @@ public abstract class JarModify<T extends JarModify<T>> extends Task {
     protected abstract String modify(TaskRunContext ctx, JarEntry entry, InputStream in, OutputStream out) throws Exception;
 
     /**
-     * Returns whether this task is up to date
+     * Called with the input file before any entry is read. When entries are transformed in parallel, a task whose output
+     * depends on the order of the entries can compute what it needs from that order here.
      */
-    protected boolean isUpToDate(TaskRunContext ctx, File file) {
-        return file.exists();
+    protected void prepare(TaskRunContext ctx, RawZipFile in) throws Exception {
+    }
+
+    /**
+     * Creates the fingerprint that decides whether this task is up to date. By default this tracks the input and output
+     * file. Tasks that rewrite a file in place return {@code null}: they have no state of their own and should call
+     * {@link Fingerprint#refresh} on the rewritten file instead.
+     */
+    protected Fingerprint fingerprint(TaskRunContext ctx, File input, File output) throws Exception {
+        return Fingerprint.of(output)
+                          .artifacts(ctx.env().getArtifactStore())
+                          .input("input", input)
+                          .config("compression", compression);
     }
 
     @Override
@@ -77,62 +158,173 @@ public abstract class JarModify<T extends JarModify<T>> extends Task {
         File inputFile = new File(getInputFile(ctx));
         File outputFile = new File(getOutputFile(ctx));
 
-        if (isUpToDate(ctx, outputFile)) {
-            ctx.upToDate();
-            return;
+        Fingerprint fingerprint = fingerprint(ctx, inputFile, outputFile);
+        if (fingerprint != null) {
+            if (fingerprint.isUpToDate()) {
+                ctx.upToDate();
+                return;
+            }
+            fingerprint.invalidate();
         }
 
         // Ensure output directory exists
         outputFile.getParentFile().mkdirs();
 
-        try (JarFile in = new JarFile(inputFile, verify);
-             JarOutputStream out = new JarOutputStream(new FileOutputStream(outputFile));
+        ExecutorService executor = parallelism > 1
+                                   ? Executors.newFixedThreadPool(parallelism, new NamedThreadFactory(getName()))
+                                   : null;
+        int maxInFlight = window > 0 ? window : parallelism * 4;
+
+        ArtifactStore store = ctx.env().getArtifactStore();
+        boolean inPlace = inputFile.getAbsoluteFile().equals(outputFile.getAbsoluteFile());
+        RawZipFile in;
+        ZipWriter written;
 
-             // Use a copy buffer so we can let the task decide what name to give to an entry after writing
-             ByteArrayOutputStream baos = new ByteArrayOutputStream()) {
+        try (RawZipFile raw = inPlace ? store.load(inputFile) : store.open(inputFile);
+             ZipWriter out = store.create(outputFile, compression, intermediate, ctx.task())) {
+            in = raw;
+            written = out;
+            if (verify && isSigned(raw))
+                verifySignatures(raw);
+            prepare(ctx, raw);
 
-            int size = (int) in.stream().count();
+            int size = raw.getEntries().size();
             int n = 0;
 
-            Enumeration<JarEntry> entries = in.entries();
-            while (entries.hasMoreElements()) {
-                JarEntry entry = entries.nextElement();
+            // Transformed entries in input order, the head is written first
+            Deque<Future<Result>> inFlight = new ArrayDeque<>();
+
+            for (RawZipFile.Entry rawEntry : raw.getEntries()) {
+                JarEntry entry = new JarEntry(rawEntry.getName());
+                entry.setSize(rawEntry.getSize());
+                entry.setCompressedSize(rawEntry.getCompressedSize());
 
                 Action action = getAction(ctx, entry);
                 if (action == null || action == Action.IGNORE) continue;
 
-                String name = entry.getName();
-
-                // Copy or modify, open input and output streams
-                try (InputStream entryIn = in.getInputStream(entry)) {
-                    baos.reset();
-                    switch (action) {
-                        case COPY_RENAME:
-                            name = rename(ctx, entry);
-                        case COPY:
-                            IO.copy(entryIn, baos);
-                            break;
-
-                        // Modify the jar file, can use ASM or any kind of form
-                        case MODIFY:
-                            name = modify(ctx, entry, entryIn, baos);
-                            break;
-                    }
+                Result result = null;
+                if (action != Action.MODIFY) {
+                    // Copied entries don't need a worker, they're written without decompressing them
+                    String name = action == Action.COPY_RENAME ? rename(ctx, entry) : entry.getName();
+                    result = new Result(name, rawEntry);
+                } else if (executor == null) {
+                    result = modify(ctx, entry, new ByteArrayInputStream(raw.read(rawEntry)));
                 }
 
-                // Write copy buffer to output file
-                JarEntry outEntry = new JarEntry(name);
-                out.putNextEntry(outEntry);
-                baos.writeTo(out);
-                out.closeEntry();
+                if (executor == null) {
+                    write(out, raw, result);
+                    ctx.metrics().processed(1);
+                    ctx.progress(n++, size);
+                } else {
+                    if (result != null) {
+                        inFlight.add(CompletableFuture.completedFuture(result));
+                    } else {
+                        // Read on this thread, reading a jar in order is faster than reading it from many threads
+                        byte[] data = raw.read(rawEntry);
+                        inFlight.add(executor.submit(() -> modify(ctx, entry, new ByteArrayInputStream(data))));
+                    }
+
+                    // Block on the oldest entry when the window is full, the workers continue meanwhile
+                    while (inFlight.size() >= maxInFlight) {
+                        write(out, raw, take(inFlight.poll()));
+                        ctx.metrics().processed(1);
+                        ctx.progress(n++, size);
+                    }
+                }
+            }
 
+            while (!inFlight.isEmpty()) {
+                write(out, raw, take(inFlight.poll()));
+                ctx.metrics().processed(1);
                 ctx.progress(n++, size);
             }
+        } finally {
+            if (executor != null)
+                executor.shutdownNow();
         }
 
+        ctx.metrics().read(in.length());
+        ctx.metrics().written(written.getLength());
+
+        if (fingerprint != null)
+            fingerprint.save();
         ctx.done();
     }
 
+    private static boolean isSigned(RawZipFile raw) {
+        for (RawZipFile.Entry entry : raw.getEntries()) {
+            String name = entry.getName().toUpperCase(Locale.ROOT);
+            if (name.startsWith("META-INF/") && name.endsWith(".SF"))
+                return true;
+        }
+        return false;
+    }
+
+    private static void verifySignatures(RawZipFile raw) throws IOException {
+        // Reading an entry whose digest does not match the signature throws a SecurityException
+        try (JarInputStream in = new JarInputStream(raw.openStream(), true)) {
+            byte[] buf = new byte[8192];
+            while (in.getNextJarEntry() != null) {
+                while (in.read(buf) != -1) {
+                    // Just read it
+                }
+            }
+        } catch (SecurityException exc) {
+            throw new IOException("Invalid signature in " + raw.getFile() + ": " + exc.getMessage(), exc);
+        }
+    }
+
+    private Result modify(TaskRunContext ctx, JarEntry entry, InputStream in) throws Exception {
+        // Use a copy buffer so we can let the task decide what name to give to an entry after writing
+        Buffer out = new Buffer();
+        String name = modify(ctx, entry, in, out);
+        return new Result(name, out.deflate(compression));
+    }
+
+    private static Result take(Future<Result> future) throws Exception {
+        try {
+            return future.get();
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            throw exc;
+        }
+    }
+
+    private static void write(ZipWriter out, RawZipFile raw, Result result) throws IOException {
+        if (result.raw != null) {
+            out.copy(result.name, raw, result.raw);
+        } else {
+            out.write(result.name, result.data);
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        ZipWriter.Data deflate(int level) {
+            // Compress straight from the buffer, this runs on the worker in parallel mode
+            return ZipWriter.deflate(buf, 0, count, level);
+        }
+    }
+
+    private static class Result {
+        final String name;
+        final RawZipFile.Entry raw;
+        final ZipWriter.Data data;
+
+        Result(String name, RawZipFile.Entry raw) {
+            this.name = name;
+            this.raw = raw;
+            this.data = null;
+        }
+
+        Result(String name, ZipWriter.Data data) {
+            this.name = name;
+            this.raw = null;
+            this.data = data;
+        }
+    }
+
     public enum Action {
         IGNORE,
         COPY,
@@ -7,6 +7,7 @@ import net.shadew.asm.mappings.io.RMapMappingsIO;
 import net.shadew.asm.mappings.visit.FlipMappingsConverter;
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Fingerprint;
 
 public class JoinMappings extends Task {
     private String inputDir = Constants.VERSION_DIR;
@@ -32,10 +33,19 @@ public class JoinMappings extends Task {
         File serverFile = new File(ctx.file(inputDir + "server_mappings.txt"));
         File outFile = new File(ctx.file(outputDir + "mappings.rmap"));
 
-        if(outFile.exists()) {
+        Fingerprint fingerprint = Fingerprint.of(outFile)
+                                             .input("client", clientFile)
+                                             .input("server", serverFile)
+                                             .cacheable("joinMappings");
+        if (fingerprint.isUpToDate()) {
             ctx.upToDate();
             return;
         }
+        fingerprint.invalidate();
+        if (fingerprint.restore(ctx.env().getBuildCache())) {
+            ctx.finish("FROM-CACHE");
+            return;
+        }
 
         try (Reader clientReader = new FileReader(clientFile); Reader serverReader = new FileReader(serverFile); Writer writer = new FileWriter(outFile)) {
             FlipMappingsConverter converter = new FlipMappingsConverter();
@@ -44,6 +54,11 @@ public class JoinMappings extends Task {
             RMapMappingsIO.write(writer, converter.getMappings());
         }
 
+        ctx.metrics().read(clientFile.length() + serverFile.length());
+        ctx.metrics().written(outFile.length());
+
+        fingerprint.save();
+        fingerprint.store(ctx.env().getBuildCache());
         ctx.done();
     }
 }
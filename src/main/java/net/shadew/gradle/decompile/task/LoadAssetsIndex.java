@@ -5,6 +5,7 @@ import java.io.File;
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.AssetsIndex;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.SnapshotCache;
 
 public class LoadAssetsIndex extends Task {
     private String indexesDir = Constants.INDEXES_DIR;
@@ -32,7 +33,10 @@ public class LoadAssetsIndex extends Task {
         }
 
         File path = new File(ctx.file(indexesDir + ctx.assetsVersion() + ".json"));
-        AssetsIndex index = AssetsIndex.fromFile(path);
+        SnapshotCache snapshots = ctx.env().getSnapshotCache();
+        AssetsIndex index = snapshots == null
+                            ? AssetsIndex.fromFile(path)
+                            : snapshots.load("assets", path, AssetsIndex::fromFile, AssetsIndex::writeBinary, AssetsIndex::readBinary);
         ctx.env().setProperty(assetsIndex, index);
         ctx.done();
     }
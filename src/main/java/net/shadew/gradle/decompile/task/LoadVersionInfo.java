@@ -4,6 +4,7 @@ import java.io.File;
 
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.SnapshotCache;
 import net.shadew.gradle.decompile.util.VersionInfo;
 
 public class LoadVersionInfo extends Task {
@@ -32,7 +33,10 @@ public class LoadVersionInfo extends Task {
         }
 
         File path = new File(ctx.file(versionDir + "version.json"));
-        VersionInfo info = VersionInfo.fromFile(path);
+        SnapshotCache snapshots = ctx.env().getSnapshotCache();
+        VersionInfo info = snapshots == null
+                           ? VersionInfo.fromFile(path)
+                           : snapshots.load("version", path, VersionInfo::fromFile, VersionInfo::writeBinary, VersionInfo::readBinary);
         ctx.env().setProperty(versionInfo, info);
         ctx.env().setProperty(Constants.ASSETS_VERSION, info.getAssets());
         ctx.done();
@@ -4,8 +4,15 @@ import java.io.File;
 
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.SnapshotCache;
 import net.shadew.gradle.decompile.util.VersionManifest;
 
+/**
+ * Loads the version manifest into an environment property. The parsed manifest is kept as a snapshot in the
+ * environment's {@link SnapshotCache}, so that a manifest that was not modified is not parsed again, also not in a later
+ * run. Within one environment, the manifest is only loaded again when its file changed.
+ */
 public class LoadVersionManifest extends Task {
     private final String file;
     private String versionManifest = Constants.VERSION_MANIFEST;
@@ -22,14 +29,25 @@ public class LoadVersionManifest extends Task {
 
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
-        if(ctx.env().hasProperty(versionManifest)) {
+        File path = new File(ctx.file(file));
+
+        // Only load again when the file changed since we loaded it, a not-modified download leaves it untouched. The
+        // stamp is kept in the environment, next to the manifest itself. A manifest that was set without a stamp was
+        // not loaded by us, keep it.
+        String stamp = Fingerprint.stamp(path);
+        String stampProperty = versionManifest + "Stamp";
+        if (ctx.env().hasProperty(versionManifest)
+                && (!ctx.env().hasProperty(stampProperty) || stamp.equals(ctx.env().getProperty(stampProperty)))) {
             ctx.upToDate();
             return;
         }
 
-        File path = new File(ctx.file(file));
-        VersionManifest manifest = VersionManifest.fromFile(path);
+        SnapshotCache snapshots = ctx.env().getSnapshotCache();
+        VersionManifest manifest = snapshots == null
+                                   ? VersionManifest.fromFile(path)
+                                   : snapshots.load("manifest", path, VersionManifest::fromFile, VersionManifest::writeBinary, VersionManifest::readBinary);
         ctx.env().setProperty(versionManifest, manifest);
+        ctx.env().setProperty(stampProperty, stamp);
         ctx.done();
     }
 }
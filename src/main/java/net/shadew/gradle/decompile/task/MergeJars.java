@@ -5,23 +5,23 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.tree.*;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
 import java.util.*;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
-import java.util.zip.ZipEntry;
 
 import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.RawZipFile;
+import net.shadew.gradle.decompile.util.ZipWriter;
 
 public class MergeJars extends Task {
     private final String jar1;
     private final String jar2;
     private final AnnotationSupplier annotations;
     private final String outFile;
+    private int compression = ZipWriter.DEFAULT;
+    private boolean intermediate;
 
     public MergeJars(String name, String jar1, String jar2, AnnotationSupplier annotations, String out) {
         super(name);
@@ -31,27 +31,72 @@ public class MergeJars extends Task {
         this.outFile = out;
     }
 
+    /**
+     * Sets the compression level of merged classes, from 1 to 9, or {@link ZipWriter#STORED} to not compress them.
+     * Defaults to {@link ZipWriter#DEFAULT}.
+     */
+    public MergeJars compression(int level) {
+        ZipWriter.checkLevel(level);
+        this.compression = level;
+        return this;
+    }
+
+    /**
+     * Keeps the merged jar in memory, in the environment's {@link ArtifactStore}, when the next task reads it right
+     * away. It is only written to disk when the store runs out of memory.
+     */
+    public MergeJars intermediate(boolean intermediate) {
+        this.intermediate = intermediate;
+        return this;
+    }
+
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
         File in1 = new File(ctx.file(jar1));
         File in2 = new File(ctx.file(jar2));
         File out = new File(ctx.file(outFile));
-
-        if (out.exists()) {
+        ArtifactStore store = ctx.env().getArtifactStore();
+
+        // Record whole annotations, a change to any of their values changes the merged classes. The interface
+        // annotation gets sample interfaces, so that values listing the interfaces are recorded too.
+        String selfExclusiveLeft = describe(annotations.getSelfExclusiveLeft());
+        String selfExclusiveRight = describe(annotations.getSelfExclusiveRight());
+        String interfaceExclusive = describe(annotations.getInterfaceExclusive(
+            Collections.singleton("left/Interface"),
+            Collections.singleton("right/Interface")
+        ));
+
+        Fingerprint fingerprint = Fingerprint.of(out)
+                                             .artifacts(store)
+                                             .input("jar1", in1)
+                                             .input("jar2", in2)
+                                             .config("selfExclusiveLeft", selfExclusiveLeft)
+                                             .config("selfExclusiveRight", selfExclusiveRight)
+                                             .config("interfaceExclusive", interfaceExclusive)
+                                             .config("compression", compression)
+                                             .cacheable("mergeJars");
+        if (fingerprint.isUpToDate()) {
             ctx.upToDate();
             return;
         }
+        fingerprint.invalidate();
+        if (fingerprint.restore(ctx.env().getBuildCache())) {
+            ctx.finish("FROM-CACHE");
+            return;
+        }
 
-        // Ensure output directory exists
-        out.getParentFile().mkdirs();
+        long read;
+        ZipWriter written;
 
-        try (JarFile jar1 = new JarFile(in1, false);
-             JarFile jar2 = new JarFile(in2, false);
-             JarOutputStream jarOut = new JarOutputStream(new FileOutputStream(out))) {
+        try (RawZipFile jar1 = store.open(in1);
+             RawZipFile jar2 = store.open(in2);
+             ZipWriter jarOut = store.create(out, compression, intermediate, ctx.task())) {
+            read = jar1.length() + jar2.length();
+            written = jarOut;
 
             // Collect all classes to merge
             List<String> classes = Stream.of(jar1, jar2)
-                                         .flatMap(jar -> jar.stream().map(ZipEntry::getName))
+                                         .flatMap(jar -> jar.getEntries().stream().map(RawZipFile.Entry::getName))
                                          .distinct()
                                          .filter(name -> name.endsWith(".class"))
                                          .collect(Collectors.toList());
@@ -59,8 +104,8 @@ public class MergeJars extends Task {
             int size = classes.size();
             int n = 0;
             for (String cls : classes) {
-                JarEntry entry1 = jar1.getJarEntry(cls);
-                JarEntry entry2 = jar2.getJarEntry(cls);
+                RawZipFile.Entry entry1 = jar1.getEntry(cls);
+                RawZipFile.Entry entry2 = jar2.getEntry(cls);
 
                 // Read input classes
                 ClassNode cls1 = getClass(jar1, entry1);
@@ -74,29 +119,31 @@ public class MergeJars extends Task {
                 merged.accept(writer);
 
                 // Write to output
-                JarEntry outEntry = new JarEntry(entry1.getName());
-                jarOut.putNextEntry(outEntry);
-                jarOut.write(writer.toByteArray());
-                jarOut.closeEntry();
+                byte[] bytes = writer.toByteArray();
+                jarOut.write(cls, bytes, 0, bytes.length);
 
+                ctx.metrics().processed(1);
                 ctx.progress(n ++, size);
             }
         }
 
+        ctx.metrics().read(read);
+        ctx.metrics().written(written.getLength());
+
+        fingerprint.save();
+        fingerprint.store(ctx.env().getBuildCache());
         ctx.done();
     }
 
     /**
      * Reads an ASM class from a JAR file
      */
-    private static ClassNode getClass(JarFile file, JarEntry entry) throws Exception {
+    private static ClassNode getClass(RawZipFile file, RawZipFile.Entry entry) throws Exception {
         if (entry == null) return null;
-        try (InputStream in = file.getInputStream(entry)) {
-            ClassNode out = new ClassNode();
-            ClassReader reader = new ClassReader(in);
-            reader.accept(out, ClassReader.EXPAND_FRAMES);
-            return out;
-        }
+        ClassNode out = new ClassNode();
+        ClassReader reader = new ClassReader(file.read(entry));
+        reader.accept(out, ClassReader.EXPAND_FRAMES);
+        return out;
     }
 
     /**
@@ -334,6 +381,46 @@ public class MergeJars extends Task {
         return a.values.equals(b.values) ? a : null;
     }
 
+    /**
+     * Describes an annotation by its descriptor and all its values, so that changing any of them changes the
+     * description
+     */
+    private static String describe(AnnotationNode node) {
+        StringBuilder out = new StringBuilder(node.desc);
+        if (node.values != null) {
+            out.append('(');
+            for (int i = 0; i < node.values.size(); i += 2) {
+                if (i > 0) out.append(',');
+                out.append(node.values.get(i)).append('=');
+                describe(node.values.get(i + 1), out);
+            }
+            out.append(')');
+        }
+        return out.toString();
+    }
+
+    private static void describe(Object value, StringBuilder out) {
+        if (value instanceof AnnotationNode) {
+            out.append(describe((AnnotationNode) value));
+        } else if (value instanceof List) {
+            out.append('{');
+            List<?> list = (List<?>) value;
+            for (int i = 0; i < list.size(); i++) {
+                if (i > 0) out.append(',');
+                describe(list.get(i), out);
+            }
+            out.append('}');
+        } else if (value instanceof String[]) {
+            // Enum value, as descriptor and constant name
+            out.append(String.join(".", (String[]) value));
+        } else if (value instanceof String) {
+            out.append('"').append(value).append('"');
+        } else {
+            // Primitives and types, whose string form is their descriptor
+            out.append(value);
+        }
+    }
+
     /**
      * Returns whether the given list is empty or null
      */
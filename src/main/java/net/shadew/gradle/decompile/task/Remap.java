@@ -5,24 +5,44 @@ import org.objectweb.asm.commons.ClassRemapper;
 import org.objectweb.asm.tree.ClassNode;
 
 import java.io.*;
-import java.util.List;
-import java.util.jar.JarEntry;
-import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import net.shadew.asm.mappings.io.RMapMappingsIO;
 import net.shadew.asm.mappings.model.Mappings;
 import net.shadew.asm.mappings.remap.*;
 import net.shadew.gradle.decompile.TaskRunContext;
-import net.shadew.util.misc.IO;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.RawZipFile;
+import net.shadew.gradle.decompile.util.ZipWriter;
 
 public abstract class Remap extends Task {
+    private int compression = ZipWriter.DEFAULT;
+    private boolean intermediate;
+
     protected Remap(String name) {
         super(name);
     }
 
+    /**
+     * Sets the compression level of remapped classes, from 1 to 9, or {@link ZipWriter#STORED} to not compress them.
+     * Resources keep their compression. Defaults to {@link ZipWriter#DEFAULT}.
+     */
+    public Remap compression(int level) {
+        ZipWriter.checkLevel(level);
+        this.compression = level;
+        return this;
+    }
+
+    /**
+     * Keeps the remapped jar in memory, in the environment's {@link ArtifactStore}, when the next task reads it right
+     * away. It is only written to disk when the store runs out of memory.
+     */
+    public Remap intermediate(boolean intermediate) {
+        this.intermediate = intermediate;
+        return this;
+    }
+
     protected abstract String mappings(TaskRunContext ctx);
     protected abstract String inJar(TaskRunContext ctx);
     protected abstract String outJar(TaskRunContext ctx);
@@ -32,21 +52,36 @@ public abstract class Remap extends Task {
         File mappings = new File(mappings(ctx));
         File inJar = new File(inJar(ctx));
         File outJar = new File(outJar(ctx));
-
-        if (outJar.exists()) {
+        ArtifactStore store = ctx.env().getArtifactStore();
+
+        Fingerprint fingerprint = Fingerprint.of(outJar)
+                                             .artifacts(store)
+                                             .input("mappings", mappings)
+                                             .input("jar", inJar)
+                                             .config("compression", compression)
+                                             .cacheable("remap");
+        if (fingerprint.isUpToDate()) {
             ctx.upToDate();
             return;
         }
+        fingerprint.invalidate();
+        if (fingerprint.restore(ctx.env().getBuildCache())) {
+            ctx.finish("FROM-CACHE");
+            return;
+        }
 
-        outJar.getParentFile().mkdirs();
-
+        RawZipFile in;
+        ZipWriter written;
 
-        try (JarClassSource source = new JarClassSource(inJar);
+        try (RawZipFile raw = store.open(inJar);
+             JarClassSource source = new JarClassSource(raw);
              FileReader reader = new FileReader(mappings);
              Stream<ClassReference> classes = source.allClasses();
              Stream<ClassReference> classes2 = source.allClasses();
              AsmCache cache = new AsmCache(source, 1024);
-             JarClassExport exp = new JarClassExport(outJar)) {
+             JarClassExport exp = new JarClassExport(store.create(outJar, compression, intermediate, ctx.task()))) {
+            in = raw;
+            written = exp.getOut();
 
             int size = (int) classes2.count();
             int[] n = {0};
@@ -67,52 +102,47 @@ public abstract class Remap extends Task {
                     }
 
                     n[0] ++;
+                    ctx.metrics().processed(1);
                     ctx.progress((double) n[0] / size);
                 } catch (Exception exc) {
                     throw new RuntimeException(exc);
                 }
             });
 
-            JarFile jarFile = source.getJar();
-            List<JarEntry> resources = jarFile.stream()
-                                              .filter(e -> !e.getName().endsWith(".class"))
-//                                              .filter(e -> !e.getName().endsWith("MANIFEST.MF"))
-                                              .collect(Collectors.toList());
-            JarOutputStream jarOut = exp.getOut();
-
-            for(JarEntry e : resources) {
-                try(InputStream in = jarFile.getInputStream(e)) {
-                    jarOut.putNextEntry(e);
-                    IO.copy(in, jarOut);
-                    jarOut.closeEntry();
-                }
+            // Resources are not remapped, copy them without decompressing them
+            ZipWriter out = exp.getOut();
+            for (RawZipFile.Entry e : raw.getEntries()) {
+                if (!e.getName().endsWith(".class"))
+                    out.copy(e.getName(), raw, e);
             }
         }
 
+        ctx.metrics().read(in.length() + mappings.length());
+        ctx.metrics().written(written.getLength());
+
+        fingerprint.save();
+        fingerprint.store(ctx.env().getBuildCache());
         ctx.done();
     }
 
     private static class JarClassSource implements ClassSource {
-        private final JarFile jar;
+        private final RawZipFile jar;
 
-        JarClassSource(File file) throws IOException {
-            this.jar = new JarFile(file);
-        }
-
-        public JarFile getJar() {
-            return jar;
+        JarClassSource(RawZipFile jar) {
+            this.jar = jar;
         }
 
         @Override
         public ClassReference resolveClass(String internalName) {
-            JarEntry entry = jar.getJarEntry(internalName + ".class");
+            RawZipFile.Entry entry = jar.getEntry(internalName + ".class");
             if (entry == null) return null;
             return new Ref(internalName, jar, entry);
         }
 
         @Override
         public Stream<ClassReference> allClasses() {
-            return jar.stream()
+            return jar.getEntries()
+                      .stream()
                       .filter(entry -> entry.getName().endsWith(".class"))
                       .map(entry -> {
                           String name = entry.getName();
@@ -122,16 +152,16 @@ public abstract class Remap extends Task {
         }
 
         @Override
-        public void close() throws IOException {
-            jar.close();
+        public void close() {
+            // The jar is closed by the task
         }
 
         private static class Ref implements ClassReference {
             private final String name;
-            private final JarFile jar;
-            private final JarEntry entry;
+            private final RawZipFile jar;
+            private final RawZipFile.Entry entry;
 
-            private Ref(String name, JarFile jar, JarEntry entry) {
+            private Ref(String name, RawZipFile jar, RawZipFile.Entry entry) {
                 this.name = name;
                 this.jar = jar;
                 this.entry = entry;
@@ -144,27 +174,24 @@ public abstract class Remap extends Task {
 
             @Override
             public InputStream openStream() throws IOException {
-                return jar.getInputStream(entry);
+                return new ByteArrayInputStream(jar.read(entry));
             }
         }
     }
 
     private static class JarClassExport implements ClassExport {
-        private final JarOutputStream out;
-        private final WrappingStream wrapper = new WrappingStream();
+        private final ZipWriter out;
 
-        JarClassExport(File jar) throws IOException {
-            jar.getParentFile().mkdirs();
-            this.out = new JarOutputStream(new FileOutputStream(jar));
+        JarClassExport(ZipWriter out) {
+            this.out = out;
         }
 
         @Override
-        public OutputStream export(String className) throws IOException {
-            out.putNextEntry(new JarEntry(className + ".class"));
-            return wrapper;
+        public OutputStream export(String className) {
+            return out.open(className + ".class");
         }
 
-        public JarOutputStream getOut() {
+        public ZipWriter getOut() {
             return out;
         }
 
@@ -172,27 +199,5 @@ public abstract class Remap extends Task {
         public void close() throws IOException {
             out.close();
         }
-
-        private class WrappingStream extends OutputStream {
-            @Override
-            public void write(int b) throws IOException {
-                out.write(b);
-            }
-
-            @Override
-            public void write(byte[] b) throws IOException {
-                out.write(b);
-            }
-
-            @Override
-            public void write(byte[] b, int off, int len) throws IOException {
-                out.write(b, off, len);
-            }
-
-            @Override
-            public void close() throws IOException {
-                out.closeEntry();
-            }
-        }
     }
 }
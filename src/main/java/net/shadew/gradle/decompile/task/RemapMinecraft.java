@@ -25,7 +25,7 @@ public class RemapMinecraft extends Remap {
 
     @Override
     protected String inJar(TaskRunContext ctx) {
-        return ctx.file(versionDir + type.name().toLowerCase() + ".jar");
+        return ctx.file(versionDir + type.input);
     }
 
     @Override
@@ -34,7 +34,14 @@ public class RemapMinecraft extends Remap {
     }
 
     public enum Type {
-        CLIENT,
-        SERVER
+        CLIENT("client.jar"),
+        // The server jar without its bundled libraries, see StripLibraries
+        SERVER("server_stripped.jar");
+
+        private final String input;
+
+        Type(String input) {
+            this.input = input;
+        }
     }
 }
@@ -1,13 +1,16 @@
 package net.shadew.gradle.decompile.task;
 
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.tree.ClassNode;
 import org.objectweb.asm.tree.LocalVariableNode;
 import org.objectweb.asm.tree.MethodNode;
 
 import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -15,12 +18,17 @@ import java.util.jar.JarEntry;
 
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.RawZipFile;
 
 public class RenameVars extends ASM {
     private String versionDir = Constants.VERSION_DIR;
 
     public RenameVars(String name) {
         super(name);
+
+        // The numbering is computed up front (see prepare), so classes can be transformed in parallel
+        parallelism(Runtime.getRuntime().availableProcessors());
     }
 
     public RenameVars versionDir(String versionDir) {
@@ -30,7 +38,8 @@ public class RenameVars extends ASM {
 
     @Override
     protected String getInputFile(TaskRunContext ctx) {
-        return ctx.file(versionDir + "_tmp.jar");
+        // Rewritten in place, the input is read into memory first
+        return ctx.file(versionDir + "merged.jar");
     }
 
     @Override
@@ -38,22 +47,56 @@ public class RenameVars extends ASM {
         return ctx.file(versionDir + "merged.jar");
     }
 
+    // The first number of each method, per class entry, in the order of the methods in the class
+    private final Map<String, int[]> firsts = new HashMap<>();
+
+    @Override
+    protected void prepare(TaskRunContext ctx, RawZipFile in) throws Exception {
+        // Variables are numbered per method name and descriptor, counting on through the whole jar in input order. Count
+        // the variables of every method in that order first, so each method knows its first number when classes are
+        // transformed in parallel. Frames are skipped, the local variable table is all we look at.
+        firsts.clear();
+        Map<Integer, Integer> idcs = new HashMap<>();
+        for (RawZipFile.Entry entry : in.getEntries()) {
+            if (getAction(ctx, new JarEntry(entry.getName())) != Action.MODIFY) continue;
+
+            List<Integer> methods = new ArrayList<>();
+            new ClassReader(in.read(entry)).accept(new ClassVisitor(Opcodes.ASM8) {
+                @Override
+                public MethodVisitor visitMethod(int access, String name, String desc, String signature, String[] exceptions) {
+                    boolean isStatic = (access & Opcodes.ACC_STATIC) != 0;
+                    int hash = (name + desc).hashCode();
+                    methods.add(idcs.computeIfAbsent(hash, k -> 0));
+
+                    return new MethodVisitor(Opcodes.ASM8) {
+                        @Override
+                        public void visitLocalVariable(String name, String desc, String signature, Label start, Label end, int index) {
+                            if (isStatic || index != 0)
+                                idcs.merge(hash, 1, Integer::sum);
+                        }
+                    };
+                }
+            }, ClassReader.SKIP_FRAMES);
+
+            firsts.put(entry.getName(), methods.stream().mapToInt(Integer::intValue).toArray());
+        }
+    }
+
     @Override
     protected ClassNode modify(TaskRunContext ctx, JarEntry entry, ClassNode node) {
-        for(MethodNode m : node.methods) {
-            modify(m);
+        int[] first = firsts.get(entry.getName());
+        for (int i = 0; i < node.methods.size(); i++) {
+            modify(node.methods.get(i), first[i]);
         }
         return node;
     }
 
-    private Map<Integer, Integer> idcs = new HashMap<>();
-
-    protected void modify(MethodNode node) {
+    protected void modify(MethodNode node, int first) {
         int s = node.access & Opcodes.ACC_STATIC;
         boolean isStatic = s != 0;
 
         int hash = (node.name + node.desc).hashCode();
-        int n = idcs.computeIfAbsent(hash, k -> 0);
+        int n = first;
 
         if (node.localVariables != null) {
             List<LocalVariableNode> list = node.localVariables;
@@ -66,23 +109,22 @@ public class RenameVars extends ASM {
                 }
             }
         }
-
-        idcs.put(hash, n);
     }
 
     @Override
     public void execute(TaskRunContext ctx) throws Exception {
-        File file = new File(ctx.file(versionDir + "merged.jar"));
-        File tmp = new File(ctx.file(versionDir + "_tmp.jar"));
-
-        tmp.getParentFile().mkdirs();
-        Files.move(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
         try {
-            idcs.clear();
             super.execute(ctx);
         } finally {
-            tmp.delete();
+            firsts.clear();
         }
+
+        // The file is owned by the task this action runs after, update its recorded state
+        Fingerprint.refresh(new File(getOutputFile(ctx)), ctx.env().getArtifactStore());
+    }
+
+    @Override
+    protected Fingerprint fingerprint(TaskRunContext ctx, File input, File output) {
+        return null;
     }
 }
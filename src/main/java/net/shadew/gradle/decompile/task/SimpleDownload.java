@@ -9,6 +9,7 @@ public class SimpleDownload extends Download {
     private final String to;
     private boolean lazy;
     private boolean doUpToDate = false;
+    private boolean conditional = true;
 
     public SimpleDownload(String name, String url, String to) {
         super(name);
@@ -26,6 +27,14 @@ public class SimpleDownload extends Download {
         return this;
     }
 
+    /**
+     * Sets whether to only download the file again when the server reports it changed, defaults to true
+     */
+    public SimpleDownload conditional(boolean conditional) {
+        this.conditional = conditional;
+        return this;
+    }
+
     @Override
     protected String getDownloadUrl(TaskRunContext ctx) {
         return url;
@@ -45,4 +54,9 @@ public class SimpleDownload extends Download {
     protected boolean lazyWhenOffline(File file) {
         return file.exists() && lazy;
     }
+
+    @Override
+    protected boolean conditional(TaskRunContext ctx) {
+        return conditional;
+    }
 }
@@ -1,12 +1,12 @@
 package net.shadew.gradle.decompile.task;
 
-import java.io.File;
-import java.nio.file.Files;
-import java.nio.file.StandardCopyOption;
-
 import net.shadew.gradle.decompile.TaskRunContext;
 import net.shadew.gradle.decompile.util.Constants;
 
+/**
+ * Strips the bundled libraries from the server jar. The stripped jar is written next to the downloaded jar as
+ * {@code server_stripped.jar}, so that the download stays verifiable and is not downloaded again on the next run.
+ */
 public class StripLibraries extends FilterJar<StripLibraries> {
     private String versionDir = Constants.VERSION_DIR;
 
@@ -16,12 +16,12 @@ public class StripLibraries extends FilterJar<StripLibraries> {
 
     @Override
     protected String getInputFile(TaskRunContext ctx) {
-        return ctx.file(versionDir + "_tmp.jar");
+        return ctx.file(versionDir + "server.jar");
     }
 
     @Override
     protected String getOutputFile(TaskRunContext ctx) {
-        return ctx.file(versionDir + "server.jar");
+        return ctx.file(versionDir + "server_stripped.jar");
     }
 
     @Override
@@ -31,19 +31,4 @@ public class StripLibraries extends FilterJar<StripLibraries> {
                    || name.startsWith("assets/")
                    || name.startsWith("data/");
     }
-
-    @Override
-    public void execute(TaskRunContext ctx) throws Exception {
-        File file = new File(ctx.file(versionDir + "server.jar"));
-        File tmp = new File(ctx.file(versionDir + "_tmp.jar"));
-
-        tmp.getParentFile().mkdirs();
-        Files.move(file.toPath(), tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
-
-        try {
-            super.execute(ctx);
-        } finally {
-            tmp.delete();
-        }
-    }
 }
@@ -6,6 +6,7 @@ import java.util.List;
 import java.util.Set;
 
 import net.shadew.gradle.decompile.TaskFailException;
+import net.shadew.gradle.decompile.TaskMetrics;
 import net.shadew.gradle.decompile.TaskRunContext;
 
 /**
@@ -87,17 +88,28 @@ public abstract class Task implements Action {
     }
 
     /**
-     * Runs this task, including all first and last actions, but not it's dependencies
+     * Runs this task, including all first and last actions, but not it's dependencies. Each action is measured
+     * separately in the context's {@link TaskMetrics}.
      */
     public final void run(TaskRunContext ctx) throws Exception {
         for (Action first : doFirst) {
-            first.execute(ctx);
+            run(ctx, first, "doFirst");
         }
-        execute(ctx);
+        run(ctx, this, "execute");
         for (Action action : doLast) {
             if(!ctx.doesSkipLast()) {
-                action.execute(ctx);
+                run(ctx, action, "doLast");
             }
         }
     }
+
+    private static void run(TaskRunContext ctx, Action action, String kind) throws Exception {
+        String name = action instanceof Task ? ((Task) action).getName() : kind;
+        TaskMetrics.Span span = ctx.metrics().begin(name, kind);
+        try {
+            action.execute(ctx);
+        } finally {
+            span.end();
+        }
+    }
 }
@@ -44,10 +44,12 @@ public class Unzip extends Task {
                     }
                 }
 
+                ctx.metrics().processed(1);
                 ctx.progress(n++, size);
             }
         }
 
+        ctx.metrics().read(in.length());
         ctx.done();
     }
 }
@@ -0,0 +1,324 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps intermediate jars in memory, so that the next task can read them without touching disk. An artifact is named
+ * by the file it would otherwise be written to: tasks write it with {@link #create} and read it with {@link #open},
+ * which falls back to the file on disk when the artifact is not in memory.
+ * <p>
+ * Final artifacts are written to disk right away. Intermediate artifacts stay in memory until the memory budget is
+ * exceeded, at which point the oldest ones are spilled to their files, or until they are released (see
+ * {@link #release}), at which point they are written to their files too. This way every artifact ends up on disk, so
+ * that the tasks producing and reading it are up to date in a later run. An artifact in memory has no file on disk, so
+ * any {@link Fingerprint} that tracks it must be given this store (see {@link Fingerprint#artifacts}).
+ */
+public class ArtifactStore {
+    private final Map<File, Artifact> artifacts = new LinkedHashMap<>();
+    private long budget;
+    private long used;
+
+    public ArtifactStore(long budget) {
+        this.budget = budget;
+    }
+
+    /**
+     * Sets the maximum amount of bytes kept in memory, spilling artifacts when the new budget is exceeded
+     */
+    public void setBudget(long budget) throws IOException {
+        List<File> evicted;
+        synchronized (this) {
+            this.budget = budget;
+            evicted = evict();
+        }
+        spill(evicted);
+    }
+
+    public synchronized long getBudget() {
+        return budget;
+    }
+
+    /**
+     * Returns the amount of bytes kept in memory
+     */
+    public synchronized long getUsed() {
+        return used;
+    }
+
+    /**
+     * Opens a writer for an artifact. A final artifact is written to its file. An intermediate artifact is kept in
+     * memory when the writer is closed, and any stale file is deleted so that nothing reads it by accident.
+     *
+     * @param file         The file of the artifact
+     * @param level        The compression level, see {@link ZipWriter}
+     * @param intermediate Whether the artifact is intermediate
+     */
+    public ZipWriter create(File file, int level, boolean intermediate) throws IOException {
+        return create(file, level, intermediate, null);
+    }
+
+    /**
+     * Opens a writer for an artifact like {@link #create(File, int, boolean)}, where an intermediate artifact belongs to
+     * the given owner until it is released with {@link #release}
+     *
+     * @param file         The file of the artifact
+     * @param level        The compression level, see {@link ZipWriter}
+     * @param intermediate Whether the artifact is intermediate
+     * @param owner        The owner of the artifact, usually the task creating it, or null
+     */
+    public ZipWriter create(File file, int level, boolean intermediate, Object owner) throws IOException {
+        File abs = file.getAbsoluteFile();
+        remove(abs);
+        abs.getParentFile().mkdirs();
+
+        if (!intermediate)
+            return new ZipWriter(abs, level);
+
+        Files.deleteIfExists(abs.toPath());
+        return new ZipWriter(abs, new Buffer(abs, owner), level);
+    }
+
+    /**
+     * Opens an artifact, from memory when it is kept in memory and from its file otherwise
+     */
+    public RawZipFile open(File file) throws IOException {
+        Artifact artifact = get(file);
+        if (artifact != null)
+            return new RawZipFile(file, artifact.data);
+        return new RawZipFile(file);
+    }
+
+    /**
+     * Opens an artifact like {@link #open}, but reads it into memory when it is on disk, so that its file can be
+     * replaced while it is open
+     */
+    public RawZipFile load(File file) throws IOException {
+        Artifact artifact = get(file);
+        if (artifact != null)
+            return new RawZipFile(file, artifact.data);
+        return new RawZipFile(file, ByteBuffer.wrap(Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * Returns whether an artifact is kept in memory
+     */
+    public boolean contains(File file) {
+        return get(file) != null;
+    }
+
+    /**
+     * Returns the SHA-1 hash of an artifact kept in memory, or null when it is not kept in memory. This is the hash its
+     * file would have.
+     */
+    public String hash(File file) {
+        Artifact artifact = get(file);
+        return artifact != null ? artifact.hash : null;
+    }
+
+    /**
+     * Writes an artifact kept in memory to another file, for example to store it in a {@link BuildCache}. The artifact
+     * stays in memory. Returns false when it is not kept in memory.
+     */
+    public boolean copy(File file, File target) throws IOException {
+        Artifact artifact = get(file);
+        if (artifact == null)
+            return false;
+
+        write(target.getAbsoluteFile(), artifact.data);
+        return true;
+    }
+
+        private synchronized Artifact get(File file) {
+        return artifacts.get(file.getAbsoluteFile());
+    }
+
+    /**
+     * Drops an artifact from memory, without writing it to disk
+     */
+    public synchronized void remove(File file) {
+        File abs = file.getAbsoluteFile();
+        Artifact artifact = artifacts.get(abs);
+        if (artifact != null)
+            drop(abs, artifact);
+    }
+
+    /**
+     * Writes an artifact to its file and drops it from memory. Does nothing when it is not kept in memory.
+     */
+    public void spill(File file) throws IOException {
+        File abs = file.getAbsoluteFile();
+        Artifact artifact = get(abs);
+        if (artifact == null)
+            return;
+
+        // Write without holding the lock, other tasks may use the store meanwhile
+        write(abs, artifact.data);
+        synchronized (this) {
+            if (artifacts.get(abs) == artifact)
+                drop(abs, artifact);
+        }
+    }
+
+    /**
+     * Writes the artifacts of the given owner to their files and drops them from memory. Call this once nothing reads
+     * them anymore.
+     */
+    public void release(Object owner) throws IOException {
+        List<File> owned = new ArrayList<>();
+        synchronized (this) {
+            artifacts.forEach((file, artifact) -> {
+                if (owner.equals(artifact.owner))
+                    owned.add(file);
+            });
+        }
+        spill(owned);
+    }
+
+    /**
+     * Writes all artifacts to their files and drops them from memory
+     */
+    public void spillAll() throws IOException {
+        List<File> files;
+        synchronized (this) {
+            files = new ArrayList<>(artifacts.keySet());
+        }
+        spill(files);
+    }
+
+    private void spill(List<File> files) throws IOException {
+        for (File file : files) {
+            spill(file);
+        }
+    }
+
+    private void publish(File file, Object owner, byte[] data, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(data, 0, len).slice();
+        String hash = Hashing.sha1(data, 0, len);
+
+        List<File> evicted;
+        synchronized (this) {
+            if (len > budget) {
+                evicted = null;
+            } else {
+                remove(file);
+                artifacts.put(file, new Artifact(buf, hash, owner));
+                used += len;
+                evicted = evict();
+            }
+        }
+
+        // Write without holding the lock, like spill
+        if (evicted == null) {
+            // Would never fit, don't push out everything else for it
+            write(file, buf);
+            return;
+        }
+        spill(evicted);
+    }
+
+    /**
+     * Picks the artifacts to spill until the budget is no longer exceeded, the oldest first since these are the least
+     * likely to be read again. They stay readable from memory until they are written and no longer count against the
+     * budget, so that another task publishing meanwhile does not pick them again.
+     */
+    private List<File> evict() {
+        List<File> evicted = new ArrayList<>();
+        Iterator<Map.Entry<File, Artifact>> itr = artifacts.entrySet().iterator();
+        while (used > budget && itr.hasNext()) {
+            Map.Entry<File, Artifact> e = itr.next();
+            Artifact artifact = e.getValue();
+            if (artifact.evicted)
+                continue;
+
+            artifact.evicted = true;
+            used -= artifact.data.capacity();
+            evicted.add(e.getKey());
+        }
+        return evicted;
+    }
+
+    private void drop(File file, Artifact artifact) {
+        artifacts.remove(file);
+        if (!artifact.evicted)
+            used -= artifact.data.capacity();
+    }
+
+    private static void write(File file, ByteBuffer data) throws IOException {
+        file.getParentFile().mkdirs();
+        // A file of our own, the same artifact may be spilled twice at once
+        File tmp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                ByteBuffer buf = data.duplicate();
+                while (buf.hasRemaining()) {
+                    out.getChannel().write(buf);
+                }
+            }
+            Downloader.move(tmp, file);
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    private static class Artifact {
+        final ByteBuffer data;
+        final String hash;
+        final Object owner;
+        boolean evicted;
+
+        Artifact(ByteBuffer data, String hash, Object owner) {
+            this.data = data;
+            this.hash = hash;
+            this.owner = owner;
+        }
+    }
+
+    private class Buffer extends ByteArrayOutputStream implements WritableByteChannel {
+        private final File file;
+        private final Object owner;
+        private boolean open = true;
+
+        Buffer(File file, Object owner) {
+            super(8192);
+            this.file = file;
+            this.owner = owner;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            int len = src.remaining();
+            if (src.hasArray()) {
+                write(src.array(), src.arrayOffset() + src.position(), len);
+                src.position(src.limit());
+            } else {
+                byte[] bytes = new byte[len];
+                src.get(bytes);
+                write(bytes, 0, len);
+            }
+            return len;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!open) return;
+            open = false;
+            publish(file, owner, buf, count);
+        }
+    }
+}
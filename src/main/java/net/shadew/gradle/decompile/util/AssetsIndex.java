@@ -2,77 +2,400 @@ package net.shadew.gradle.decompile.util;
 
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+/**
+ * An assets index, stored compactly so that many indexes can be kept in memory. Assets are not stored as objects but in
+ * parallel arrays: names (interned, so that indexes of different versions share them), hashes as 20 bytes each in one
+ * array, and sizes. Lookups by name and by hash go through open-addressing tables of array indices.
+ * <p>
+ * {@link Asset} instances are lightweight views on these arrays that are created when needed. Code that walks large
+ * indexes repeatedly can use the index-based accessors ({@link #size()}, {@link #getName(int)}, {@link #getSize(int)},
+ * {@link #copyHash}) instead, which don't allocate anything.
+ */
 public class AssetsIndex implements Iterable<AssetsIndex.Asset> {
-    private final Map<String, Asset> assets;
-    private final Map<String, Asset> byHash;
+    private static final int HASH_BYTES = 20;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
 
-    private AssetsIndex(Map<String, Asset> assets, Map<String, Asset> byHash) {
-        this.assets = assets;
-        this.byHash = byHash;
+    private final int count;
+    private final String[] names;
+    private final byte[] hashes;
+    private final long[] sizes;
+
+    // Open-addressing tables of array index + 1, where 0 is an empty slot
+    private final int[] nameTable;
+    private final int[] hashTable;
+
+    private AssetsIndex(int count, String[] names, byte[] hashes, long[] sizes) {
+        this.count = count;
+        this.names = names;
+        this.hashes = hashes;
+        this.sizes = sizes;
+
+        int capacity = Integer.highestOneBit(Math.max(count, 1) * 2 - 1) << 1;
+        nameTable = new int[capacity];
+        hashTable = new int[capacity];
+        for (int i = 0; i < count; i++) {
+            nameTable[nameSlot(names[i])] = i + 1;
+
+            // Assets may share an object, the last one wins like it did when this was a map
+            hashTable[hashSlot(hashes, i * HASH_BYTES)] = i + 1;
+        }
+    }
+
+    private static int mix(int h) {
+        h *= 0x9E3779B9;
+        return h ^ h >>> 16;
+    }
+
+    private int nameSlot(String name) {
+        int mask = nameTable.length - 1;
+        int slot = mix(name.hashCode()) & mask;
+        while (nameTable[slot] != 0 && !names[nameTable[slot] - 1].equals(name)) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    private int hashSlot(byte[] hash, int off) {
+        int mask = hashTable.length - 1;
+
+        // Hashes are uniformly distributed already, their first bytes are a good table hash
+        int slot = mix((hash[off] & 0xFF) << 24 | (hash[off + 1] & 0xFF) << 16 | (hash[off + 2] & 0xFF) << 8 | hash[off + 3] & 0xFF) & mask;
+        while (hashTable[slot] != 0 && !sameHash(hashTable[slot] - 1, hash, off)) {
+            slot = slot + 1 & mask;
+        }
+        return slot;
+    }
+
+    private boolean sameHash(int i, byte[] hash, int off) {
+        int o = i * HASH_BYTES;
+        for (int b = 0; b < HASH_BYTES; b++) {
+            if (hashes[o + b] != hash[off + b])
+                return false;
+        }
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String getName(int i) {
+        return names[i];
+    }
+
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    /**
+     * Returns the hash of an asset as hexadecimal string
+     */
+    public String getHash(int i) {
+        char[] out = new char[HASH_BYTES * 2];
+        hex(i, out, 0);
+        return new String(out);
+    }
+
+    /**
+     * Copies the 20 bytes of the hash of an asset into an array
+     */
+    public void copyHash(int i, byte[] dest, int off) {
+        System.arraycopy(hashes, i * HASH_BYTES, dest, off, HASH_BYTES);
+    }
+
+    private void hex(int i, char[] out, int off) {
+        int o = i * HASH_BYTES;
+        for (int b = 0; b < HASH_BYTES; b++) {
+            out[off + b * 2] = HEX[hashes[o + b] >>> 4 & 0xF];
+            out[off + b * 2 + 1] = HEX[hashes[o + b] & 0xF];
+        }
+    }
+
+    /**
+     * Returns the array index of the asset with the given name, or -1
+     */
+    public int indexOf(String name) {
+        return nameTable[nameSlot(name)] - 1;
+    }
+
+    /**
+     * Returns the array index of an asset with the given hash, or -1
+     */
+    public int indexOfHash(String hash) {
+        byte[] bytes;
+        try {
+            bytes = Hashing.unhex(hash);
+        } catch (IllegalArgumentException exc) {
+            return -1;
+        }
+        return indexOfHash(bytes, 0);
+    }
+
+    /**
+     * Returns the array index of an asset with the 20-byte hash at the given offset, or -1
+     */
+    public int indexOfHash(byte[] hash, int off) {
+        return hashTable[hashSlot(hash, off)] - 1;
+    }
+
+    public Asset get(int i) {
+        if (i < 0 || i >= count)
+            throw new IndexOutOfBoundsException("Index " + i + ", size " + count);
+        return new Asset(this, i);
     }
 
     public Collection<Asset> getAssets() {
-        return assets.values();
+        return new AbstractList<Asset>() {
+            @Override
+            public Asset get(int i) {
+                return AssetsIndex.this.get(i);
+            }
+
+            @Override
+            public int size() {
+                return count;
+            }
+        };
     }
 
     @Override
     public Iterator<Asset> iterator() {
-        return assets.values().iterator();
+        return getAssets().iterator();
     }
 
     public Asset getAsset(String name) {
-        return assets.get(name);
+        int i = indexOf(name);
+        return i < 0 ? null : new Asset(this, i);
     }
 
     public Asset getByHash(String hash) {
-        return byHash.get(hash);
+        int i = indexOfHash(hash);
+        return i < 0 ? null : new Asset(this, i);
+    }
+
+    private boolean sameObject(int i, AssetsIndex other, int j) {
+        return sizes[i] == other.sizes[j] && sameHash(i, other.hashes, j * HASH_BYTES);
+    }
+
+    /**
+     * Compares this index to a previous index of the same objects directory
+     */
+    public Diff diff(AssetsIndex previous) {
+        List<Asset> added = new ArrayList<>();
+        List<Asset> removed = new ArrayList<>();
+        List<Asset> changed = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            int old = previous.indexOf(names[i]);
+            if (old < 0) {
+                added.add(new Asset(this, i));
+            } else if (!sameObject(i, previous, old)) {
+                changed.add(new Asset(this, i));
+            }
+        }
+        for (int old = 0; old < previous.count; old++) {
+            if (indexOf(previous.names[old]) < 0) {
+                removed.add(new Asset(previous, old));
+            }
+        }
+        return new Diff(previous, this, added, removed, changed);
+    }
+
+    public JsonObject toJson() {
+        JsonObject json = new JsonObject();
+        for (Asset asset : this) {
+            json.add(asset.getName(), asset.toJson());
+        }
+        return json;
+    }
+
+    /**
+     * Writes this index in the same format as the launcher's index files, so that it can be read by {@link #fromFile}
+     */
+    public void toFile(File file) throws IOException {
+        JsonObject root = new JsonObject();
+        root.add("objects", toJson());
+
+        File tmp = new File(file.getPath() + ".tmp");
+        tmp.getAbsoluteFile().getParentFile().mkdirs();
+        try (FileWriter writer = new FileWriter(tmp)) {
+            writer.write(root.toString());
+        }
+        Downloader.move(tmp, file);
     }
 
     public static AssetsIndex fromJson(JsonObject json) {
-        Map<String, Asset> assets = new LinkedHashMap<>();
-        Map<String, Asset> byHash = new LinkedHashMap<>();
-        for(Map.Entry<String, JsonElement> entry : json.entrySet()) {
-            Asset asset = Asset.fromJson(entry.getKey(), entry.getValue().getAsJsonObject());
-            assets.put(asset.getName(), asset);
-            byHash.put(asset.getHash(), asset);
+        Builder builder = new Builder(json.size());
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+            JsonObject object = entry.getValue().getAsJsonObject();
+            builder.add(entry.getKey(), object.get("hash").getAsString(), object.get("size").getAsLong());
         }
-        return new AssetsIndex(Collections.unmodifiableMap(assets), Collections.unmodifiableMap(byHash));
+        return builder.build();
+    }
+
+    /**
+     * Reads an index file from a stream, building the arrays directly and skipping properties that are not used
+     */
+    public static AssetsIndex read(JsonReader in) throws IOException {
+        Builder builder = new Builder(4096);
+
+        in.beginObject();
+        while (in.hasNext()) {
+            if (!in.nextName().equals("objects")) {
+                in.skipValue();
+                continue;
+            }
+
+            in.beginObject();
+            while (in.hasNext()) {
+                String name = in.nextName();
+                String hash = null;
+                long size = -1;
+
+                in.beginObject();
+                while (in.hasNext()) {
+                    switch (in.nextName()) {
+                        case "hash":
+                            hash = in.nextString();
+                            break;
+                        case "size":
+                            size = in.nextLong();
+                            break;
+                        default:
+                            in.skipValue();
+                    }
+                }
+                in.endObject();
+
+                if (hash == null)
+                    throw new IOException("Asset " + name + " has no hash");
+                builder.add(name, hash, size);
+            }
+            in.endObject();
+        }
+        in.endObject();
+        return builder.build();
+    }
+
+    /**
+     * Writes this index to a binary {@link SnapshotCache} snapshot
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            SnapshotCache.writeString(out, names[i]);
+        }
+        out.write(hashes, 0, count * HASH_BYTES);
+        for (int i = 0; i < count; i++) {
+            out.writeLong(sizes[i]);
+        }
+    }
+
+    /**
+     * Reads an index from a binary {@link SnapshotCache} snapshot
+     */
+    public static AssetsIndex readBinary(ByteBuffer in) {
+        int count = in.getInt();
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = SnapshotCache.readString(in).intern();
+        }
+        byte[] hashes = new byte[count * HASH_BYTES];
+        in.get(hashes);
+        long[] sizes = new long[count];
+        in.asLongBuffer().get(sizes);
+        in.position(in.position() + count * 8);
+        return new AssetsIndex(count, names, hashes, sizes);
     }
 
     public static AssetsIndex fromFile(File file) throws Exception {
-        try(FileReader reader = new FileReader(file)) {
-            JsonElement element = JsonParser.parseReader(reader);
-            return fromJson(element.getAsJsonObject().getAsJsonObject("objects"));
+        try (JsonReader in = JsonFiles.reader(file)) {
+            return read(in);
         }
     }
 
+    /**
+     * Collects assets into growing arrays. A name that is added twice keeps its first position, but gets the hash and
+     * size of the last time it was added.
+     */
+    private static class Builder {
+        private final Map<String, Integer> positions = new HashMap<>();
+        private int count;
+        private String[] names;
+        private byte[] hashes;
+        private long[] sizes;
+
+        Builder(int capacity) {
+            capacity = Math.max(capacity, 1);
+            names = new String[capacity];
+            hashes = new byte[capacity * HASH_BYTES];
+            sizes = new long[capacity];
+        }
+
+        void add(String name, String hash, long size) {
+            Integer existing = positions.get(name);
+            int i = existing == null ? count : existing;
+            if (existing == null) {
+                if (count == names.length) {
+                    int capacity = count * 2;
+                    names = Arrays.copyOf(names, capacity);
+                    hashes = Arrays.copyOf(hashes, capacity * HASH_BYTES);
+                    sizes = Arrays.copyOf(sizes, capacity);
+                }
+                names[i] = name.intern();
+                positions.put(name, i);
+                count++;
+            }
+
+            System.arraycopy(Hashing.unhex(hash), 0, hashes, i * HASH_BYTES, HASH_BYTES);
+            sizes[i] = size;
+        }
+
+        AssetsIndex build() {
+            return new AssetsIndex(
+                count,
+                Arrays.copyOf(names, count),
+                Arrays.copyOf(hashes, count * HASH_BYTES),
+                Arrays.copyOf(sizes, count)
+            );
+        }
+    }
+
+    /**
+     * A view on one asset of an index
+     */
     public static class Asset {
-        private final String name;
-        private final String hash;
-        private final long size;
+        private final AssetsIndex index;
+        private final int i;
 
-        private Asset(String name, String hash, long size) {
-            this.name = name;
-            this.hash = hash;
-            this.size = size;
+        private Asset(AssetsIndex index, int i) {
+            this.index = index;
+            this.i = i;
         }
 
         public String getName() {
-            return name;
+            return index.names[i];
         }
 
         public String getHash() {
-            return hash;
+            return index.getHash(i);
         }
 
         public String getHashPath() {
-            return hash.substring(0, 2) + "/" + hash;
+            char[] out = new char[HASH_BYTES * 2 + 3];
+            index.hex(i, out, 3);
+            out[0] = out[3];
+            out[1] = out[4];
+            out[2] = '/';
+            return new String(out);
         }
 
         public String getUrl() {
@@ -80,15 +403,130 @@ public class AssetsIndex implements Iterable<AssetsIndex.Asset> {
         }
 
         public long getSize() {
-            return size;
+            return index.sizes[i];
+        }
+
+        public JsonObject toJson() {
+            JsonObject object = new JsonObject();
+            object.addProperty("hash", getHash());
+            object.addProperty("size", getSize());
+            return object;
         }
 
         public static Asset fromJson(String name, JsonObject object) {
-            return new Asset(
-                name,
-                object.get("hash").getAsString(),
-                object.get("size").getAsLong()
-            );
+            Builder builder = new Builder(1);
+            builder.add(name, object.get("hash").getAsString(), object.get("size").getAsLong());
+            return builder.build().get(0);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (!(obj instanceof Asset))
+                return false;
+            Asset other = (Asset) obj;
+            return index == other.index && i == other.i;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(index) * 31 + i;
+        }
+
+        @Override
+        public String toString() {
+            return getName() + " (" + getHash() + ")";
+        }
+    }
+
+    /**
+     * The difference between two assets indexes. Assets are matched by name, but objects are matched by hash: an asset
+     * whose object is already in the previous index under another name needs no download, and an object is only orphaned
+     * when no asset of the new index uses it anymore.
+     */
+    public static class Diff {
+        private final AssetsIndex previous;
+        private final AssetsIndex current;
+        private final List<Asset> added;
+        private final List<Asset> removed;
+        private final List<Asset> changed;
+
+        private Diff(AssetsIndex previous, AssetsIndex current, List<Asset> added, List<Asset> removed, List<Asset> changed) {
+            this.previous = previous;
+            this.current = current;
+            this.added = Collections.unmodifiableList(added);
+            this.removed = Collections.unmodifiableList(removed);
+            this.changed = Collections.unmodifiableList(changed);
+        }
+
+        /**
+         * Returns the assets whose name is not in the previous index
+         */
+        public List<Asset> getAdded() {
+            return added;
+        }
+
+        /**
+         * Returns the assets of the previous index whose name is not in the new index
+         */
+        public List<Asset> getRemoved() {
+            return removed;
+        }
+
+        /**
+         * Returns the assets of the new index whose name is in the previous index with another hash
+         */
+        public List<Asset> getChanged() {
+            return changed;
+        }
+
+        public boolean isEmpty() {
+            return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+        }
+
+        /**
+         * Returns the added and changed assets whose object is not in the previous index, one asset per object. These
+         * are the objects that have to be downloaded.
+         */
+        public List<Asset> getNewObjects() {
+            List<Asset> out = new ArrayList<>();
+            BitSet seen = new BitSet(current.count);
+            collectObjects(added, current, previous, seen, out);
+            collectObjects(changed, current, previous, seen, out);
+            return out;
+        }
+
+        /**
+         * Returns the removed and replaced assets of the previous index whose object is not used by the new index, one
+         * asset per object. These are the objects that can be pruned.
+         */
+        public List<Asset> getOrphanedObjects() {
+            List<Asset> replaced = new ArrayList<>(changed.size());
+            for (Asset asset : changed) {
+                replaced.add(new Asset(previous, previous.indexOf(asset.getName())));
+            }
+
+            List<Asset> out = new ArrayList<>();
+            BitSet seen = new BitSet(previous.count);
+            collectObjects(removed, previous, current, seen, out);
+            collectObjects(replaced, previous, current, seen, out);
+            return out;
+        }
+
+        // Collects the assets of an index whose object is not in another index, once per object
+        private static void collectObjects(List<Asset> assets, AssetsIndex index, AssetsIndex other, BitSet seen, List<Asset> out) {
+            for (Asset asset : assets) {
+                int off = asset.i * HASH_BYTES;
+                if (other.indexOfHash(index.hashes, off) >= 0)
+                    continue;
+
+                int object = index.indexOfHash(index.hashes, off);
+                if (!seen.get(object)) {
+                    seen.set(object);
+                    out.add(asset);
+                }
+            }
         }
     }
 }
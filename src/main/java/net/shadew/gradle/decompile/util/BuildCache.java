@@ -0,0 +1,140 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A persistent, content-addressed store of task outputs. Entries are keyed by a hash of the task type, its
+ * configuration and the contents of its inputs (see {@link Fingerprint#cacheKey}), so identical inputs produce the same
+ * key regardless of the workspace or Minecraft version they come from.
+ * <p>
+ * Each entry is a directory {@code <key[0..2]>/<key>/} holding one file or directory per named output. Entries are
+ * written to a temporary directory and moved into place, so concurrent environments sharing a cache never see a half
+ * written entry.
+ */
+public class BuildCache {
+    private final File dir;
+
+    public BuildCache(File dir) {
+        this.dir = dir;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    private File entryDir(String key) {
+        return new File(dir, key.substring(0, 2) + "/" + key);
+    }
+
+    /**
+     * Returns whether an entry exists for the given key
+     */
+    public boolean has(String key) {
+        return entryDir(key).isDirectory();
+    }
+
+    /**
+     * Copies the outputs of a cached entry to their locations, returning false when there is no entry for the key
+     */
+    public boolean restore(String key, Map<String, File> outputs) throws IOException {
+        File entry = entryDir(key);
+        if (!entry.isDirectory())
+            return false;
+
+        // Make sure the entry is complete before touching any output
+        for (String name : outputs.keySet()) {
+            if (!new File(entry, name).exists())
+                return false;
+        }
+
+        for (Map.Entry<String, File> output : outputs.entrySet()) {
+            Path from = new File(entry, output.getKey()).toPath();
+            Path to = output.getValue().toPath();
+
+            delete(to);
+            copy(from, to);
+        }
+        return true;
+    }
+
+    /**
+     * Stores the given outputs under the given key, unless an entry already exists
+     */
+    public void store(String key, Map<String, File> outputs) throws IOException {
+        store(key, outputs, null);
+    }
+
+    /**
+     * Stores the given outputs under the given key like {@link #store(String, Map)}, where outputs kept in memory by
+     * the given store are copied from memory
+     */
+    public void store(String key, Map<String, File> outputs, ArtifactStore artifacts) throws IOException {
+        File entry = entryDir(key);
+        if (entry.isDirectory())
+            return;
+
+        File tmp = new File(dir, "tmp-" + UUID.randomUUID());
+        try {
+            for (Map.Entry<String, File> output : outputs.entrySet()) {
+                File to = new File(tmp, output.getKey());
+                if (artifacts == null || !artifacts.copy(output.getValue(), to))
+                    copy(output.getValue().toPath(), to.toPath());
+            }
+
+            entry.getParentFile().mkdirs();
+            try {
+                Files.move(tmp.toPath(), entry.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException exc) {
+                // Another environment stored the same entry in the meantime, which is fine
+            }
+        } finally {
+            delete(tmp.toPath());
+        }
+    }
+
+    private static void copy(Path from, Path to) throws IOException {
+        Files.createDirectories(to.getParent());
+        if (!Files.isDirectory(from)) {
+            Files.copy(from, to, StandardCopyOption.REPLACE_EXISTING);
+            return;
+        }
+
+        Files.walkFileTree(from, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException {
+                Files.createDirectories(to.resolve(from.relativize(d).toString()));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.copy(file, to.resolve(from.relativize(file).toString()), StandardCopyOption.REPLACE_EXISTING);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static void delete(Path path) throws IOException {
+        if (!Files.exists(path))
+            return;
+
+        Files.walkFileTree(path, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path d, IOException exc) throws IOException {
+                Files.delete(d);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
@@ -1,13 +1,20 @@
 package net.shadew.gradle.decompile.util;
 
 public class Constants {
-    public static final String VERSION_MANIFEST_URL = "https://launchermeta.mojang.com/mc/game/version_manifest.json";
+    public static final String LAUNCHER_META_URL = "https://launchermeta.mojang.com/";
+    public static final String PISTON_META_URL = "https://piston-meta.mojang.com/";
+    public static final String PISTON_DATA_URL = "https://piston-data.mojang.com/";
+    public static final String LIBRARIES_URL = "https://libraries.minecraft.net/";
+    public static final String VERSION_MANIFEST_URL = LAUNCHER_META_URL + "mc/game/version_manifest.json";
     public static final String RESOURCES_URL = "http://resources.download.minecraft.net/";
 
     public static final String VERSION_DIR = "{workingDir}/versions/[[MCVersion]]/";
     public static final String ASSETS_DIR = "{workingDir}/assets/";
     public static final String INDEXES_DIR = ASSETS_DIR + "/indexes/";
     public static final String OBJECTS_DIR = ASSETS_DIR + "/objects/";
+    public static final String SYNCED_INDEX = INDEXES_DIR + ".synced.json";
+    public static final String LIBRARIES_DIR = "{workingDir}/libraries/";
+    public static final String PACK_DIR = "{cacheDir}/pack/";
 
     public static final String OS = "OS";
     public static final String OS_NAME = "OSName";
@@ -16,4 +23,5 @@ public class Constants {
     public static final String ASSETS_INDEX = "AssetsIndex";
     public static final String VERSION_MANIFEST = "VersionManifest";
     public static final String VERSION_INFO = "VersionInfo";
+    public static final String ASSET_HASH_PATH = "AssetHashPath";
 }
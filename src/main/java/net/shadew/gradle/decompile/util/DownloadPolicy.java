@@ -0,0 +1,210 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.UnknownHostException;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Decides how often, after how long and from where a failed download is retried. A download is tried from each of its
+ * candidate URLs in order: the mirrors configured for its base URL, or the URL itself when it has no mirrors. Each
+ * candidate gets a number of retries, with an exponentially growing delay between them. The delay has random jitter, so
+ * that many concurrent downloads that failed at the same time don't retry at the same time.
+ * <p>
+ * Errors that won't go away by trying again, such as a 404 or an unknown host, skip the remaining retries of a
+ * candidate and move on to the next one.
+ */
+public class DownloadPolicy {
+    private int retries = 3;
+    private long initialBackoff = 500;
+    private long maxBackoff = 10000;
+    private double multiplier = 2;
+    private double jitter = 0.5;
+    private int connectTimeout = -1;
+    private int readTimeout = -1;
+    private final Map<String, List<String>> mirrors = new LinkedHashMap<>();
+
+    /**
+     * Returns a policy that tries every download exactly once
+     */
+    public static DownloadPolicy none() {
+        return new DownloadPolicy().retries(0);
+    }
+
+    /**
+     * Sets how many times a failed request is retried from the same URL, defaults to 3
+     */
+    public DownloadPolicy retries(int retries) {
+        this.retries = Math.max(0, retries);
+        return this;
+    }
+
+    /**
+     * Sets the delay before the first retry and the maximum delay between retries, in milliseconds. The delay is
+     * multiplied by the given multiplier after every retry. Defaults to 500 ms, doubling up to 10 s.
+     */
+    public DownloadPolicy backoff(long initial, long max, double multiplier) {
+        this.initialBackoff = Math.max(0, initial);
+        this.maxBackoff = Math.max(initialBackoff, max);
+        this.multiplier = Math.max(1, multiplier);
+        return this;
+    }
+
+    /**
+     * Sets the fraction of the delay that is randomized, between 0 (no jitter) and 1, defaults to 0.5
+     */
+    public DownloadPolicy jitter(double jitter) {
+        this.jitter = Math.min(1, Math.max(0, jitter));
+        return this;
+    }
+
+    /**
+     * Sets the connect and read timeouts of each request, in milliseconds. A negative value uses the timeout of the
+     * {@link HttpTransport}.
+     */
+    public DownloadPolicy timeouts(int connectTimeout, int readTimeout) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        return this;
+    }
+
+    /**
+     * Replaces a base URL (for example {@link Constants#RESOURCES_URL}) with an ordered list of mirror base URLs. Any
+     * download whose URL starts with the base URL is tried from the mirrors in the given order. To still fall back to
+     * the original host, include the base URL itself in the list.
+     */
+    public DownloadPolicy mirror(String baseUrl, String... mirrorUrls) {
+        if (mirrorUrls.length == 0)
+            throw new IllegalArgumentException("No mirrors given");
+        mirrors.put(baseUrl, Collections.unmodifiableList(new ArrayList<>(Arrays.asList(mirrorUrls))));
+        return this;
+    }
+
+    public int getRetries() {
+        return retries;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public Map<String, List<String>> getMirrors() {
+        return Collections.unmodifiableMap(mirrors);
+    }
+
+    /**
+     * Returns the URLs to try, in order, to download the given URL
+     */
+    public List<String> candidates(String url) {
+        for (Map.Entry<String, List<String>> entry : mirrors.entrySet()) {
+            String base = entry.getKey();
+            if (url.startsWith(base)) {
+                String path = url.substring(base.length());
+                List<String> out = new ArrayList<>();
+                for (String mirror : entry.getValue()) {
+                    out.add(mirror + path);
+                }
+                return out;
+            }
+        }
+        return Collections.singletonList(url);
+    }
+
+    /**
+     * Returns whether a request that failed with the given exception may succeed when tried again from the same URL
+     */
+    public boolean isRetryable(IOException exc) {
+        if (exc instanceof UnknownHostException)
+            return false;
+        if (exc instanceof InterruptedIOException && Thread.currentThread().isInterrupted())
+            return false;
+        if (exc instanceof HttpTransport.HttpException) {
+            int status = ((HttpTransport.HttpException) exc).getStatus();
+            return status >= 500 || status == 408 || status == 429;
+        }
+        return true;
+    }
+
+    /**
+     * Returns how long to wait before the given retry (starting at 0), in milliseconds
+     */
+    public long backoff(int retry) {
+        double delay = Math.min(maxBackoff, initialBackoff * Math.pow(multiplier, retry));
+        double random = jitter * delay * ThreadLocalRandom.current().nextDouble();
+        return (long) (delay - random);
+    }
+
+    /**
+     * Runs a download attempt according to this policy
+     *
+     * @param url     The original URL
+     * @param attempt Downloads from one of the candidate URLs
+     * @param retry   Called before every retry with the URL and the exception that made the last attempt fail
+     */
+    public <T> T run(String url, Attempt<T> attempt, RetryListener retry) throws IOException {
+        IOException failure = null;
+        for (String candidate : candidates(url)) {
+            try {
+                return retry(candidate, attempt, retry);
+            } catch (IOException exc) {
+                if (failure == null) {
+                    failure = exc;
+                } else {
+                    failure.addSuppressed(exc);
+                }
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Runs a download attempt according to this policy, but only from the given URL and not from its mirrors. This is
+     * for requests that must reach the same server as an earlier request, such as the segments of one download.
+     *
+     * @param url     The URL to download from
+     * @param attempt Downloads from the URL
+     * @param retry   Called before every retry with the URL and the exception that made the last attempt fail
+     */
+    public <T> T retry(String url, Attempt<T> attempt, RetryListener retry) throws IOException {
+        IOException failure = null;
+        for (int i = 0; ; i++) {
+            try {
+                return attempt.run(url);
+            } catch (IOException exc) {
+                if (failure == null) {
+                    failure = exc;
+                } else {
+                    failure.addSuppressed(exc);
+                }
+
+                if (i >= retries || !isRetryable(exc))
+                    throw failure;
+
+                retry.retrying(url, exc);
+                sleep(backoff(i));
+            }
+        }
+    }
+
+    private static void sleep(long millis) throws InterruptedIOException {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting to retry");
+        }
+    }
+
+    public interface Attempt<T> {
+        T run(String url) throws IOException;
+    }
+
+    public interface RetryListener {
+        void retrying(String url, IOException cause);
+    }
+}
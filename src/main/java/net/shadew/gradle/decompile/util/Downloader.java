@@ -0,0 +1,622 @@
+package net.shadew.gradle.decompile.util;
+
+import com.google.gson.Gson;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads one file. The file is written to a partial file ({@code <out>.part}) and only renamed to the final path
+ * once it is complete, so an existing output file is always a complete download. Next to the partial file, a small state
+ * file records where the partial file came from. When a download is interrupted, the next attempt continues where the
+ * last one stopped with an HTTP {@code Range} request, given that the server still serves the same version of the file.
+ * <p>
+ * When an expected SHA-1 hash or size is given, the download is verified while the bytes are written, without reading
+ * the file again. A file that does not match is deleted and never moved into place.
+ */
+public class Downloader {
+    private static final Gson GSON = new Gson();
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final long TRANSFER_CHUNK = 1024 * 1024;
+    private static final OpenOption[] WRITE_OPTIONS = {
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING
+    };
+    private static final OpenOption[] RESUME_OPTIONS = {
+        StandardOpenOption.CREATE, StandardOpenOption.WRITE
+    };
+
+    // Samples the progress of all running downloads, so that the copy loop itself never has to check the time
+    private static final ScheduledExecutorService SAMPLER = Executors.newSingleThreadScheduledExecutor(
+        new NamedThreadFactory("DownloadProgress")
+    );
+
+    private final HttpTransport transport;
+    private final String url;
+    private final File out;
+    private DownloadPolicy policy = DownloadPolicy.none();
+    private DownloadPolicy.RetryListener retryListener = (url, cause) -> { };
+    private boolean resume = true;
+    private boolean conditional;
+    private boolean notModified;
+    private String sha1;
+    private long size = -1;
+    private Progress progress;
+    private long progressInterval = 100;
+
+    private int segments = 1;
+    private long segmentThreshold = Long.MAX_VALUE;
+
+    // Written by the downloading threads, sampled by the progress timer
+    private final AtomicLong done = new AtomicLong();
+    private volatile long total = -1;
+
+    public Downloader(HttpTransport transport, String url, File out) {
+        this.transport = transport;
+        this.url = url;
+        this.out = out;
+    }
+
+    /**
+     * Sets the policy for retries, mirrors and timeouts, defaults to {@link DownloadPolicy#none()}
+     */
+    public Downloader policy(DownloadPolicy policy) {
+        this.policy = policy;
+        return this;
+    }
+
+    /**
+     * Sets the listener that is called before a failed attempt is retried
+     */
+    public Downloader onRetry(DownloadPolicy.RetryListener retryListener) {
+        this.retryListener = retryListener;
+        return this;
+    }
+
+    /**
+     * Sets whether an interrupted download may be resumed, defaults to true
+     */
+    public Downloader resume(boolean resume) {
+        this.resume = resume;
+        return this;
+    }
+
+    /**
+     * Sets whether to send a conditional request when the output already exists. The {@code ETag} and
+     * {@code Last-Modified} headers of the last download are recorded next to the output, and sent back as
+     * {@code If-None-Match} and {@code If-Modified-Since}. When the server responds with 304, the output is kept as is
+     * and {@link #isNotModified()} returns true.
+     */
+    public Downloader conditional(boolean conditional) {
+        this.conditional = conditional;
+        return this;
+    }
+
+    /**
+     * Returns whether the last {@link #download()} found the existing output to be up to date
+     */
+    public boolean isNotModified() {
+        return notModified;
+    }
+
+    /**
+     * Sets the expected SHA-1 hash of the file, or null to not verify the hash
+     */
+    public Downloader sha1(String sha1) {
+        this.sha1 = sha1;
+        return this;
+    }
+
+    /**
+     * Sets the expected size of the file, or -1 to not verify the size
+     */
+    public Downloader size(long size) {
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Enables segmented downloads: when the expected size is known and at least the given threshold, the file is split
+     * into the given amount of byte ranges that are downloaded in parallel, over separate connections. This only
+     * happens when the server supports range requests, otherwise the file is downloaded as a whole.
+     * <p>
+     * Segmented downloads can't be resumed, and since segments arrive out of order, the hash of a segmented download is
+     * computed after the download instead of while streaming. A segment that fails is retried on its own, according to
+     * the {@link #policy}, from the same URL as the other segments.
+     */
+    public Downloader segments(int segments, long threshold) {
+        this.segments = Math.max(1, segments);
+        this.segmentThreshold = threshold;
+        return this;
+    }
+
+    /**
+     * Sets the listener that is called periodically while the file downloads, from a timer thread
+     */
+    public Downloader progress(Progress progress) {
+        this.progress = progress;
+        return this;
+    }
+
+    /**
+     * Sets how often the progress listener is called, in milliseconds, defaults to 100
+     */
+    public Downloader progressInterval(long millis) {
+        this.progressInterval = Math.max(1, millis);
+        return this;
+    }
+
+    public File getPartFile() {
+        return new File(out.getPath() + ".part");
+    }
+
+    public File getPartStateFile() {
+        return new File(out.getPath() + ".part.state");
+    }
+
+    public File getValidatorsFile() {
+        return new File(out.getPath() + ".http");
+    }
+
+    /**
+     * Downloads the file
+     *
+     * @return The amount of bytes that were transferred, which is less than the file size when a partial download was
+     *     resumed
+     */
+    public long download() throws IOException {
+        return policy.run(url, this::download, retryListener);
+    }
+
+    private HttpTransport.Response get(String url, Map<String, String> headers) throws IOException {
+        return transport.get(url, headers, policy.getConnectTimeout(), policy.getReadTimeout());
+    }
+
+    /**
+     * Downloads the file from the given URL, which is the original URL or a mirror of it
+     */
+    private long download(String url) throws IOException {
+        File part = getPartFile();
+        File partState = getPartStateFile();
+        File validators = getValidatorsFile();
+        out.getAbsoluteFile().getParentFile().mkdirs();
+        notModified = false;
+
+        long offset = 0;
+        boolean segmented = false;
+        Source state = resume ? Source.load(partState) : null;
+        Map<String, String> headers = new HashMap<>();
+        if (state != null && state.canResume(url) && part.exists() && part.length() > 0
+                && (size < 0 || part.length() <= size)) {
+            offset = part.length();
+            headers.put("Range", "bytes=" + offset + "-");
+            headers.put("If-Range", state.validator());
+        } else if (size >= segmentThreshold && segmentCount() > 1) {
+            // Ask for the first segment only, a server that supports ranges answers with 206 and we fetch the other
+            // segments in parallel, other servers just send the full file
+            headers.put("Range", "bytes=0-" + (segmentSize() - 1));
+            segmented = true;
+        }
+
+        Source known = conditional && out.isFile() ? Source.load(validators) : null;
+        if (known != null && url.equals(known.url) && known.length == out.length()) {
+            if (known.etag != null)
+                headers.put("If-None-Match", known.etag);
+            if (known.lastModified != null)
+                headers.put("If-Modified-Since", known.lastModified);
+        }
+
+        HttpTransport.Response opened;
+        try {
+            opened = get(url, headers);
+        } catch (HttpTransport.HttpException exc) {
+            if (offset == 0 || exc.getStatus() != 416)
+                throw exc;
+
+            // Range not satisfiable: our partial file does not match the file on the server, start over
+            part.delete();
+            partState.delete();
+            offset = 0;
+            opened = get(url, Collections.emptyMap());
+        }
+
+        ScheduledFuture<?> sampler = progress == null ? null : SAMPLER.scheduleAtFixedRate(
+            this::sample, progressInterval, progressInterval, TimeUnit.MILLISECONDS
+        );
+        try (HttpTransport.Response response = opened) {
+            if (response.getStatus() == 304) {
+                notModified = true;
+                return 0;
+            }
+
+            long transferred;
+            String actualSha1 = null;
+
+            if (segmented && isContinuation(response, 0) && rangeTotal(response) == size) {
+                // Segments arrive out of order, so the partial file can't be resumed by its length
+                partState.delete();
+                total = size;
+                done.set(0);
+
+                transferred = downloadSegments(url, response, part);
+                if (sha1 != null)
+                    actualSha1 = Hashing.sha1(part);
+            } else {
+                if (offset > 0 && !isContinuation(response, offset)) {
+                    // The server sent the full file (it changed or it does not support ranges), start over
+                    offset = 0;
+                }
+
+                long length = response.getContentLength();
+                total = length < 0 ? -1 : offset + length;
+                done.set(offset);
+
+                state = new Source();
+                state.url = url;
+                state.etag = response.getHeader("ETag");
+                state.lastModified = response.getHeader("Last-Modified");
+                state.length = total;
+                state.save(partState);
+
+                // Bytes already in the partial file must be hashed too, this is the only time we read back from disk
+                MessageDigest digest = sha1 != null ? Hashing.sha1() : null;
+                if (digest != null && offset > 0) {
+                    try (InputStream in = new FileInputStream(part)) {
+                        Hashing.update(digest, in);
+                    }
+                }
+
+                try (ReadableByteChannel from = Channels.newChannel(response.getBody());
+                     FileChannel to = FileChannel.open(part.toPath(), offset > 0 ? RESUME_OPTIONS : WRITE_OPTIONS)) {
+                    transferred = transfer(from, to, offset, digest);
+                }
+
+                if (total >= 0 && part.length() != total) {
+                    throw new IOException("Incomplete download of " + url + ": got " + part.length() + " of " + total + " bytes");
+                }
+                if (digest != null)
+                    actualSha1 = Hashing.hex(digest.digest());
+            }
+
+            if (size >= 0 && part.length() != size) {
+                discard(part, partState);
+                throw new IOException("Size mismatch for " + url + ": expected " + size + " bytes, got " + part.length());
+            }
+
+            if (actualSha1 != null && !actualSha1.equalsIgnoreCase(sha1)) {
+                discard(part, partState);
+                throw new IOException("Checksum mismatch for " + url + ": expected " + sha1 + ", got " + actualSha1);
+            }
+
+            move(part, out);
+            partState.delete();
+
+            if (conditional) {
+                Source record = new Source();
+                record.url = url;
+                record.etag = response.getHeader("ETag");
+                record.lastModified = response.getHeader("Last-Modified");
+                record.length = out.length();
+                record.save(validators);
+            }
+            return transferred;
+        } finally {
+            if (sampler != null) {
+                sampler.cancel(false);
+                sample();
+            }
+        }
+    }
+
+    private long segmentSize() {
+        return (size + segments - 1) / segments;
+    }
+
+    /**
+     * Returns the amount of segments the file is split into, or 1 when it is downloaded as a single stream
+     */
+    private int segmentCount() {
+        if (segments < 2 || size <= 0)
+            return 1;
+        long segmentSize = segmentSize();
+        return (int) ((size + segmentSize - 1) / segmentSize);
+    }
+
+    /**
+     * Downloads the file in segments, into a preallocated partial file. The first segment is read from the response
+     * that was already opened, the others are requested in parallel.
+     */
+    private long downloadSegments(String url, HttpTransport.Response first, File part) throws IOException {
+        long segmentSize = segmentSize();
+        int count = segmentCount();
+
+        // Only continue segments of the same version of the file
+        String etag = first.getHeader("ETag");
+        String validator = etag != null && !etag.startsWith("W/") ? etag : first.getHeader("Last-Modified");
+
+        try (RandomAccessFile file = new RandomAccessFile(part, "rw")) {
+            file.setLength(size);
+        }
+
+        try (FileChannel to = FileChannel.open(part.toPath(), StandardOpenOption.WRITE)) {
+            if (count < 2)
+                return downloadSegment(url, validator, first, to, 0, size);
+
+            ExecutorService executor = Executors.newFixedThreadPool(count - 1, new NamedThreadFactory("DownloadSegment"));
+            try {
+                List<Future<Long>> futures = new ArrayList<>();
+                for (int i = 1; i < count; i++) {
+                    long start = i * segmentSize;
+                    long length = Math.min(size - start, segmentSize);
+                    futures.add(executor.submit(() -> downloadSegment(url, validator, null, to, start, length)));
+                }
+
+                long transferred = downloadSegment(url, validator, first, to, 0, Math.min(size, segmentSize));
+                for (Future<Long> future : futures) {
+                    transferred += future.get();
+                }
+                return transferred;
+            } catch (ExecutionException exc) {
+                Throwable cause = exc.getCause();
+                if (cause instanceof IOException)
+                    throw (IOException) cause;
+                throw new IOException("Failed to download segment of " + url, cause);
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while downloading " + url);
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * Downloads one segment, retrying it according to the policy. The first attempt reads the given response when it is
+     * not null, later attempts request the segment again.
+     */
+    private long downloadSegment(String url, String validator, HttpTransport.Response opened, FileChannel to, long start, long length) throws IOException {
+        HttpTransport.Response[] pending = {opened};
+        return policy.retry(url, u -> {
+            HttpTransport.Response response = pending[0];
+            pending[0] = null;
+            if (response == null) {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Range", "bytes=" + start + "-" + (start + length - 1));
+                if (validator != null)
+                    headers.put("If-Range", validator);
+                response = get(u, headers);
+            }
+
+            try (HttpTransport.Response r = response) {
+                return transferSegment(u, r, to, start, length);
+            }
+        }, retryListener);
+    }
+
+    private long transferSegment(String url, HttpTransport.Response response, FileChannel to, long start, long length) throws IOException {
+        if (!isContinuation(response, start) || response.getContentLength() != length)
+            throw new IOException("Server did not serve bytes " + start + "-" + (start + length - 1) + " of " + url);
+
+        // Positional writes don't move the channel position, so segments can write to the same channel concurrently
+        long transferred = 0;
+        try (ReadableByteChannel from = Channels.newChannel(response.getBody())) {
+            long n;
+            while (transferred < length
+                       && (n = to.transferFrom(from, start + transferred, Math.min(TRANSFER_CHUNK, length - transferred))) > 0) {
+                transferred += n;
+                done.addAndGet(n);
+            }
+        } catch (IOException exc) {
+            // The segment is downloaded again from its start
+            done.addAndGet(-transferred);
+            throw exc;
+        }
+
+        if (transferred != length) {
+            done.addAndGet(-transferred);
+            throw new IOException("Incomplete segment " + start + "-" + (start + length - 1) + " of " + url);
+        }
+        return transferred;
+    }
+
+    private long transfer(ReadableByteChannel from, FileChannel to, long offset, MessageDigest digest) throws IOException {
+        long transferred = 0;
+
+        if (digest == null) {
+            // Nothing to look at, let the channel move the bytes
+            long n;
+            while ((n = to.transferFrom(from, offset + transferred, TRANSFER_CHUNK)) > 0) {
+                transferred += n;
+                done.set(offset + transferred);
+            }
+            return transferred;
+        }
+
+        to.position(offset);
+        ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        while (from.read(buf) != -1) {
+            buf.flip();
+            transferred += buf.remaining();
+
+            // Hash a view of the buffer, so that the buffer itself can still be written
+            digest.update(buf.duplicate());
+            while (buf.hasRemaining()) {
+                to.write(buf);
+            }
+            buf.clear();
+            done.set(offset + transferred);
+        }
+        return transferred;
+    }
+
+    private void sample() {
+        progress.update(done.get(), total);
+    }
+
+    private static long rangeTotal(HttpTransport.Response response) {
+        String range = response.getHeader("Content-Range");
+        int slash = range == null ? -1 : range.lastIndexOf('/');
+        if (slash < 0)
+            return -1;
+        try {
+            return Long.parseLong(range.substring(slash + 1).trim());
+        } catch (NumberFormatException exc) {
+            return -1;
+        }
+    }
+
+    private static boolean isContinuation(HttpTransport.Response response, long offset) {
+        if (response.getStatus() != 206)
+            return false;
+
+        // Content-Range: bytes <first>-<last>/<total>
+        String range = response.getHeader("Content-Range");
+        if (range == null || !range.startsWith("bytes "))
+            return false;
+        int dash = range.indexOf('-');
+        if (dash < 0)
+            return false;
+        try {
+            return Long.parseLong(range.substring(6, dash).trim()) == offset;
+        } catch (NumberFormatException exc) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the partial download of the given output file and its state, for outputs whose partial download is never
+     * resumed, such as temporary files with random names
+     */
+    public static void discardPartial(File out) {
+        discard(new File(out.getPath() + ".part"), new File(out.getPath() + ".part.state"));
+    }
+
+    private static void discard(File part, File partState) {
+        part.delete();
+        partState.delete();
+    }
+
+    private static File verifiedFile(File out) {
+        return new File(out.getPath() + ".sha1");
+    }
+
+    /**
+     * Records that a file was verified to have the given SHA-1 hash, see {@link #isVerified}
+     */
+    public static void markVerified(File out, String sha1) throws IOException {
+        Verified verified = new Verified();
+        verified.sha1 = sha1.toLowerCase();
+        verified.size = out.length();
+        verified.modified = out.lastModified();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(verifiedFile(out)), StandardCharsets.UTF_8)) {
+            GSON.toJson(verified, writer);
+        }
+    }
+
+    /**
+     * Checks whether a file exists and has the given SHA-1 hash. When the file was marked as verified with this hash and
+     * did not change since, this does not read the file. Otherwise the file is hashed once and marked when it matches.
+     */
+    public static boolean isVerified(File out, String sha1, long size) throws IOException {
+        if (!out.isFile())
+            return false;
+        if (size >= 0 && out.length() != size)
+            return false;
+
+        Verified verified = null;
+        File file = verifiedFile(out);
+        if (file.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                verified = GSON.fromJson(reader, Verified.class);
+            } catch (Exception exc) {
+                // Corrupt, hash again
+            }
+        }
+        if (verified != null && sha1.equalsIgnoreCase(verified.sha1)
+                && verified.size == out.length() && verified.modified == out.lastModified())
+            return true;
+
+        if (!Hashing.sha1(out).equalsIgnoreCase(sha1))
+            return false;
+        markVerified(out, sha1);
+        return true;
+    }
+
+    /**
+     * Moves a completed file into place, atomically when the file system supports it
+     */
+    public static void move(File from, File to) throws IOException {
+        try {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException exc) {
+            Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    public interface Progress {
+        /**
+         * Called periodically while downloading, and once when the download ends
+         *
+         * @param done  The amount of bytes in the partial file
+         * @param total The total size of the file, or -1 when unknown
+         */
+        void update(long done, long total);
+    }
+
+    private static class Verified {
+        String sha1;
+        long size;
+        long modified;
+    }
+
+    /**
+     * Where a file was downloaded from, recorded for partial files (to resume them) and for conditional requests
+     */
+    private static class Source {
+        String url;
+        String etag;
+        String lastModified;
+        long length = -1;
+
+        boolean canResume(String url) {
+            return url.equals(this.url) && validator() != null;
+        }
+
+        String validator() {
+            // If-Range only accepts strong validators
+            if (etag != null && !etag.startsWith("W/"))
+                return etag;
+            return lastModified;
+        }
+
+        static Source load(File file) {
+            if (!file.exists())
+                return null;
+
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                return GSON.fromJson(reader, Source.class);
+            } catch (Exception exc) {
+                // Corrupt state, ignore it
+                return null;
+            }
+        }
+
+        void save(File file) throws IOException {
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+                GSON.toJson(this, writer);
+            }
+        }
+    }
+}
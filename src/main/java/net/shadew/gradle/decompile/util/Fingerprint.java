@@ -0,0 +1,415 @@
+package net.shadew.gradle.decompile.util;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Records the hashes of a task's inputs, configuration and outputs in a small state file next to its output. A task is
+ * up to date when all of these match the state recorded after its last successful run, so any upstream change (even a
+ * partial one) makes it run again, while an unchanged workspace skips it without doing any work.
+ * <p>
+ * Hashing every file on every check would be slow for large jars, so each recorded hash is stored together with a
+ * stamp of the file's size and modification time. When the stamp is unchanged, the recorded hash is trusted.
+ * <p>
+ * Files that are kept in memory by an {@link ArtifactStore} are tracked by the hash of the artifact, when the store is
+ * given with {@link #artifacts}. The store writes the artifact to its file later, which then has the same hash. The
+ * first check after that hashes the file once and records its new stamp.
+ */
+public class Fingerprint {
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().create();
+    private static final String MEMORY_STAMP = "memory";
+
+    private final File stateFile;
+    private final Map<String, String> config = new TreeMap<>();
+    private final Map<String, File> inputs = new TreeMap<>();
+    private final Map<String, File> outputs = new TreeMap<>();
+    private String cacheType;
+    private ArtifactStore artifacts;
+
+    // Entries hashed during this run, so that saving does not hash inputs again
+    private final Map<File, Entry> hashed = new HashMap<>();
+
+    public Fingerprint(File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    /**
+     * Creates a fingerprint for a task with one main output, stored in a state file next to that output
+     */
+    public static Fingerprint of(File output) {
+        return new Fingerprint(stateFile(output)).output("output", output);
+    }
+
+    /**
+     * Returns the state file belonging to the given output
+     */
+    public static File stateFile(File output) {
+        return new File(output.getAbsoluteFile().getParentFile(), output.getName() + ".state");
+    }
+
+    public File getStateFile() {
+        return stateFile;
+    }
+
+    /**
+     * Adds an input file or directory
+     */
+    public Fingerprint input(String name, File file) {
+        inputs.put(name, file.getAbsoluteFile());
+        return this;
+    }
+
+    /**
+     * Adds an output file or directory
+     */
+    public Fingerprint output(String name, File file) {
+        outputs.put(name, file.getAbsoluteFile());
+        return this;
+    }
+
+    /**
+     * Adds a configuration value. Its string representation is recorded.
+     */
+    public Fingerprint config(String key, Object value) {
+        config.put(key, String.valueOf(value));
+        return this;
+    }
+
+    /**
+     * Allows the outputs to be stored in and restored from a {@link BuildCache}. The type distinguishes tasks that
+     * happen to have the same inputs and configuration but produce different outputs.
+     */
+    public Fingerprint cacheable(String type) {
+        this.cacheType = type;
+        return this;
+    }
+
+    /**
+     * Tracks inputs and outputs that are kept in memory by the given store
+     */
+    public Fingerprint artifacts(ArtifactStore artifacts) {
+        this.artifacts = artifacts;
+        return this;
+    }
+
+    /**
+     * Computes the build cache key: a hash of the cache type, the configuration and the contents (not the paths) of
+     * all inputs.
+     */
+    public String cacheKey() throws IOException {
+        StringBuilder key = new StringBuilder(String.valueOf(cacheType)).append('\n');
+        config.forEach((k, v) -> key.append("config:").append(k).append('=').append(v).append('\n'));
+        for (Map.Entry<String, File> input : inputs.entrySet()) {
+            Entry entry = entry(input.getValue(), hashed.get(input.getValue()));
+            key.append("input:").append(input.getKey()).append('=').append(entry.hash).append('\n');
+        }
+        for (String output : outputs.keySet()) {
+            key.append("output:").append(output).append('\n');
+        }
+        return Hashing.sha1(key.toString());
+    }
+
+    /**
+     * Restores the outputs from the build cache and records the new state. Returns false when this fingerprint is not
+     * cacheable, the cache is disabled ({@code null}) or there is no cached entry.
+     */
+    public boolean restore(BuildCache cache) throws IOException {
+        if (cache == null || cacheType == null)
+            return false;
+
+        for (File input : inputs.values()) {
+            if (!exists(input))
+                return false;
+        }
+
+        if (!cache.restore(cacheKey(), outputs))
+            return false;
+
+        // The restored files replace any outputs that were kept in memory
+        if (artifacts != null)
+            outputs.values().forEach(artifacts::remove);
+
+        save();
+        return true;
+    }
+
+    /**
+     * Stores the outputs in the build cache, if this fingerprint is cacheable and the cache is enabled
+     */
+    public void store(BuildCache cache) throws IOException {
+        if (cache == null || cacheType == null)
+            return;
+
+        // Outputs kept in memory are stored from memory, they have no file yet
+        cache.store(cacheKey(), outputs, artifacts);
+    }
+
+    /**
+     * Returns whether all inputs, outputs and configuration match the recorded state
+     */
+    public boolean isUpToDate() throws IOException {
+        State state = State.read(stateFile);
+        if (state == null)
+            return false;
+
+        if (!state.config.equals(config) || !matches(state.inputs, inputs) || !matches(state.outputs, outputs))
+            return false;
+
+        // Files that were touched, or written from memory, without changing: record their stamps so they're not hashed
+        // again on the next check
+        boolean restamped = restamp(state.inputs, inputs);
+        restamped |= restamp(state.outputs, outputs);
+        if (restamped)
+            state.write(stateFile);
+        return true;
+    }
+
+    private boolean restamp(Map<String, Entry> recorded, Map<String, File> files) {
+        boolean changed = false;
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            Entry current = hashed.get(file.getValue());
+            if (current != null && !current.stamp.equals(MEMORY_STAMP)
+                    && !current.stamp.equals(recorded.get(file.getKey()).stamp)) {
+                recorded.put(file.getKey(), current);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Deletes the recorded state, so that an interrupted run can never be mistaken for an up to date one
+     */
+    public void invalidate() throws IOException {
+        Files.deleteIfExists(stateFile.toPath());
+    }
+
+    /**
+     * Records the current state of all inputs, outputs and configuration. Call after the task ran successfully.
+     */
+    public void save() throws IOException {
+        State state = new State();
+        state.config.putAll(config);
+        for (Map.Entry<String, File> input : inputs.entrySet()) {
+            state.inputs.put(input.getKey(), entry(input.getValue(), hashed.get(input.getValue())));
+        }
+        for (Map.Entry<String, File> output : outputs.entrySet()) {
+            // Outputs were just written, always hash them
+            state.outputs.put(output.getKey(), entry(output.getValue(), null));
+        }
+        state.write(stateFile);
+    }
+
+    /**
+     * Updates the recorded hash of an output that was modified in place after its task saved the fingerprint, for
+     * example by a {@code doLast} action. Does nothing when the output has no recorded state.
+     */
+    public static void refresh(File output) throws IOException {
+        refresh(output, null);
+    }
+
+    /**
+     * Updates the recorded hash of an output like {@link #refresh(File)}, where the output may be kept in memory by
+     * the given store
+     */
+    public static void refresh(File output, ArtifactStore artifacts) throws IOException {
+        output = output.getAbsoluteFile();
+        File stateFile = stateFile(output);
+        State state = State.read(stateFile);
+        if (state == null)
+            return;
+
+        String path = output.getPath();
+        for (Map.Entry<String, Entry> e : state.outputs.entrySet()) {
+            if (path.equals(e.getValue().path)) {
+                e.setValue(new Fingerprint(stateFile).artifacts(artifacts).entry(output, null));
+            }
+        }
+        state.write(stateFile);
+    }
+
+    private boolean matches(Map<String, Entry> recorded, Map<String, File> files) throws IOException {
+        if (!recorded.keySet().equals(files.keySet()))
+            return false;
+
+        for (Map.Entry<String, File> file : files.entrySet()) {
+            Entry previous = recorded.get(file.getKey());
+            if (!exists(file.getValue()) || !file.getValue().getPath().equals(previous.path))
+                return false;
+
+            Entry current = entry(file.getValue(), previous);
+            if (!current.hash.equals(previous.hash))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean exists(File file) {
+        return file.exists() || artifacts != null && artifacts.contains(file);
+    }
+
+    private Entry entry(File file, Entry previous) throws IOException {
+        String memoryHash = artifacts != null ? artifacts.hash(file) : null;
+        if (memoryHash != null) {
+            Entry entry = new Entry(file.getPath(), MEMORY_STAMP, memoryHash);
+            hashed.put(file, entry);
+            return entry;
+        }
+
+        String stamp = stamp(file);
+        if (previous != null && previous.stamp.equals(stamp)) {
+            hashed.put(file, previous);
+            return previous;
+        }
+
+        Entry entry = new Entry(file.getPath(), stamp, hash(file));
+        hashed.put(file, entry);
+        return entry;
+    }
+
+    /**
+     * Returns a cheap stamp of a file or directory, which changes whenever a file changes size or is modified
+     */
+    public static String stamp(File file) {
+        if (!file.isDirectory())
+            return file.length() + "@" + file.lastModified();
+
+        StringBuilder builder = new StringBuilder();
+        for (File f : listFiles(file)) {
+            builder.append(relativize(file, f)).append(':')
+                   .append(f.length()).append('@')
+                   .append(f.lastModified()).append('\n');
+        }
+        return Hashing.sha1(builder.toString());
+    }
+
+    private static String hash(File file) throws IOException {
+        if (!file.isDirectory())
+            return Hashing.sha1(file);
+
+        // Hash of the relative paths and contents of all files in the directory
+        MessageDigest digest = Hashing.sha1();
+        for (File f : listFiles(file)) {
+            digest.update(relativize(file, f).getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Hashing.sha1(f).getBytes(StandardCharsets.UTF_8));
+        }
+        return Hashing.hex(digest.digest());
+    }
+
+    private static List<File> listFiles(File dir) {
+        List<File> files = new ArrayList<>();
+        collectFiles(dir, files);
+        files.sort(Comparator.comparing(File::getPath));
+        return files;
+    }
+
+    private static void collectFiles(File dir, List<File> out) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectFiles(file, out);
+            } else {
+                out.add(file);
+            }
+        }
+    }
+
+    private static String relativize(File dir, File file) {
+        return dir.toPath().relativize(file.toPath()).toString().replace('\\', '/');
+    }
+
+    private static class Entry {
+        final String path;
+        final String stamp;
+        final String hash;
+
+        Entry(String path, String stamp, String hash) {
+            this.path = path;
+            this.stamp = stamp;
+            this.hash = hash;
+        }
+
+        JsonObject toJson() {
+            JsonObject json = new JsonObject();
+            json.addProperty("path", path);
+            json.addProperty("stamp", stamp);
+            json.addProperty("hash", hash);
+            return json;
+        }
+
+        static Entry fromJson(JsonObject json) {
+            return new Entry(
+                json.get("path").getAsString(),
+                json.get("stamp").getAsString(),
+                json.get("hash").getAsString()
+            );
+        }
+    }
+
+    private static class State {
+        final Map<String, String> config = new TreeMap<>();
+        final Map<String, Entry> inputs = new TreeMap<>();
+        final Map<String, Entry> outputs = new TreeMap<>();
+
+        static State read(File file) {
+            if (!file.exists())
+                return null;
+
+            try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8)) {
+                JsonObject json = JsonParser.parseReader(reader).getAsJsonObject();
+
+                State state = new State();
+                for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("config").entrySet()) {
+                    state.config.put(e.getKey(), e.getValue().getAsString());
+                }
+                for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("inputs").entrySet()) {
+                    state.inputs.put(e.getKey(), Entry.fromJson(e.getValue().getAsJsonObject()));
+                }
+                for (Map.Entry<String, JsonElement> e : json.getAsJsonObject("outputs").entrySet()) {
+                    state.outputs.put(e.getKey(), Entry.fromJson(e.getValue().getAsJsonObject()));
+                }
+                return state;
+            } catch (Exception exc) {
+                // A corrupt state file just means we're not up to date
+                return null;
+            }
+        }
+
+        void write(File file) throws IOException {
+            JsonObject json = new JsonObject();
+
+            JsonObject jsonConfig = new JsonObject();
+            config.forEach(jsonConfig::addProperty);
+            json.add("config", jsonConfig);
+
+            JsonObject jsonInputs = new JsonObject();
+            inputs.forEach((k, v) -> jsonInputs.add(k, v.toJson()));
+            json.add("inputs", jsonInputs);
+
+            JsonObject jsonOutputs = new JsonObject();
+            outputs.forEach((k, v) -> jsonOutputs.add(k, v.toJson()));
+            json.add("outputs", jsonOutputs);
+
+            // Write to a temporary file first so that the state file is never half written
+            file.getParentFile().mkdirs();
+            File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(tmp), StandardCharsets.UTF_8)) {
+                GSON.toJson(json, writer);
+            }
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
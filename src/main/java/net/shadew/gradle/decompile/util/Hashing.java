@@ -0,0 +1,101 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * SHA-1 helpers used for fingerprints and download verification
+ */
+public final class Hashing {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private Hashing() {
+    }
+
+    /**
+     * Creates a new SHA-1 digest
+     */
+    public static MessageDigest sha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException exc) {
+            // Every Java platform is required to support SHA-1
+            throw new IllegalStateException(exc);
+        }
+    }
+
+    /**
+     * Converts bytes to a lowercase hexadecimal string
+     */
+    public static String hex(byte[] bytes) {
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = HEX[bytes[i] >>> 4 & 0xF];
+            out[i * 2 + 1] = HEX[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    /**
+     * Converts a hexadecimal SHA-1 hash string back to its 20 bytes
+     *
+     * @throws IllegalArgumentException When the string is not a hexadecimal SHA-1 hash
+     */
+    public static byte[] unhex(String hash) {
+        if (hash.length() != 40)
+            throw new IllegalArgumentException("Not a SHA-1 hash: " + hash);
+
+        byte[] bytes = new byte[20];
+        for (int i = 0; i < 20; i++) {
+            int hi = Character.digit(hash.charAt(i * 2), 16);
+            int lo = Character.digit(hash.charAt(i * 2 + 1), 16);
+            if (hi < 0 || lo < 0)
+                throw new IllegalArgumentException("Not a SHA-1 hash: " + hash);
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return bytes;
+    }
+
+    /**
+     * Feeds the full contents of a stream into a digest
+     */
+    public static void update(MessageDigest digest, InputStream in) throws IOException {
+        byte[] buf = new byte[65536];
+        int r;
+        while ((r = in.read(buf)) != -1) {
+            digest.update(buf, 0, r);
+        }
+    }
+
+    /**
+     * Computes the SHA-1 hash of a file, as hexadecimal string
+     */
+    public static String sha1(File file) throws IOException {
+        MessageDigest digest = sha1();
+        try (InputStream in = new FileInputStream(file)) {
+            update(digest, in);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-1 hash of a range of bytes, as hexadecimal string
+     */
+    public static String sha1(byte[] bytes, int off, int len) {
+        MessageDigest digest = sha1();
+        digest.update(bytes, off, len);
+        return hex(digest.digest());
+    }
+
+    /**
+     * Computes the SHA-1 hash of the UTF-8 encoding of a string, as hexadecimal string
+     */
+    public static String sha1(String str) {
+        return hex(sha1().digest(str.getBytes(StandardCharsets.UTF_8)));
+    }
+}
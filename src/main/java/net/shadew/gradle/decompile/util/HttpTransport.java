@@ -0,0 +1,235 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The HTTP transport shared by all download tasks of an {@link net.shadew.gradle.decompile.Environment}. It applies the
+ * same timeouts and headers to every request, and makes sure that every response is fully consumed and closed, so that
+ * the JDK can return the underlying connection to its keep-alive pool and reuse it for the next request to the same
+ * host.
+ * <p>
+ * The JDK keeps at most 5 idle connections per host, any connection beyond that is closed after use instead of reused.
+ * The transport therefore keeps at most {@link #setMaxConnections maxConnections} requests per host open at once, so
+ * that concurrent downloads share a small set of kept-alive connections rather than opening new ones. A request that
+ * has to wait longer than the connect timeout for its turn goes ahead anyway, on a connection of its own.
+ */
+public class HttpTransport {
+    private static final int DRAIN_LIMIT = 65536;
+
+    private final Map<String, Semaphore> hosts = new ConcurrentHashMap<>();
+
+    private int maxConnections = 5;
+    private int connectTimeout = 15000;
+    private int readTimeout = 30000;
+    private String userAgent = "compass-tasks";
+
+    /**
+     * Sets the timeout for establishing a connection, in milliseconds
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the timeout for reading from an established connection, in milliseconds
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * Sets the maximum amount of requests per host that are open at once. Set this no higher than the
+     * {@code http.maxConnections} system property (5 by default), or the extra connections are not reused.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections < 1)
+            throw new IllegalArgumentException("Need at least 1 connection");
+        this.maxConnections = maxConnections;
+        hosts.clear();
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public void setUserAgent(String userAgent) {
+        this.userAgent = userAgent;
+    }
+
+    public String getUserAgent() {
+        return userAgent;
+    }
+
+    /**
+     * Sends a GET request
+     */
+    public Response get(String url) throws IOException {
+        return get(url, Collections.emptyMap());
+    }
+
+    /**
+     * Sends a GET request with extra request headers
+     *
+     * @throws HttpException When the server responds with an error status (400 or higher)
+     */
+    public Response get(String url, Map<String, String> headers) throws IOException {
+        return get(url, headers, connectTimeout, readTimeout);
+    }
+
+    /**
+     * Sends a GET request with extra request headers and its own timeouts. A negative timeout uses the timeout of this
+     * transport.
+     *
+     * @throws HttpException When the server responds with an error status (400 or higher)
+     */
+    public Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException {
+        int connect = connectTimeout < 0 ? this.connectTimeout : connectTimeout;
+        URLConnection connection = new URL(url).openConnection();
+        connection.setConnectTimeout(connect);
+        connection.setReadTimeout(readTimeout < 0 ? this.readTimeout : readTimeout);
+        connection.setRequestProperty("User-Agent", userAgent);
+        headers.forEach(connection::setRequestProperty);
+
+        if (!(connection instanceof HttpURLConnection)) {
+            // Other protocols (file: URLs for example) have no status, they either work or throw
+            return new Response(connection, 200, connection.getInputStream(), null);
+        }
+
+        Semaphore permit = acquire(connection.getURL(), connect);
+        try {
+            HttpURLConnection http = (HttpURLConnection) connection;
+            int status = http.getResponseCode();
+            if (status >= 400) {
+                // Read the error body so the connection can be reused
+                drain(http.getErrorStream(), Long.MAX_VALUE);
+                throw new HttpException(url, status);
+            }
+
+            InputStream body = status == HttpURLConnection.HTTP_NOT_MODIFIED ? null : http.getInputStream();
+            Response response = new Response(connection, status, body, permit);
+            permit = null;
+            return response;
+        } finally {
+            if (permit != null)
+                permit.release();
+        }
+    }
+
+    private Semaphore acquire(URL url, int timeout) throws IOException {
+        String host = url.getProtocol() + "://" + url.getAuthority();
+        Semaphore semaphore = hosts.computeIfAbsent(host, k -> new Semaphore(maxConnections));
+        try {
+            // Don't wait forever, a caller may hold one response while opening another
+            return semaphore.tryAcquire(timeout > 0 ? timeout : Long.MAX_VALUE, TimeUnit.MILLISECONDS) ? semaphore : null;
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection to " + host);
+        }
+    }
+
+    private static void drain(InputStream in, long limit) {
+        if (in == null) return;
+
+        try (InputStream stream = in) {
+            byte[] buf = new byte[8192];
+            long total = 0;
+            int r;
+            while (total < limit && (r = stream.read(buf)) != -1) {
+                total += r;
+            }
+        } catch (IOException ignored) {
+            // Connection won't be reused, nothing we can do about it
+        }
+    }
+
+    /**
+     * A response to a request. Closing it drains a small remainder of the body, so that a response that was not fully
+     * read still leaves a reusable connection behind.
+     */
+    public static class Response implements Closeable {
+        private final URLConnection connection;
+        private final int status;
+        private final InputStream body;
+        private Semaphore permit;
+
+        private Response(URLConnection connection, int status, InputStream body, Semaphore permit) {
+            this.connection = connection;
+            this.status = status;
+            this.body = body;
+            this.permit = permit;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getHeader(String name) {
+            return connection.getHeaderField(name);
+        }
+
+        /**
+         * Returns the length of the body, or -1 when unknown
+         */
+        public long getContentLength() {
+            return connection.getContentLengthLong();
+        }
+
+        /**
+         * Returns the body, which is empty for a 304 response
+         */
+        public InputStream getBody() {
+            return body != null ? body : new InputStream() {
+                @Override
+                public int read() {
+                    return -1;
+                }
+            };
+        }
+
+        @Override
+        public void close() {
+            drain(body, DRAIN_LIMIT);
+            synchronized (this) {
+                if (permit != null) {
+                    permit.release();
+                    permit = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thrown when a server responds with an error status
+     */
+    public static class HttpException extends IOException {
+        private final int status;
+
+        public HttpException(String url, int status) {
+            super("HTTP " + status + " for " + url);
+            this.status = status;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+    }
+}
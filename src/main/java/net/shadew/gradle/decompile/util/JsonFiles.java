@@ -0,0 +1,22 @@
+package net.shadew.gradle.decompile.util;
+
+import com.google.gson.stream.JsonReader;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Helpers for reading JSON files as a stream of tokens, without building a tree of the whole file first
+ */
+public final class JsonFiles {
+    private JsonFiles() {
+    }
+
+    /**
+     * Opens a buffered UTF-8 JSON reader on a file
+     */
+    public static JsonReader reader(File file) throws IOException {
+        Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8);
+        return new JsonReader(new BufferedReader(reader, 64 * 1024));
+    }
+}
@@ -0,0 +1,436 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A packed store of objects keyed by their SHA-1 hash, as an alternative to one loose file per object. A pack is a
+ * directory with two files:
+ * <ul>
+ * <li>{@code objects.pack}: the contents of all objects, back to back. New objects are only ever appended.</li>
+ * <li>{@code objects.idx}: a header (magic and entry count) followed by one entry per object, sorted by hash. An entry
+ * is the 20-byte hash, followed by the offset and length of the object in the data file, as 64-bit big-endian
+ * integers.</li>
+ * </ul>
+ * The index is read into memory, so checking whether the pack has an object is a binary search in memory instead of a
+ * file system lookup. It is not memory-mapped, since a mapped file can't be replaced on Windows. Objects added to a
+ * writable pack are indexed in memory until {@link #commit()}, which writes a new index and atomically replaces the old
+ * one. The data is flushed before the index is replaced, so the index never points at data that is not on disk. Data
+ * appended by a writer that crashed before committing is never indexed and simply ignored.
+ * <p>
+ * Any number of readers can use a pack, but only one writer at a time: opening a pack for writing takes a file lock,
+ * and an in-process lock for other writers in the same process. Readers see the index as it was when they opened the
+ * pack. All methods of this class are thread safe.
+ */
+public final class ObjectPack implements Closeable {
+    private static final int MAGIC = 0x4F504B31; // OPK1
+    private static final int HEADER_BYTES = 8;
+    private static final int HASH_BYTES = 20;
+    private static final int ENTRY_BYTES = HASH_BYTES + 16;
+
+    // File locks can't be taken twice by the same process, so writers in this process also need an in-process lock
+    private static final Map<String, Semaphore> LOCKS = new ConcurrentHashMap<>();
+
+    private final File dir;
+    private final boolean writable;
+
+    private FileChannel data;
+    private ByteBuffer index;
+    private int count;
+    private final Map<String, long[]> added = new HashMap<>();
+
+    private Semaphore lock;
+    private FileChannel lockChannel;
+    private FileLock fileLock;
+
+    private ObjectPack(File dir, boolean writable) {
+        this.dir = dir.getAbsoluteFile();
+        this.writable = writable;
+    }
+
+    /**
+     * Opens a pack for reading. A pack that does not exist is opened as an empty pack.
+     */
+    public static ObjectPack open(File dir) throws IOException {
+        ObjectPack pack = new ObjectPack(dir, false);
+        pack.load();
+        return pack;
+    }
+
+    /**
+     * Opens a pack for reading and writing, creating it when it does not exist. This waits until no other writer has
+     * the pack opened. The pack must be closed to release the lock and to commit the added objects.
+     */
+    public static ObjectPack openWritable(File dir) throws IOException {
+        ObjectPack pack = new ObjectPack(dir, true);
+        pack.lock();
+        try {
+            pack.load();
+        } catch (IOException | RuntimeException exc) {
+            pack.unlock();
+            throw exc;
+        }
+        return pack;
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    public File getDataFile() {
+        return new File(dir, "objects.pack");
+    }
+
+    public File getIndexFile() {
+        return new File(dir, "objects.idx");
+    }
+
+    private void lock() throws IOException {
+        dir.mkdirs();
+        lock = LOCKS.computeIfAbsent(dir.getPath(), path -> new Semaphore(1));
+        lock.acquireUninterruptibly();
+        try {
+            lockChannel = FileChannel.open(new File(dir, "objects.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            fileLock = lockChannel.lock();
+        } catch (IOException | RuntimeException exc) {
+            unlock();
+            throw exc;
+        }
+    }
+
+    private void unlock() throws IOException {
+        try {
+            if (fileLock != null) fileLock.release();
+            if (lockChannel != null) lockChannel.close();
+        } finally {
+            fileLock = null;
+            lockChannel = null;
+            lock.release();
+        }
+    }
+
+    private void load() throws IOException {
+        File dataFile = getDataFile();
+        if (writable) {
+            data = FileChannel.open(dataFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        } else if (dataFile.exists()) {
+            data = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ);
+        }
+        readIndex();
+    }
+
+    private void readIndex() throws IOException {
+        File indexFile = getIndexFile();
+        if (!indexFile.exists()) {
+            index = ByteBuffer.allocate(HEADER_BYTES);
+            count = 0;
+            return;
+        }
+
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE)
+                throw new IOException("Object pack index too large: " + indexFile);
+
+            ByteBuffer buf = ByteBuffer.allocate((int) size).order(ByteOrder.BIG_ENDIAN);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) < 0)
+                    throw new IOException("Truncated object pack index: " + indexFile);
+            }
+            buf.flip();
+            if (buf.capacity() < HEADER_BYTES || buf.getInt(0) != MAGIC)
+                throw new IOException("Not an object pack index: " + indexFile);
+
+            int n = buf.getInt(4);
+            if ((long) n * ENTRY_BYTES + HEADER_BYTES > buf.capacity())
+                throw new IOException("Truncated object pack index: " + indexFile);
+
+            index = buf;
+            count = n;
+        }
+    }
+
+    /**
+     * Finds the index entry of a hash, or returns -1
+     */
+    private int find(byte[] hash) {
+        int lo = 0;
+        int hi = count - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int pos = HEADER_BYTES + mid * ENTRY_BYTES;
+
+            int cmp = 0;
+            for (int i = 0; i < HASH_BYTES && cmp == 0; i++) {
+                cmp = (index.get(pos + i) & 0xFF) - (hash[i] & 0xFF);
+            }
+
+            if (cmp < 0) lo = mid + 1;
+            else if (cmp > 0) hi = mid - 1;
+            else return mid;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the offset and length of an object, or null when the pack does not have it
+     */
+    private synchronized long[] locate(String hash) {
+        long[] loc = added.get(hash.toLowerCase());
+        if (loc != null)
+            return loc;
+
+        int entry = find(Hashing.unhex(hash));
+        if (entry < 0)
+            return null;
+
+        int pos = HEADER_BYTES + entry * ENTRY_BYTES + HASH_BYTES;
+        return new long[] {index.getLong(pos), index.getLong(pos + 8)};
+    }
+
+    /**
+     * Returns whether the pack has an object
+     */
+    public boolean has(String hash) {
+        return locate(hash) != null;
+    }
+
+    /**
+     * Returns the size of an object, or -1 when the pack does not have it
+     */
+    public long size(String hash) {
+        long[] loc = locate(hash);
+        return loc == null ? -1 : loc[1];
+    }
+
+    /**
+     * Returns the amount of objects in the pack
+     */
+    public synchronized int count() {
+        return count + added.size();
+    }
+
+    /**
+     * Returns the hashes of all objects in the pack, in sorted order
+     */
+    public synchronized List<String> getHashes() {
+        List<String> hashes = new ArrayList<>(count + added.size());
+        byte[] hash = new byte[HASH_BYTES];
+        for (int i = 0; i < count; i++) {
+            int pos = HEADER_BYTES + i * ENTRY_BYTES;
+            for (int j = 0; j < HASH_BYTES; j++) {
+                hash[j] = index.get(pos + j);
+            }
+            hashes.add(Hashing.hex(hash));
+        }
+        hashes.addAll(added.keySet());
+        Collections.sort(hashes);
+        return hashes;
+    }
+
+    /**
+     * Opens a stream that reads an object
+     *
+     * @throws FileNotFoundException When the pack does not have the object
+     */
+    public InputStream read(String hash) throws IOException {
+        long[] loc = locate(hash);
+        if (loc == null)
+            throw new FileNotFoundException("Object " + hash + " is not in pack " + dir);
+        return new ObjectInputStream(data, loc[0], loc[1]);
+    }
+
+    /**
+     * Writes an object to a file
+     */
+    public void export(String hash, File file) throws IOException {
+        long[] loc = locate(hash);
+        if (loc == null)
+            throw new FileNotFoundException("Object " + hash + " is not in pack " + dir);
+
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long done = 0;
+            while (done < loc[1]) {
+                done += data.transferTo(loc[0] + done, loc[1] - done, out);
+            }
+        }
+    }
+
+    /**
+     * Appends an object read from a stream. The hash of the data is checked while it is appended.
+     *
+     * @return False when the pack already had the object, true when it was added
+     * @throws IOException When the data does not have the given hash, in which case nothing is added
+     */
+    public synchronized boolean add(String hash, InputStream in) throws IOException {
+        if (!writable)
+            throw new IllegalStateException("Pack is not writable");
+        if (has(hash))
+            return false;
+
+        long offset = data.size();
+        MessageDigest digest = Hashing.sha1();
+        long length = 0;
+
+        byte[] buf = new byte[65536];
+        int r;
+        while ((r = in.read(buf)) != -1) {
+            digest.update(buf, 0, r);
+            ByteBuffer bb = ByteBuffer.wrap(buf, 0, r);
+            while (bb.hasRemaining()) {
+                data.write(bb, offset + length + bb.position());
+            }
+            length += r;
+        }
+
+        String actual = Hashing.hex(digest.digest());
+        if (!actual.equalsIgnoreCase(hash)) {
+            data.truncate(offset);
+            throw new IOException("Checksum mismatch for object " + hash + ": got " + actual);
+        }
+
+        added.put(hash.toLowerCase(), new long[] {offset, length});
+        return true;
+    }
+
+    /**
+     * Appends an object read from a file
+     */
+    public boolean add(String hash, File file) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return add(hash, in);
+        }
+    }
+
+    /**
+     * Writes the index, so that objects added since the last commit become visible to other readers
+     */
+    public synchronized void commit() throws IOException {
+        if (!writable || added.isEmpty())
+            return;
+
+        // Merge the existing sorted entries with the sorted new entries
+        List<String> newHashes = new ArrayList<>(added.keySet());
+        Collections.sort(newHashes);
+
+        int total = count + newHashes.size();
+        ByteBuffer out = ByteBuffer.allocate(HEADER_BYTES + total * ENTRY_BYTES).order(ByteOrder.BIG_ENDIAN);
+        out.putInt(MAGIC).putInt(total);
+
+        int i = 0;
+        int j = 0;
+        byte[] existing = new byte[HASH_BYTES];
+        while (i < count || j < newHashes.size()) {
+            boolean takeExisting;
+            byte[] fresh = j < newHashes.size() ? Hashing.unhex(newHashes.get(j)) : null;
+            if (i < count) {
+                int pos = HEADER_BYTES + i * ENTRY_BYTES;
+                for (int k = 0; k < HASH_BYTES; k++) {
+                    existing[k] = index.get(pos + k);
+                }
+                takeExisting = fresh == null || compare(existing, fresh) < 0;
+            } else {
+                takeExisting = false;
+            }
+
+            if (takeExisting) {
+                int pos = HEADER_BYTES + i * ENTRY_BYTES;
+                out.put(existing).putLong(index.getLong(pos + HASH_BYTES)).putLong(index.getLong(pos + HASH_BYTES + 8));
+                i++;
+            } else {
+                long[] loc = added.get(newHashes.get(j));
+                out.put(fresh).putLong(loc[0]).putLong(loc[1]);
+                j++;
+            }
+        }
+        out.flip();
+
+        // Data must be on disk before an index points at it
+        data.force(false);
+
+        File indexFile = getIndexFile();
+        File tmp = new File(dir, "objects.idx.tmp");
+        try (FileChannel channel = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+            channel.force(false);
+        }
+        Downloader.move(tmp, indexFile);
+
+        added.clear();
+        readIndex();
+    }
+
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < HASH_BYTES; i++) {
+            int cmp = (a[i] & 0xFF) - (b[i] & 0xFF);
+            if (cmp != 0) return cmp;
+        }
+        return 0;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            try {
+                if (data != null) data.close();
+            } finally {
+                data = null;
+                if (writable && lock != null) {
+                    unlock();
+                    lock = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a range of the data file with positional reads, so that many streams can read the same channel at once
+     */
+    private static class ObjectInputStream extends InputStream {
+        private final FileChannel channel;
+        private long position;
+        private final long end;
+
+        ObjectInputStream(FileChannel channel, long offset, long length) {
+            this.channel = channel;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (position >= end) return -1;
+            if (len == 0) return 0;
+
+            ByteBuffer buf = ByteBuffer.wrap(b, off, (int) Math.min(len, end - position));
+            int r = channel.read(buf, position);
+            if (r < 0) throw new EOFException("Object data is truncated");
+            position += r;
+            return r;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(Integer.MAX_VALUE, end - position);
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A machine-wide store of objects keyed by their SHA-1 hash, shared by all workspaces and versions that use the same
+ * cache directory. Objects are stored like the launcher stores them: {@code <dir>/<first two hash chars>/<hash>}.
+ * <p>
+ * Objects are fetched into a temporary file of their own and then moved into place, so a reader never sees a partial
+ * object. Only the move is guarded by a lock per two-character bucket, which is both a file lock (for other processes)
+ * and an in-process lock (file locks are held per process, so they don't exclude other threads). Threads of this
+ * process that want the same object wait for the thread fetching it, so it's fetched once. Other processes may fetch it
+ * at the same time, then the first to finish stores it.
+ */
+public class ObjectStore {
+    // File locks can't be taken twice by the same process, so all stores in this process share their in-process locks
+    private static final Map<String, ReentrantLock> LOCKS = new ConcurrentHashMap<>();
+
+    // Objects being fetched in this process, completed when the fetch ends
+    private static final Map<String, CompletableFuture<Void>> FETCHING = new ConcurrentHashMap<>();
+
+    private final File dir;
+
+    public ObjectStore(File dir) {
+        this.dir = dir.getAbsoluteFile();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Returns the path of an object in the store, whether it exists or not
+     */
+    public File get(String hash) {
+        return new File(dir, hash.substring(0, 2) + "/" + hash);
+    }
+
+    /**
+     * Checks whether the store has an object. Objects are verified before they are stored, so this only checks the size.
+     */
+    public boolean has(String hash, long size) {
+        File file = get(hash);
+        return file.isFile() && (size < 0 || file.length() == size);
+    }
+
+    /**
+     * Makes sure the store has an object, fetching it when it doesn't. While one thread fetches an object, others in this
+     * process wanting the same object wait for it, so that an object is not fetched twice.
+     *
+     * @param fetcher Writes the object to the given file. It must verify the hash, and may only create the file once it
+     *                is complete (as {@link Downloader} does).
+     * @return True when the object was fetched, false when the store already had it
+     */
+    public boolean fetch(String hash, long size, Fetcher fetcher) throws IOException {
+        String key = get(hash).getPath();
+        while (!has(hash, size)) {
+            CompletableFuture<Void> own = new CompletableFuture<>();
+            CompletableFuture<Void> running = FETCHING.putIfAbsent(key, own);
+            if (running == null) {
+                try {
+                    return fetchNow(hash, size, fetcher);
+                } finally {
+                    FETCHING.remove(key, own);
+                    own.complete(null);
+                }
+            }
+
+            // Another thread is fetching it, check again when it's done since it may have failed
+            running.join();
+        }
+        return false;
+    }
+
+    private boolean fetchNow(String hash, long size, Fetcher fetcher) throws IOException {
+        File object = get(hash);
+        File bucket = object.getParentFile();
+        bucket.mkdirs();
+
+        // Fetch without holding the lock, into a file no other fetch uses
+        Path tmp = Files.createTempFile(bucket.toPath(), hash, ".tmp");
+        try {
+            Files.delete(tmp);
+            fetcher.fetch(tmp.toFile());
+
+            File lockFile = new File(bucket, ".lock");
+            ReentrantLock lock = LOCKS.computeIfAbsent(lockFile.getPath(), path -> new ReentrantLock());
+            lock.lock();
+            try (FileChannel channel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+                FileLock fileLock = channel.lock();
+                try {
+                    // Another process may have stored it meanwhile, the objects are the same so keep the stored one
+                    if (!has(hash, size))
+                        Downloader.move(tmp.toFile(), object);
+                } finally {
+                    fileLock.release();
+                }
+            } finally {
+                lock.unlock();
+            }
+            return true;
+        } finally {
+            // The name is random, so a partial download left by a failed fetch would never be resumed
+            Files.deleteIfExists(tmp);
+            Downloader.discardPartial(tmp.toFile());
+        }
+    }
+
+    /**
+     * Puts an object from the store at the given path in a workspace
+     *
+     * @throws IllegalArgumentException When the mode is {@link Mode#LOOKUP}, which does not place anything
+     */
+    public void place(String hash, File target, Mode mode) throws IOException {
+        if (mode == Mode.LOOKUP)
+            throw new IllegalArgumentException("Objects are not placed in lookup mode");
+
+        File object = get(hash);
+        target.getAbsoluteFile().getParentFile().mkdirs();
+        if (target.exists()) {
+            if (mode == Mode.HARDLINK && Files.isSameFile(object.toPath(), target.toPath()))
+                return;
+            Files.delete(target.toPath());
+        }
+
+        if (mode == Mode.HARDLINK) {
+            try {
+                Files.createLink(target.toPath(), object.toPath());
+                return;
+            } catch (IOException | UnsupportedOperationException exc) {
+                // Store and workspace are on different file systems, or the file system has no hardlinks
+            }
+        }
+        Files.copy(object.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    public interface Fetcher {
+        void fetch(File out) throws IOException;
+    }
+
+    /**
+     * How objects in the store become available in a workspace
+     */
+    public enum Mode {
+        /**
+         * Hardlink objects into the workspace, which takes no extra space. Falls back to copying when hardlinks can't be
+         * made.
+         */
+        HARDLINK,
+
+        /**
+         * Copy objects into the workspace
+         */
+        COPY,
+
+        /**
+         * Don't put anything in the workspace, objects are looked up in the store directly
+         */
+        LOOKUP
+    }
+}
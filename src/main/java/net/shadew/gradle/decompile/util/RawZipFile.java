@@ -0,0 +1,334 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Reads the central directory of a zip file, so that the compressed data of its entries can be copied into another zip
+ * file as is, with {@link ZipWriter#copy}, without inflating and deflating it again. The zip file is read from disk, or
+ * from an image in memory (see {@link ArtifactStore}). ZIP64 files are not supported.
+ */
+public class RawZipFile implements Closeable {
+    private static final int LOCAL_HEADER = 0x04034B50;
+    private static final int CENTRAL_HEADER = 0x02014B50;
+    private static final int END_HEADER = 0x06054B50;
+
+    // The end record is 22 bytes, plus a comment of at most 65535 bytes
+    private static final int MAX_END_SIZE = 22 + 0xFFFF;
+
+    private final File file;
+    private final FileChannel channel;
+    private final ByteBuffer memory;
+    private final Map<String, Entry> entries = new LinkedHashMap<>();
+    private long length;
+
+    public RawZipFile(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        this.memory = null;
+        try {
+            readCentralDirectory();
+        } catch (IOException | RuntimeException exc) {
+            channel.close();
+            throw exc;
+        }
+    }
+
+    /**
+     * Reads a zip file from an image in memory, from the position to the limit of the given buffer. The file is only
+     * used in messages.
+     */
+    public RawZipFile(File file, ByteBuffer data) throws IOException {
+        this.file = file;
+        this.channel = null;
+        this.memory = data.slice().asReadOnlyBuffer();
+        readCentralDirectory();
+    }
+
+    /**
+     * Returns whether this zip file is read from memory
+     */
+    public boolean isInMemory() {
+        return memory != null;
+    }
+
+    private void readCentralDirectory() throws IOException {
+        long size = memory != null ? memory.capacity() : channel.size();
+        length = size;
+        int tailSize = (int) Math.min(size, MAX_END_SIZE);
+        ByteBuffer tail = read(size - tailSize, tailSize);
+
+        int end = -1;
+        for (int i = tailSize - 22; i >= 0; i--) {
+            if (tail.getInt(i) == END_HEADER) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0)
+            throw new ZipException("Not a zip file: " + file);
+
+        int count = tail.getShort(end + 10) & 0xFFFF;
+        long cdSize = tail.getInt(end + 12) & 0xFFFFFFFFL;
+        long cdOffset = tail.getInt(end + 16) & 0xFFFFFFFFL;
+        if (count == 0xFFFF || cdSize == 0xFFFFFFFFL || cdOffset == 0xFFFFFFFFL)
+            throw new ZipException("ZIP64 files are not supported: " + file);
+
+        ByteBuffer cd = read(cdOffset, (int) cdSize);
+        for (int i = 0; i < count; i++) {
+            int p = cd.position();
+            if (cd.getInt(p) != CENTRAL_HEADER)
+                throw new ZipException("Corrupt central directory: " + file);
+
+            int flags = cd.getShort(p + 8) & 0xFFFF;
+            int method = cd.getShort(p + 10) & 0xFFFF;
+            int time = cd.getShort(p + 12) & 0xFFFF;
+            int date = cd.getShort(p + 14) & 0xFFFF;
+            int crc = cd.getInt(p + 16);
+            long compressedSize = cd.getInt(p + 20) & 0xFFFFFFFFL;
+            long uncompressedSize = cd.getInt(p + 24) & 0xFFFFFFFFL;
+            int nameLen = cd.getShort(p + 28) & 0xFFFF;
+            int extraLen = cd.getShort(p + 30) & 0xFFFF;
+            int commentLen = cd.getShort(p + 32) & 0xFFFF;
+            long offset = cd.getInt(p + 42) & 0xFFFFFFFFL;
+
+            byte[] nameBytes = new byte[nameLen];
+            cd.position(p + 46);
+            cd.get(nameBytes);
+            cd.position(p + 46 + nameLen + extraLen + commentLen);
+
+            if ((flags & 1) != 0)
+                throw new ZipException("Encrypted entries are not supported: " + file);
+
+            // Zips written on Windows without the UTF-8 flag are effectively always ASCII
+            String name = new String(nameBytes, StandardCharsets.UTF_8);
+            entries.putIfAbsent(name, new Entry(name, method, time, date, crc, compressedSize, uncompressedSize, offset));
+        }
+    }
+
+    private ByteBuffer read(long pos, int len) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(len).order(ByteOrder.LITTLE_ENDIAN);
+        if (memory != null) {
+            buf.put(slice(pos, len));
+            buf.flip();
+            return buf;
+        }
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, pos + buf.position()) < 0)
+                throw new ZipException("Unexpected end of file: " + file);
+        }
+        buf.flip();
+        return buf;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream that reads the whole zip file from the start, for example to read it with a
+     * {@link java.util.jar.JarInputStream}
+     */
+    public InputStream openStream() throws IOException {
+        if (memory == null)
+            return new BufferedInputStream(new FileInputStream(file));
+
+        ByteBuffer buf = memory.duplicate();
+        buf.clear();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0) return 0;
+                if (!buf.hasRemaining()) return -1;
+
+                int n = Math.min(len, buf.remaining());
+                buf.get(b, off, n);
+                return n;
+            }
+        };
+    }
+
+    /**
+     * Returns the length of the zip file, in bytes
+     */
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Returns the entry with the given name, or null
+     */
+    public Entry getEntry(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Returns all entries, in the order of the central directory
+     */
+    public Collection<Entry> getEntries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /**
+     * Transfers the compressed data of an entry to a channel. This may be called from any thread.
+     */
+    public void transferTo(Entry entry, WritableByteChannel target) throws IOException {
+        long pos = dataOffset(entry);
+        if (memory != null) {
+            ByteBuffer data = slice(pos, entry.compressedSize);
+            while (data.hasRemaining()) {
+                target.write(data);
+            }
+            return;
+        }
+
+        long end = pos + entry.compressedSize;
+        while (pos < end) {
+            long n = channel.transferTo(pos, end - pos, target);
+            if (n <= 0)
+                throw new ZipException("Unexpected end of file: " + file);
+            pos += n;
+        }
+    }
+
+    /**
+     * Reads and decompresses the data of an entry. This may be called from any thread.
+     */
+    public byte[] read(Entry entry) throws IOException {
+        if (entry.size > Integer.MAX_VALUE - 8 || entry.compressedSize > Integer.MAX_VALUE - 8)
+            throw new ZipException("Entry too large to read into memory: " + entry.name);
+
+        ByteBuffer compressed = read(dataOffset(entry), (int) entry.compressedSize);
+        byte[] data;
+        switch (entry.method) {
+            case ZipEntry.STORED:
+                data = compressed.array();
+                break;
+
+            case ZipEntry.DEFLATED:
+                data = inflate(entry, compressed.array());
+                break;
+
+            default:
+                throw new ZipException("Unsupported compression method " + entry.method + " of " + entry.name + ": " + file);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        if ((int) crc.getValue() != entry.crc)
+            throw new ZipException("CRC mismatch of " + entry.name + ": " + file);
+        return data;
+    }
+
+    private byte[] inflate(Entry entry, byte[] compressed) throws IOException {
+        // Raw inflation may need an extra dummy byte after the input
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(Arrays.copyOf(compressed, compressed.length + 1));
+            byte[] data = new byte[(int) entry.size];
+            int n = 0;
+            while (n < data.length && !inflater.finished()) {
+                int read = inflater.inflate(data, n, data.length - n);
+                if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                    break;
+                n += read;
+            }
+            if (n != data.length)
+                throw new ZipException("Corrupt data of " + entry.name + ": " + file);
+            return data;
+        } catch (DataFormatException exc) {
+            throw new ZipException("Corrupt data of " + entry.name + ": " + file);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private ByteBuffer slice(long pos, long len) throws IOException {
+        if (pos < 0 || pos + len > memory.capacity())
+            throw new ZipException("Unexpected end of file: " + file);
+
+        ByteBuffer data = memory.duplicate();
+        data.position((int) pos);
+        data.limit((int) (pos + len));
+        return data;
+    }
+
+    private long dataOffset(Entry entry) throws IOException {
+        if (entry.dataOffset < 0) {
+            // The local header may have other extra data than the central header, so its length must be read from it
+            ByteBuffer header = read(entry.offset, 30);
+            if (header.getInt(0) != LOCAL_HEADER)
+                throw new ZipException("Corrupt local header of " + entry.name + ": " + file);
+            int nameLen = header.getShort(26) & 0xFFFF;
+            int extraLen = header.getShort(28) & 0xFFFF;
+            entry.dataOffset = entry.offset + 30 + nameLen + extraLen;
+        }
+        return entry.dataOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null)
+            channel.close();
+    }
+
+    public static class Entry {
+        final String name;
+        final int method;
+        final int time;
+        final int date;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+        volatile long dataOffset = -1;
+
+        private Entry(String name, int method, int time, int date, int crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.method = method;
+            this.time = time;
+            this.date = date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getCompressedSize() {
+            return compressedSize;
+        }
+
+        public long getSize() {
+            return size;
+        }
+    }
+}
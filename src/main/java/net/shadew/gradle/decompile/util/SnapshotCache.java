@@ -0,0 +1,166 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+/**
+ * Caches parsed JSON files (manifests, version info and assets indexes) as compact binary snapshots, so that they don't
+ * have to be parsed again on every run. A snapshot is read in one go and decoded directly, which is much faster than
+ * parsing the JSON. Snapshots are not memory-mapped, since a mapped file can't be replaced on Windows.
+ * <p>
+ * Each snapshot belongs to one JSON file and holds the SHA-1 hash of the JSON it was made from. It also holds the size
+ * and modification time of the JSON file, so that the JSON only has to be hashed again when the file was touched. When
+ * the hash no longer matches, the JSON is parsed and the snapshot is replaced.
+ */
+public class SnapshotCache {
+    private static final int MAGIC = 0x534E4150; // SNAP
+    private static final int VERSION = 2;
+
+    // Offset of the size and modification time of the JSON file in the header, which are updated in place
+    private static final int STAMP_OFFSET = 8;
+
+    private final File dir;
+
+    public SnapshotCache(File dir) {
+        this.dir = dir.getAbsoluteFile();
+    }
+
+    public File getDir() {
+        return dir;
+    }
+
+    /**
+     * Returns the snapshot file of a JSON file
+     */
+    public File getSnapshotFile(String kind, File json) {
+        String key = Hashing.sha1(json.getAbsolutePath()).substring(0, 16);
+        return new File(dir, kind + "-" + key + ".bin");
+    }
+
+    /**
+     * Loads a JSON file from its snapshot if it has a valid one, or parses it and snapshots it otherwise
+     *
+     * @param kind    The kind of data, which is part of the snapshot's name and is checked when reading it
+     * @param json    The JSON file
+     * @param parser  Parses the JSON file
+     * @param encoder Writes the parsed data to a snapshot
+     * @param decoder Reads the parsed data from a snapshot
+     */
+    public <T> T load(String kind, File json, Parser<T> parser, Encoder<T> encoder, Decoder<T> decoder) throws Exception {
+        File snapshot = getSnapshotFile(kind, json);
+        long length = json.length();
+        long modified = json.lastModified();
+
+        if (snapshot.isFile()) {
+            try {
+                T value = read(kind, json, snapshot, length, modified, decoder);
+                if (value != null)
+                    return value;
+            } catch (IOException | RuntimeException exc) {
+                // Corrupt or from an older format, replace it
+            }
+        }
+
+        String hash = Hashing.sha1(json);
+        T value = parser.parse(json);
+        write(kind, snapshot, hash, length, modified, value, encoder);
+        return value;
+    }
+
+    private <T> T read(String kind, File json, File snapshot, long length, long modified, Decoder<T> decoder) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(Files.readAllBytes(snapshot.toPath()));
+        try {
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+                return null;
+
+            long snapLength = buf.getLong();
+            long snapModified = buf.getLong();
+            String hash = readString(buf);
+            if (!kind.equals(readString(buf)))
+                return null;
+
+            if (snapLength != length || snapModified != modified) {
+                // The file was touched, it's only changed when its contents changed
+                if (!Hashing.sha1(json).equals(hash))
+                    return null;
+                updateStamp(snapshot, length, modified);
+            }
+
+            return decoder.decode(buf);
+        } catch (BufferUnderflowException exc) {
+            throw new IOException("Truncated snapshot", exc);
+        }
+    }
+
+    private static void updateStamp(File snapshot, long length, long modified) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(snapshot, "rw")) {
+            file.seek(STAMP_OFFSET);
+            file.writeLong(length);
+            file.writeLong(modified);
+        }
+    }
+
+    private <T> void write(String kind, File snapshot, String hash, long length, long modified, T value, Encoder<T> encoder) {
+        File tmp = null;
+        try {
+            dir.mkdirs();
+            tmp = File.createTempFile(snapshot.getName(), ".tmp", dir);
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(length);
+                out.writeLong(modified);
+                writeString(out, hash);
+                writeString(out, kind);
+                encoder.encode(value, out);
+            }
+            Downloader.move(tmp, snapshot);
+        } catch (IOException | RuntimeException exc) {
+            // A snapshot is only an optimization, we parsed the data already. Don't leave a stale snapshot behind, it
+            // would make every later load hash the JSON only to find it outdated.
+            if (tmp != null)
+                tmp.delete();
+            snapshot.delete();
+        }
+    }
+
+    /**
+     * Writes a nullable string as its length followed by its UTF-8 bytes
+     */
+    public static void writeString(DataOutput out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString}
+     */
+    public static String readString(ByteBuffer in) {
+        int len = in.getInt();
+        if (len < 0)
+            return null;
+        byte[] bytes = new byte[len];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public interface Parser<T> {
+        T parse(File json) throws Exception;
+    }
+
+    public interface Encoder<T> {
+        void encode(T value, DataOutput out) throws IOException;
+    }
+
+    public interface Decoder<T> {
+        T decode(ByteBuffer in) throws IOException;
+    }
+}
@@ -3,10 +3,12 @@ package net.shadew.gradle.decompile.util;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 
 public class VersionInfo {
@@ -93,10 +95,92 @@ public class VersionInfo {
         );
     }
 
+    /**
+     * Reads version info from a stream, building libraries directly and skipping properties that are not used
+     */
+    public static VersionInfo read(JsonReader in) throws IOException {
+        String assets = null;
+        Download assetsIndex = null;
+        Map<String, Download> downloads = new HashMap<>();
+        List<Library> libraries = new ArrayList<>();
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "assets":
+                    assets = in.nextString();
+                    break;
+                case "assetIndex":
+                    assetsIndex = Download.read(in);
+                    break;
+                case "downloads":
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        downloads.put(in.nextName(), Download.read(in));
+                    }
+                    in.endObject();
+                    break;
+                case "libraries":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        libraries.add(Library.read(in));
+                    }
+                    in.endArray();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+
+        return new VersionInfo(
+            assets,
+            assetsIndex,
+            downloads.get("client"),
+            downloads.get("client_mappings"),
+            downloads.get("server"),
+            downloads.get("server_mappings"),
+            Collections.unmodifiableList(libraries)
+        );
+    }
+
+    /**
+     * Writes this version info to a binary {@link SnapshotCache} snapshot
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        SnapshotCache.writeString(out, assets);
+        Download.writeBinary(out, assetsIndex);
+        Download.writeBinary(out, clientJar);
+        Download.writeBinary(out, clientMappings);
+        Download.writeBinary(out, serverJar);
+        Download.writeBinary(out, serverMappings);
+        out.writeInt(libraries.size());
+        for (Library lib : libraries) {
+            lib.writeBinary(out);
+        }
+    }
+
+    /**
+     * Reads version info from a binary {@link SnapshotCache} snapshot
+     */
+    public static VersionInfo readBinary(ByteBuffer in) {
+        String assets = SnapshotCache.readString(in);
+        Download assetsIndex = Download.readBinary(in);
+        Download clientJar = Download.readBinary(in);
+        Download clientMappings = Download.readBinary(in);
+        Download serverJar = Download.readBinary(in);
+        Download serverMappings = Download.readBinary(in);
+        int count = in.getInt();
+        List<Library> libraries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            libraries.add(Library.readBinary(in));
+        }
+        return new VersionInfo(assets, assetsIndex, clientJar, clientMappings, serverJar, serverMappings, Collections.unmodifiableList(libraries));
+    }
+
     public static VersionInfo fromFile(File file) throws Exception {
-        try (FileReader reader = new FileReader(file)) {
-            JsonElement element = JsonParser.parseReader(reader);
-            return fromJson(element.getAsJsonObject());
+        try (JsonReader in = JsonFiles.reader(file)) {
+            return read(in);
         }
     }
 
@@ -130,6 +214,26 @@ public class VersionInfo {
                 json.get("size").getAsLong()
             );
         }
+
+        public static Download read(JsonReader in) throws IOException {
+            LibraryDownload download = LibraryDownload.read(in);
+            return new Download(download.getUrl(), download.getSha1(), download.getSize());
+        }
+
+        static void writeBinary(DataOutput out, Download download) throws IOException {
+            out.writeBoolean(download != null);
+            if (download != null) {
+                SnapshotCache.writeString(out, download.url);
+                SnapshotCache.writeString(out, download.sha1);
+                out.writeLong(download.size);
+            }
+        }
+
+        static Download readBinary(ByteBuffer in) {
+            if (in.get() == 0)
+                return null;
+            return new Download(SnapshotCache.readString(in), SnapshotCache.readString(in), in.getLong());
+        }
     }
 
     public static class Library {
@@ -202,7 +306,10 @@ public class VersionInfo {
             JsonObject jsonDownloads = json.getAsJsonObject("downloads");
             JsonObject jsonClassifiers = jsonDownloads.getAsJsonObject("classifiers");
 
-            LibraryDownload artifact = LibraryDownload.fromJson(jsonDownloads.getAsJsonObject("artifact"));
+            // Libraries that only have natives have no main artifact
+            LibraryDownload artifact = jsonDownloads.has("artifact")
+                                       ? LibraryDownload.fromJson(jsonDownloads.getAsJsonObject("artifact"))
+                                       : null;
             Map<String, LibraryDownload> classifiers = new HashMap<>();
             if (jsonClassifiers != null) {
                 for (Map.Entry<String, JsonElement> entry : jsonClassifiers.entrySet()) {
@@ -230,6 +337,111 @@ public class VersionInfo {
 
             return new Library(artifact, classifiers, name, natives, rules);
         }
+
+        public static Library read(JsonReader in) throws IOException {
+            LibraryDownload artifact = null;
+            Map<String, LibraryDownload> classifiers = new HashMap<>();
+            ArtifactName name = null;
+            Natives natives = new Natives(Collections.emptyMap());
+            List<Rule> rules = new ArrayList<>();
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        name = ArtifactName.fromString(in.nextString());
+                        break;
+                    case "downloads":
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            switch (in.nextName()) {
+                                case "artifact":
+                                    artifact = LibraryDownload.read(in);
+                                    break;
+                                case "classifiers":
+                                    in.beginObject();
+                                    while (in.hasNext()) {
+                                        classifiers.put(in.nextName(), LibraryDownload.read(in));
+                                    }
+                                    in.endObject();
+                                    break;
+                                default:
+                                    in.skipValue();
+                            }
+                        }
+                        in.endObject();
+                        break;
+                    case "natives":
+                        natives = Natives.read(in);
+                        break;
+                    case "rules":
+                        in.beginArray();
+                        while (in.hasNext()) {
+                            rules.add(Rule.read(in));
+                        }
+                        in.endArray();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return new Library(artifact, Collections.unmodifiableMap(classifiers), name, natives, Collections.unmodifiableList(rules));
+        }
+
+        void writeBinary(DataOutput out) throws IOException {
+            SnapshotCache.writeString(out, name.toString());
+            LibraryDownload.writeBinary(out, artifact);
+            out.writeInt(classifiers.size());
+            for (Map.Entry<String, LibraryDownload> entry : classifiers.entrySet()) {
+                SnapshotCache.writeString(out, entry.getKey());
+                LibraryDownload.writeBinary(out, entry.getValue());
+            }
+            out.writeInt(natives.getNativeClassifiers().size());
+            for (Map.Entry<OS, String> entry : natives.getNativeClassifiers().entrySet()) {
+                out.writeByte(entry.getKey().ordinal());
+                SnapshotCache.writeString(out, entry.getValue());
+            }
+            out.writeInt(rules.size());
+            for (Rule rule : rules) {
+                out.writeByte(rule.action.ordinal());
+                out.writeByte(rule.os == null ? -1 : rule.os.ordinal());
+            }
+        }
+
+        static Library readBinary(ByteBuffer in) {
+            ArtifactName name = ArtifactName.fromString(SnapshotCache.readString(in));
+            LibraryDownload artifact = LibraryDownload.readBinary(in);
+
+            int count = in.getInt();
+            Map<String, LibraryDownload> classifiers = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                classifiers.put(SnapshotCache.readString(in), LibraryDownload.readBinary(in));
+            }
+
+            count = in.getInt();
+            Map<OS, String> nativeClassifiers = new EnumMap<>(OS.class);
+            for (int i = 0; i < count; i++) {
+                nativeClassifiers.put(OS.values()[in.get()], SnapshotCache.readString(in));
+            }
+
+            count = in.getInt();
+            List<Rule> rules = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                RuleAction action = RuleAction.values()[in.get()];
+                byte os = in.get();
+                rules.add(new Rule(action, os < 0 ? null : OS.values()[os]));
+            }
+
+            return new Library(
+                artifact,
+                Collections.unmodifiableMap(classifiers),
+                name,
+                new Natives(Collections.unmodifiableMap(nativeClassifiers)),
+                Collections.unmodifiableList(rules)
+            );
+        }
     }
 
     public static class LibraryDownload extends Download {
@@ -252,6 +464,48 @@ public class VersionInfo {
                 json.get("path").getAsString()
             );
         }
+
+        public static LibraryDownload read(JsonReader in) throws IOException {
+            String url = null;
+            String sha1 = null;
+            long size = -1;
+            String path = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "url":
+                        url = in.nextString();
+                        break;
+                    case "sha1":
+                        sha1 = in.nextString();
+                        break;
+                    case "size":
+                        size = in.nextLong();
+                        break;
+                    case "path":
+                        path = in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new LibraryDownload(url, sha1, size, path);
+        }
+
+        static void writeBinary(DataOutput out, LibraryDownload download) throws IOException {
+            Download.writeBinary(out, download);
+            if (download != null)
+                SnapshotCache.writeString(out, download.path);
+        }
+
+        static LibraryDownload readBinary(ByteBuffer in) {
+            Download download = Download.readBinary(in);
+            if (download == null)
+                return null;
+            return new LibraryDownload(download.getUrl(), download.getSha1(), download.getSize(), SnapshotCache.readString(in));
+        }
     }
 
     public static class ArtifactName {
@@ -314,6 +568,17 @@ public class VersionInfo {
             }
             return new Natives(Collections.unmodifiableMap(nativeClassifiers));
         }
+
+        public static Natives read(JsonReader in) throws IOException {
+            Map<OS, String> nativeClassifiers = new EnumMap<>(OS.class);
+            in.beginObject();
+            while (in.hasNext()) {
+                OS os = OS.valueOf(in.nextName().toUpperCase());
+                nativeClassifiers.put(os, in.nextString());
+            }
+            in.endObject();
+            return new Natives(Collections.unmodifiableMap(nativeClassifiers));
+        }
     }
 
     public static class Rule {
@@ -341,6 +606,35 @@ public class VersionInfo {
                 : null
             );
         }
+
+        public static Rule read(JsonReader in) throws IOException {
+            RuleAction action = null;
+            OS os = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "action":
+                        action = RuleAction.valueOf(in.nextString().toUpperCase());
+                        break;
+                    case "os":
+                        in.beginObject();
+                        while (in.hasNext()) {
+                            if (in.nextName().equals("name")) {
+                                os = OS.valueOf(in.nextString().toUpperCase());
+                            } else {
+                                in.skipValue();
+                            }
+                        }
+                        in.endObject();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Rule(action, os);
+        }
     }
 
     public enum RuleAction {
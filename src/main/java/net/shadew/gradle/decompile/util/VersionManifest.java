@@ -3,11 +3,12 @@ package net.shadew.gradle.decompile.util;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
 
+import java.io.DataOutput;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
@@ -36,10 +37,82 @@ public class VersionManifest {
         return new VersionManifest(latestRelease, latestSnapshot, Collections.unmodifiableMap(versionMap));
     }
 
+    /**
+     * Reads a version manifest from a stream, building versions directly and skipping properties that are not used
+     */
+    public static VersionManifest read(JsonReader in) throws IOException {
+        Map<String, Version> versionMap = new HashMap<>();
+        String latestRelease = null;
+        String latestSnapshot = null;
+
+        in.beginObject();
+        while (in.hasNext()) {
+            switch (in.nextName()) {
+                case "versions":
+                    in.beginArray();
+                    while (in.hasNext()) {
+                        Version ver = Version.read(in);
+                        versionMap.put(ver.getId(), ver);
+                    }
+                    in.endArray();
+                    break;
+                case "latest":
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        switch (in.nextName()) {
+                            case "release":
+                                latestRelease = in.nextString();
+                                break;
+                            case "snapshot":
+                                latestSnapshot = in.nextString();
+                                break;
+                            default:
+                                in.skipValue();
+                        }
+                    }
+                    in.endObject();
+                    break;
+                default:
+                    in.skipValue();
+            }
+        }
+        in.endObject();
+        return new VersionManifest(latestRelease, latestSnapshot, Collections.unmodifiableMap(versionMap));
+    }
+
+    /**
+     * Writes this manifest to a binary {@link SnapshotCache} snapshot
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        SnapshotCache.writeString(out, latestRelease == null ? null : latestRelease.getId());
+        SnapshotCache.writeString(out, latestSnapshot == null ? null : latestSnapshot.getId());
+        out.writeInt(versions.size());
+        for (Version version : versions.values()) {
+            SnapshotCache.writeString(out, version.getId());
+            out.writeByte(version.getType().ordinal());
+            SnapshotCache.writeString(out, version.getUrl());
+        }
+    }
+
+    /**
+     * Reads a manifest from a binary {@link SnapshotCache} snapshot
+     */
+    public static VersionManifest readBinary(ByteBuffer in) {
+        String latestRelease = SnapshotCache.readString(in);
+        String latestSnapshot = SnapshotCache.readString(in);
+        int count = in.getInt();
+        Map<String, Version> versionMap = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            String id = SnapshotCache.readString(in);
+            VersionType type = VersionType.values()[in.get()];
+            versionMap.put(id, new Version(id, type, SnapshotCache.readString(in)));
+        }
+        return new VersionManifest(latestRelease, latestSnapshot, Collections.unmodifiableMap(versionMap));
+    }
+
     public static VersionManifest fromFile(File file) throws IOException {
-        try(FileReader reader = new FileReader(file)) {
-            JsonElement element = JsonParser.parseReader(reader);
-            return fromJson(element.getAsJsonObject());
+        try (JsonReader in = JsonFiles.reader(file)) {
+            return read(in);
         }
     }
 
@@ -94,6 +167,31 @@ public class VersionManifest {
                 json.get("url").getAsString()
             );
         }
+
+        public static Version read(JsonReader in) throws IOException {
+            String id = null;
+            VersionType type = null;
+            String url = null;
+
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "id":
+                        id = in.nextString();
+                        break;
+                    case "type":
+                        type = VersionType.valueOf(in.nextString().toUpperCase());
+                        break;
+                    case "url":
+                        url = in.nextString();
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Version(id, type, url);
+        }
     }
 
     public enum VersionType {
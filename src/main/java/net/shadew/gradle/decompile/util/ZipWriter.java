@@ -0,0 +1,367 @@
+package net.shadew.gradle.decompile.util;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Writes a zip file. Unlike {@link java.util.zip.ZipOutputStream}, this can copy entries from a {@link RawZipFile}
+ * without inflating and deflating them, and entries can be compressed up front on other threads (see
+ * {@link #deflate}). Every local header holds the sizes and CRC of its entry, so no data descriptors are written.
+ * <p>
+ * New entries are compressed at the level the writer was opened with. Level {@link #STORED} stores entries without
+ * compressing them, which is useful for intermediate files that are read back right away: writing and reading them is
+ * then close to pure I/O. Copied entries keep their compression.
+ * <p>
+ * A writer is not thread safe, only {@link #deflate} may be called from multiple threads. ZIP64 files, which are needed
+ * for more than 65535 entries or more than 4 GB of data, are not supported.
+ */
+public class ZipWriter implements Closeable {
+    /**
+     * The level that stores entries without compressing them
+     */
+    public static final int STORED = Deflater.NO_COMPRESSION;
+
+    /**
+     * The default compression level of the deflater, a trade-off between speed and size
+     */
+    public static final int DEFAULT = Deflater.DEFAULT_COMPRESSION;
+
+    private static final int LOCAL_HEADER = 0x04034B50;
+    private static final int CENTRAL_HEADER = 0x02014B50;
+    private static final int END_HEADER = 0x06054B50;
+
+    private static final int VERSION = 20;
+    private static final int UTF8_FLAG = 0x800;
+    private static final long MAX_SIZE = 0xFFFFFFFFL;
+    private static final int MAX_ENTRIES = 0xFFFF;
+
+    // One deflater per level and thread, indexed by level + 1
+    private static final ThreadLocal<Deflater[]> DEFLATERS = ThreadLocal.withInitial(() -> new Deflater[11]);
+
+    private final File file;
+    private final WritableByteChannel channel;
+    private final List<Central> entries = new ArrayList<>();
+    private final Set<String> names = new HashSet<>();
+    private final ByteBuffer header = ByteBuffer.allocate(30 + 0xFFFF).order(ByteOrder.LITTLE_ENDIAN);
+    // New entries get a fixed time, 1980-02-01 00:00, so that writing the same entries gives the same bytes. This keeps
+    // the hashes of intermediate jars stable, so tasks reading them stay up to date.
+    private static final int TIME = 0;
+    private static final int DATE = 2 << 5 | 1;
+
+    private final int level;
+    private long position;
+
+    public ZipWriter(File file) throws IOException {
+        this(file, DEFAULT);
+    }
+
+    public ZipWriter(File file, int level) throws IOException {
+        this(file, FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING
+        ), level);
+    }
+
+    /**
+     * Writes a zip file to a channel, which is closed when the writer is closed. The file is only used in messages.
+     */
+    public ZipWriter(File file, WritableByteChannel channel, int level) throws IOException {
+        try {
+            checkLevel(level);
+        } catch (IllegalArgumentException exc) {
+            channel.close();
+            throw exc;
+        }
+        this.file = file;
+        this.channel = channel;
+        this.level = level;
+    }
+
+    /**
+     * Checks that a compression level is {@link #STORED}, {@link #DEFAULT} or a deflate level from 1 to 9
+     */
+    public static void checkLevel(int level) {
+        if (level < -1 || level > 9)
+            throw new IllegalArgumentException("Compression level must be -1 (default), 0 (stored) or from 1 to 9");
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the amount of bytes written so far, which is the length of the zip file once the writer is closed
+     */
+    public long getLength() {
+        return position;
+    }
+
+    /**
+     * Compresses the given data at the default level into an entry that can be written with
+     * {@link #write(String, Data)}. This may be called from any thread.
+     */
+    public static Data deflate(byte[] data, int off, int len) {
+        return deflate(data, off, len, DEFAULT);
+    }
+
+    /**
+     * Compresses the given data at the given level into an entry that can be written with {@link #write(String, Data)}.
+     * This may be called from any thread.
+     */
+    public static Data deflate(byte[] data, int off, int len, int level) {
+        checkLevel(level);
+        CRC32 crc = new CRC32();
+        crc.update(data, off, len);
+
+        if (len == 0 || level == STORED)
+            return new Data(ZipEntry.STORED, (int) crc.getValue(), len, data, off, len);
+
+        Deflater[] deflaters = DEFLATERS.get();
+        Deflater deflater = deflaters[level + 1];
+        if (deflater == null)
+            deflater = deflaters[level + 1] = new Deflater(level, true);
+        try {
+            deflater.setInput(data, off, len);
+            deflater.finish();
+
+            byte[] buf = new byte[Math.max(64, len / 2)];
+            int n = 0;
+            while (!deflater.finished()) {
+                if (n == buf.length) {
+                    // Don't bother when compression makes it larger
+                    if (n >= len)
+                        return new Data(ZipEntry.STORED, (int) crc.getValue(), len, data, off, len);
+                    buf = Arrays.copyOf(buf, buf.length * 2);
+                }
+                n += deflater.deflate(buf, n, buf.length - n);
+            }
+
+            if (n >= len)
+                return new Data(ZipEntry.STORED, (int) crc.getValue(), len, data, off, len);
+            return new Data(ZipEntry.DEFLATED, (int) crc.getValue(), len, buf, 0, n);
+        } finally {
+            deflater.reset();
+        }
+    }
+
+    /**
+     * Compresses and writes an entry, at the level of this writer
+     */
+    public void write(String name, byte[] data, int off, int len) throws IOException {
+        write(name, deflate(data, off, len, level));
+    }
+
+    /**
+     * Writes an entry that was compressed with {@link #deflate}
+     */
+    public void write(String name, Data data) throws IOException {
+        Central entry = begin(name, data.method, TIME, DATE, data.crc, data.compressedLength, data.size);
+        ByteBuffer buf = ByteBuffer.wrap(data.bytes, data.off, data.compressedLength);
+        while (buf.hasRemaining()) {
+            channel.write(buf);
+        }
+        end(entry);
+    }
+
+    /**
+     * Copies an entry from another zip file as is, under the given name
+     */
+    public void copy(String name, RawZipFile source, RawZipFile.Entry from) throws IOException {
+        Central entry = begin(name, from.method, from.time, from.date, from.crc, from.compressedSize, from.size);
+        source.transferTo(from, channel);
+        end(entry);
+    }
+
+    /**
+     * Opens an entry as a stream. The data is buffered and written when the stream is closed, no other entries may be
+     * written while it is open.
+     */
+    public OutputStream open(String name) {
+        return new ByteArrayOutputStream() {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) return;
+                closed = true;
+                ZipWriter.this.write(name, buf, 0, count);
+            }
+        };
+    }
+
+    private Central begin(String name, int method, int time, int date, int crc, long compressedSize, long size) throws IOException {
+        if (!names.add(name))
+            throw new ZipException("Duplicate entry: " + name);
+        if (entries.size() >= MAX_ENTRIES)
+            throw new ZipException("Too many entries, ZIP64 is not supported: " + file);
+        if (compressedSize >= MAX_SIZE || size >= MAX_SIZE)
+            throw new ZipException("Entry too large, ZIP64 is not supported: " + name);
+
+        byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > 0xFFFF)
+            throw new ZipException("Entry name too long: " + name);
+        int flags = nameBytes.length != name.length() ? UTF8_FLAG : 0;
+        Central entry = new Central(nameBytes, flags, method, time, date, crc, compressedSize, size, position);
+
+        header.clear();
+        header.putInt(LOCAL_HEADER);
+        header.putShort((short) VERSION);
+        header.putShort((short) flags);
+        header.putShort((short) method);
+        header.putShort((short) time);
+        header.putShort((short) date);
+        header.putInt(crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) 0);
+        header.put(nameBytes);
+        header.flip();
+        position += header.remaining();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        return entry;
+    }
+
+    private void end(Central entry) throws IOException {
+        position += entry.compressedSize;
+        if (position >= MAX_SIZE)
+            throw new ZipException("File too large, ZIP64 is not supported: " + file);
+        entries.add(entry);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            writeCentralDirectory();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeCentralDirectory() throws IOException {
+        long cdOffset = position;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(46).order(ByteOrder.LITTLE_ENDIAN);
+
+        for (Central entry : entries) {
+            buf.clear();
+            buf.putInt(CENTRAL_HEADER);
+            buf.putShort((short) VERSION);
+            buf.putShort((short) VERSION);
+            buf.putShort((short) entry.flags);
+            buf.putShort((short) entry.method);
+            buf.putShort((short) entry.time);
+            buf.putShort((short) entry.date);
+            buf.putInt(entry.crc);
+            buf.putInt((int) entry.compressedSize);
+            buf.putInt((int) entry.size);
+            buf.putShort((short) entry.name.length);
+            buf.putShort((short) 0); // Extra length
+            buf.putShort((short) 0); // Comment length
+            buf.putShort((short) 0); // Disk number
+            buf.putShort((short) 0); // Internal attributes
+            buf.putInt(0);           // External attributes
+            buf.putInt((int) entry.offset);
+            bytes.write(buf.array(), 0, 46);
+            bytes.write(entry.name);
+        }
+
+        long cdSize = bytes.size();
+        if (cdOffset + cdSize >= MAX_SIZE)
+            throw new ZipException("File too large, ZIP64 is not supported: " + file);
+
+        buf.clear();
+        buf.putInt(END_HEADER);
+        buf.putShort((short) 0); // Disk number
+        buf.putShort((short) 0); // Disk with central directory
+        buf.putShort((short) entries.size());
+        buf.putShort((short) entries.size());
+        buf.putInt((int) cdSize);
+        buf.putInt((int) cdOffset);
+        buf.putShort((short) 0); // Comment length
+        bytes.write(buf.array(), 0, 22);
+
+        ByteBuffer out = ByteBuffer.wrap(bytes.toByteArray());
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        position += out.capacity();
+    }
+
+    /**
+     * An entry compressed by {@link #deflate}, ready to be written
+     */
+    public static class Data {
+        final int method;
+        final int crc;
+        final long size;
+        final byte[] bytes;
+        final int off;
+        final int compressedLength;
+
+        private Data(int method, int crc, long size, byte[] bytes, int off, int compressedLength) {
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.bytes = bytes;
+            this.off = off;
+            this.compressedLength = compressedLength;
+        }
+
+        public int getMethod() {
+            return method;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getCompressedSize() {
+            return compressedLength;
+        }
+    }
+
+    private static class Central {
+        final byte[] name;
+        final int flags;
+        final int method;
+        final int time;
+        final int date;
+        final int crc;
+        final long compressedSize;
+        final long size;
+        final long offset;
+
+        Central(byte[] name, int flags, int method, int time, int date, int crc, long compressedSize, long size, long offset) {
+            this.name = name;
+            this.flags = flags;
+            this.method = method;
+            this.time = time;
+            this.date = date;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.offset = offset;
+        }
+    }
+}
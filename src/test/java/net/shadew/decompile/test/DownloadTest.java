@@ -0,0 +1,603 @@
+package net.shadew.decompile.test;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+import net.shadew.gradle.decompile.Environment;
+import net.shadew.gradle.decompile.ProgressRenderer;
+import net.shadew.gradle.decompile.TaskFailException;
+import net.shadew.gradle.decompile.task.DownloadAssets;
+import net.shadew.gradle.decompile.task.DownloadLibraries;
+import net.shadew.gradle.decompile.task.ExportObjects;
+import net.shadew.gradle.decompile.task.ImportObjects;
+import net.shadew.gradle.decompile.task.SimpleDownload;
+import net.shadew.gradle.decompile.util.AssetsIndex;
+import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.DownloadPolicy;
+import net.shadew.gradle.decompile.util.Downloader;
+import net.shadew.gradle.decompile.util.Hashing;
+import net.shadew.gradle.decompile.util.HttpTransport;
+import net.shadew.gradle.decompile.util.OS;
+import net.shadew.gradle.decompile.util.ObjectPack;
+import net.shadew.gradle.decompile.util.VersionInfo;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs downloads against a local stand-in server
+ */
+public class DownloadTest {
+    private static final String ETAG = "\"v1\"";
+
+    private HttpServer server;
+    private String base;
+    private File dir;
+
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final Set<Integer> clientPorts = ConcurrentHashMap.newKeySet();
+    private final Map<String, String> lastHeaders = new ConcurrentHashMap<>();
+    private final AtomicLong servedBytes = new AtomicLong();
+    private final AtomicInteger rangeRequests = new AtomicInteger();
+    private final Map<String, Queue<Fault>> faults = new ConcurrentHashMap<>();
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            clientPorts.add(exchange.getRemoteAddress().getPort());
+            exchange.getRequestHeaders().forEach((k, v) -> lastHeaders.put(k.toLowerCase(), v.get(0)));
+
+            String path = exchange.getRequestURI().getPath();
+            byte[] data = files.get(path);
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) ;
+            }
+
+            Queue<Fault> pathFaults = faults.get(path);
+            Fault fault = pathFaults == null ? null : pathFaults.poll();
+            if (fault == Fault.UNAVAILABLE) {
+                exchange.sendResponseHeaders(503, -1);
+                exchange.close();
+                return;
+            } else if (fault == Fault.TRUNCATE && data != null) {
+                // Promise the full file, but close the connection halfway
+                exchange.sendResponseHeaders(200, data.length);
+                exchange.getResponseBody().write(data, 0, data.length / 2);
+                exchange.getResponseBody().flush();
+                exchange.close();
+                return;
+            }
+
+            if (data == null) {
+                exchange.sendResponseHeaders(404, -1);
+            } else {
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+                exchange.getResponseHeaders().add("ETag", ETAG);
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.sendResponseHeaders(304, -1);
+                    exchange.close();
+                    return;
+                }
+
+                int from = 0;
+                int to = data.length - 1;
+                if (range != null && range.startsWith("bytes=") && (ifRange == null || ifRange.equals(ETAG))) {
+                    int dash = range.indexOf('-');
+                    from = Integer.parseInt(range.substring(6, dash));
+                    if (dash < range.length() - 1)
+                        to = Math.min(to, Integer.parseInt(range.substring(dash + 1)));
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+                    exchange.sendResponseHeaders(206, to - from + 1);
+                    rangeRequests.incrementAndGet();
+                } else {
+                    exchange.sendResponseHeaders(200, data.length);
+                }
+                servedBytes.addAndGet(to - from + 1);
+                try (OutputStream out = exchange.getResponseBody()) {
+                    out.write(data, from, to - from + 1);
+                }
+            }
+            exchange.close();
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.start();
+        base = "http://127.0.0.1:" + server.getAddress().getPort();
+
+        dir = Files.createTempDirectory("download-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.stop(0);
+        Files.walk(dir.toPath())
+             .sorted((a, b) -> b.compareTo(a))
+             .forEach(p -> p.toFile().delete());
+    }
+
+    private Environment environment() {
+        Environment env = new Environment();
+        env.setWorkingDir(new File(dir, "env"));
+        env.setCacheDir(new File(dir, "cache"));
+        env.setWriteReports(false);
+        env.setProgressMode(ProgressRenderer.Mode.PLAIN);
+        return env;
+    }
+
+    @Test
+    public void downloadsThroughTransport() throws Exception {
+        byte[] data = "Hello world".getBytes(StandardCharsets.UTF_8);
+        files.put("/hello.txt", data);
+
+        Environment env = environment();
+        env.getHttpTransport().setUserAgent("download-test");
+        env.run(new SimpleDownload("download", base + "/hello.txt", "{workingDir}/hello.txt"));
+
+        assertArrayEquals(data, Files.readAllBytes(new File(dir, "env/hello.txt").toPath()));
+        assertEquals("download-test", lastHeaders.get("user-agent"));
+    }
+
+    @Test
+    public void reusesConnections() throws Exception {
+        files.put("/a", new byte[100000]);
+        files.put("/b", new byte[10]);
+
+        HttpTransport transport = new HttpTransport();
+        for (int i = 0; i < 10; i++) {
+            try (HttpTransport.Response response = transport.get(base + (i % 2 == 0 ? "/a" : "/b"))) {
+                InputStream in = response.getBody();
+                while (in.read() != -1) ;
+            }
+        }
+        assertEquals(1, clientPorts.size());
+    }
+
+    @Test
+    public void reportsErrorStatus() throws Exception {
+        HttpTransport transport = new HttpTransport();
+        try {
+            transport.get(base + "/missing").close();
+            fail();
+        } catch (HttpTransport.HttpException exc) {
+            assertEquals(404, exc.getStatus());
+        }
+
+        // The error response was drained, so the connection stays usable
+        files.put("/b", new byte[10]);
+        transport.get(base + "/b").close();
+        assertEquals(1, clientPorts.size());
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        return data;
+    }
+
+    private Downloader interruptedDownload(File out, byte[] data, int done, String etag) throws IOException {
+        Downloader downloader = new Downloader(new HttpTransport(), base + "/file", out);
+        Files.write(downloader.getPartFile().toPath(), Arrays.copyOf(data, done));
+        String state = "{\"url\":\"" + base + "/file\",\"etag\":\"" + etag.replace("\"", "\\\"") + "\"}";
+        Files.write(downloader.getPartStateFile().toPath(), state.getBytes(StandardCharsets.UTF_8));
+        return downloader;
+    }
+
+    @Test
+    public void resumesPartialDownload() throws Exception {
+        byte[] data = randomData(100000);
+        files.put("/file", data);
+
+        File out = new File(dir, "file");
+        Downloader downloader = interruptedDownload(out, data, 40000, ETAG);
+        assertEquals(60000, downloader.download());
+
+        assertEquals(60000, servedBytes.get());
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+        assertFalse(downloader.getPartFile().exists());
+        assertFalse(downloader.getPartStateFile().exists());
+    }
+
+    @Test
+    public void restartsWhenFileChanged() throws Exception {
+        byte[] data = randomData(100000);
+        files.put("/file", data);
+
+        File out = new File(dir, "file");
+        Downloader downloader = interruptedDownload(out, new byte[100000], 40000, "\"v0\"");
+        assertEquals(100000, downloader.download());
+
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void verifiesChecksum() throws Exception {
+        byte[] data = randomData(100000);
+        files.put("/file", data);
+        String sha1 = Hashing.hex(Hashing.sha1().digest(data));
+
+        File out = new File(dir, "file");
+        Downloader downloader = interruptedDownload(out, data, 40000, ETAG).sha1(sha1).size(data.length);
+        downloader.download();
+        assertTrue(Downloader.isVerified(out, sha1, data.length));
+
+        File corrupt = new File(dir, "corrupt");
+        try {
+            new Downloader(new HttpTransport(), base + "/file", corrupt).sha1(Hashing.sha1("other")).download();
+            fail();
+        } catch (IOException exc) {
+            assertFalse(corrupt.exists());
+            assertFalse(new File(dir, "corrupt.part").exists());
+        }
+    }
+
+    @Test
+    public void downloadsInSegments() throws Exception {
+        byte[] data = randomData(1000003);
+        files.put("/file", data);
+        String sha1 = Hashing.hex(Hashing.sha1().digest(data));
+
+        File out = new File(dir, "file");
+        long transferred = new Downloader(new HttpTransport(), base + "/file", out)
+                               .sha1(sha1)
+                               .size(data.length)
+                               .segments(4, 1000)
+                               .download();
+
+        assertEquals(data.length, transferred);
+        assertEquals(4, rangeRequests.get());
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void retriesFailedSegment() throws Exception {
+        byte[] data = randomData(1000003);
+        files.put("/file", data);
+        // The first request opens the download, one of the other segments fails once
+        inject("/file", Fault.NONE, Fault.UNAVAILABLE);
+
+        File out = new File(dir, "file");
+        AtomicInteger retries = new AtomicInteger();
+        new Downloader(new HttpTransport(), base + "/file", out)
+            .sha1(Hashing.hex(Hashing.sha1().digest(data)))
+            .size(data.length)
+            .segments(4, 1000)
+            .policy(new DownloadPolicy().retries(3).backoff(1, 10, 2))
+            .onRetry((url, cause) -> retries.incrementAndGet())
+            .download();
+
+        assertEquals(1, retries.get());
+        assertEquals(4, rangeRequests.get());
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void downloadsSmallFileAsOneStream() throws Exception {
+        files.put("/file", new byte[] {42});
+        files.put("/empty", new byte[0]);
+
+        File out = new File(dir, "file");
+        new Downloader(new HttpTransport(), base + "/file", out).size(1).segments(4, 0).download();
+        File empty = new File(dir, "empty");
+        new Downloader(new HttpTransport(), base + "/empty", empty).size(0).segments(4, 0).download();
+
+        assertEquals(0, rangeRequests.get());
+        assertArrayEquals(new byte[] {42}, Files.readAllBytes(out.toPath()));
+        assertEquals(0, empty.length());
+    }
+
+    @Test
+    public void skipsUnmodifiedDownload() throws Exception {
+        byte[] data = "{}".getBytes(StandardCharsets.UTF_8);
+        files.put("/manifest.json", data);
+
+        Environment env = environment();
+        SimpleDownload download = new SimpleDownload("download", base + "/manifest.json", "{workingDir}/manifest.json");
+        env.run(download);
+        long served = servedBytes.get();
+
+        env.run(download);
+        assertEquals(ETAG, lastHeaders.get("if-none-match"));
+        assertEquals(served, servedBytes.get());
+        assertArrayEquals(data, Files.readAllBytes(new File(dir, "env/manifest.json").toPath()));
+    }
+
+    private void inject(String path, Fault... faults) {
+        this.faults.put(path, new ConcurrentLinkedQueue<>(Arrays.asList(faults)));
+    }
+
+    @Test
+    public void retriesTransientFailures() throws Exception {
+        byte[] data = randomData(100000);
+        files.put("/file", data);
+        inject("/file", Fault.UNAVAILABLE, Fault.TRUNCATE, Fault.UNAVAILABLE);
+
+        File out = new File(dir, "file");
+        AtomicInteger retries = new AtomicInteger();
+        new Downloader(new HttpTransport(), base + "/file", out)
+            .sha1(Hashing.hex(Hashing.sha1().digest(data)))
+            .policy(new DownloadPolicy().retries(3).backoff(1, 10, 2))
+            .onRetry((url, cause) -> retries.incrementAndGet())
+            .download();
+
+        assertEquals(3, retries.get());
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+    }
+
+    @Test
+    public void givesUpAfterRetries() throws Exception {
+        files.put("/file", randomData(1000));
+        inject("/file", Fault.UNAVAILABLE, Fault.UNAVAILABLE, Fault.UNAVAILABLE);
+
+        try {
+            new Downloader(new HttpTransport(), base + "/file", new File(dir, "file"))
+                .policy(new DownloadPolicy().retries(1).backoff(1, 1, 1))
+                .download();
+            fail();
+        } catch (HttpTransport.HttpException exc) {
+            assertEquals(503, exc.getStatus());
+        }
+    }
+
+    @Test
+    public void fallsBackToMirrors() throws Exception {
+        byte[] data = randomData(1000);
+        files.put("/mirror/objects/file", data);
+        inject("/down/objects/file", Fault.UNAVAILABLE, Fault.UNAVAILABLE, Fault.UNAVAILABLE);
+
+        DownloadPolicy policy = new DownloadPolicy()
+                                    .retries(2)
+                                    .backoff(1, 1, 1)
+                                    .mirror(base + "/origin/", base + "/down/", base + "/missing/", base + "/mirror/");
+
+        File out = new File(dir, "file");
+        new Downloader(new HttpTransport(), base + "/origin/objects/file", out).policy(policy).download();
+        assertArrayEquals(data, Files.readAllBytes(out.toPath()));
+    }
+
+    private AssetsIndex serveAssets(int count) {
+        JsonObject objects = new JsonObject();
+        for (int i = 0; i < count; i++) {
+            serveAsset(objects, "asset" + i, 1000 + i);
+        }
+        return AssetsIndex.fromJson(objects);
+    }
+
+    private void serveAsset(JsonObject objects, String name, int size) {
+        byte[] data = randomData(size);
+        String hash = Hashing.hex(Hashing.sha1().digest(data));
+        files.put("/objects/" + hash.substring(0, 2) + "/" + hash, data);
+
+        JsonObject object = new JsonObject();
+        object.addProperty("hash", hash);
+        object.addProperty("size", data.length);
+        objects.add(name, object);
+    }
+
+    @Test
+    public void sharesAssetsBetweenWorkspaces() throws Exception {
+        AssetsIndex index = serveAssets(20);
+        DownloadPolicy policy = DownloadPolicy.none().mirror(Constants.RESOURCES_URL, base + "/objects/");
+
+        for (String workspace : new String[] {"env1", "env2"}) {
+            Environment env = environment();
+            env.setWorkingDir(new File(dir, workspace));
+            env.setDownloadPolicy(policy);
+            env.setProperty(Constants.ASSETS_INDEX, index);
+            env.run(new DownloadAssets("downloadAssets"));
+        }
+
+        // Every object was downloaded once, and both workspaces link to the stored file
+        assertEquals(index.getAssets().stream().mapToLong(AssetsIndex.Asset::getSize).sum(), servedBytes.get());
+        for (AssetsIndex.Asset asset : index) {
+            File stored = new File(dir, "cache/objects/" + asset.getHashPath());
+            assertTrue(Files.isSameFile(stored.toPath(), new File(dir, "env1/assets/objects/" + asset.getHashPath()).toPath()));
+            assertTrue(Files.isSameFile(stored.toPath(), new File(dir, "env2/assets/objects/" + asset.getHashPath()).toPath()));
+        }
+    }
+
+    @Test
+    public void removesPartialObjectsOfFailedFetches() throws Exception {
+        AssetsIndex index = serveAssets(1);
+        AssetsIndex.Asset asset = index.iterator().next();
+        inject("/objects/" + asset.getHashPath(), Fault.TRUNCATE, Fault.TRUNCATE);
+
+        for (DownloadAssets task : new DownloadAssets[] {
+            new DownloadAssets("downloadAssets"),
+            new DownloadAssets("downloadAssets").pack(Constants.PACK_DIR)
+        }) {
+            Environment env = environment();
+            env.setDownloadPolicy(DownloadPolicy.none().mirror(Constants.RESOURCES_URL, base + "/objects/"));
+            env.setProperty(Constants.ASSETS_INDEX, index);
+            try {
+                env.run(task);
+                fail();
+            } catch (TaskFailException exc) {
+                // Expected
+            }
+        }
+
+        // Temporary files have random names, so they would never be resumed
+        for (String store : new String[] {"cache/objects", "cache/pack/tmp"}) {
+            try (Stream<Path> files = Files.walk(new File(dir, store).toPath())) {
+                assertEquals(0, files.filter(p -> p.getFileName().toString().contains(".part")).count());
+            }
+        }
+    }
+
+    @Test
+    public void syncsOnlyNewAssets() throws Exception {
+        AssetsIndex first = serveAssets(20);
+
+        JsonObject objects = first.toJson();
+        objects.remove("asset0");
+        objects.add("asset2", objects.get("asset3"));
+        serveAsset(objects, "asset1", 5000);
+        serveAsset(objects, "asset20", 5001);
+        AssetsIndex second = AssetsIndex.fromJson(objects);
+
+        AssetsIndex.Diff diff = second.diff(first);
+        assertEquals(1, diff.getAdded().size());
+        assertEquals(1, diff.getRemoved().size());
+        assertEquals(2, diff.getChanged().size());
+        assertEquals(2, diff.getNewObjects().size());
+        assertEquals(3, diff.getOrphanedObjects().size());
+
+        DownloadPolicy policy = DownloadPolicy.none().mirror(Constants.RESOURCES_URL, base + "/objects/");
+        long served = 0;
+        for (AssetsIndex index : new AssetsIndex[] {first, second}) {
+            servedBytes.set(0);
+            Environment env = environment();
+            env.setDownloadPolicy(policy);
+            env.setProperty(Constants.ASSETS_INDEX, index);
+            env.run(new DownloadAssets("downloadAssets").objectStore(null).incremental(Constants.SYNCED_INDEX).prune(true));
+            served = servedBytes.get();
+        }
+
+        // Only the two new objects were downloaded, and the three orphaned ones were deleted
+        assertEquals(5000 + 5001, served);
+        for (AssetsIndex.Asset asset : second) {
+            assertTrue(new File(dir, "env/assets/objects/" + asset.getHashPath()).isFile());
+        }
+        for (AssetsIndex.Asset asset : diff.getOrphanedObjects()) {
+            assertFalse(new File(dir, "env/assets/objects/" + asset.getHashPath()).exists());
+        }
+    }
+
+    @Test
+    public void downloadsLibraries() throws Exception {
+        JsonObject classifiers = new JsonObject();
+        classifiers.add("natives-linux", serveLibrary("org/example/lib/1.0/lib-1.0-natives-linux.jar", 3000));
+        classifiers.add("natives-windows", serveLibrary("org/example/lib/1.0/lib-1.0-natives-windows.jar", 3001));
+        classifiers.add("sources", serveLibrary("org/example/lib/1.0/lib-1.0-sources.jar", 3002));
+        JsonObject natives = new JsonObject();
+        natives.addProperty("linux", "natives-linux");
+        natives.addProperty("windows", "natives-windows");
+        JsonObject lib = library("org.example:lib:1.0", serveLibrary("org/example/lib/1.0/lib-1.0.jar", 3003), classifiers);
+        lib.add("natives", natives);
+
+        JsonObject osxOnly = library("org.example:osx:1.0", serveLibrary("org/example/osx/1.0/osx-1.0.jar", 3004), new JsonObject());
+        JsonObject rule = new JsonObject();
+        rule.addProperty("action", "allow");
+        JsonObject os = new JsonObject();
+        os.addProperty("name", "osx");
+        rule.add("os", os);
+        JsonArray rules = new JsonArray();
+        rules.add(rule);
+        osxOnly.add("rules", rules);
+
+        JsonArray libraries = new JsonArray();
+        libraries.add(lib);
+        libraries.add(osxOnly);
+        JsonObject download = serveLibrary("client.jar", 10);
+        JsonObject downloads = new JsonObject();
+        downloads.add("client", download);
+        downloads.add("client_mappings", download);
+        downloads.add("server", download);
+        downloads.add("server_mappings", download);
+        JsonObject json = new JsonObject();
+        json.addProperty("assets", "1");
+        json.add("assetIndex", download);
+        json.add("downloads", downloads);
+        json.add("libraries", libraries);
+
+        for (int run = 0; run < 2; run++) {
+            servedBytes.set(0);
+            Environment env = environment();
+            env.setProperty(Constants.OS, OS.LINUX);
+            env.setProperty(Constants.VERSION_INFO, VersionInfo.fromJson(json));
+            env.run(new DownloadLibraries("downloadLibraries"));
+        }
+
+        // Nothing is downloaded again on the second run
+        assertEquals(0, servedBytes.get());
+        for (String path : new String[] {"lib-1.0.jar", "lib-1.0-natives-linux.jar", "lib-1.0-sources.jar"}) {
+            File file = new File(dir, "env/libraries/org/example/lib/1.0/" + path);
+            assertArrayEquals(files.get("/libraries/org/example/lib/1.0/" + path), Files.readAllBytes(file.toPath()));
+        }
+        assertFalse(new File(dir, "env/libraries/org/example/lib/1.0/lib-1.0-natives-windows.jar").exists());
+        assertFalse(new File(dir, "env/libraries/org/example/osx").exists());
+    }
+
+    private JsonObject serveLibrary(String path, int size) {
+        byte[] data = randomData(size);
+        files.put("/libraries/" + path, data);
+
+        JsonObject download = new JsonObject();
+        download.addProperty("path", path);
+        download.addProperty("url", base + "/libraries/" + path);
+        download.addProperty("sha1", Hashing.hex(Hashing.sha1().digest(data)));
+        download.addProperty("size", size);
+        return download;
+    }
+
+    private static JsonObject library(String name, JsonObject artifact, JsonObject classifiers) {
+        JsonObject downloads = new JsonObject();
+        downloads.add("artifact", artifact);
+        downloads.add("classifiers", classifiers);
+        JsonObject lib = new JsonObject();
+        lib.addProperty("name", name);
+        lib.add("downloads", downloads);
+        return lib;
+    }
+
+    @Test
+    public void downloadsIntoPack() throws Exception {
+        AssetsIndex index = serveAssets(50);
+
+        Environment env = environment();
+        env.setDownloadPolicy(DownloadPolicy.none().mirror(Constants.RESOURCES_URL, base + "/objects/"));
+        env.setProperty(Constants.ASSETS_INDEX, index);
+
+        env.run(new DownloadAssets("downloadAssets").pack(Constants.PACK_DIR));
+        env.run(new ExportObjects("exportObjects"));
+        env.run(new ImportObjects("importObjects").packDir("{workingDir}/pack2"));
+
+        for (String pack : new String[] {"cache/pack", "env/pack2"}) {
+            try (ObjectPack objects = ObjectPack.open(new File(dir, pack))) {
+                assertEquals(50, objects.count());
+                for (AssetsIndex.Asset asset : index) {
+                    byte[] expected = files.get("/objects/" + asset.getHashPath());
+                    try (InputStream in = objects.read(asset.getHash())) {
+                        byte[] actual = new byte[expected.length + 1];
+                        int len = 0;
+                        int r;
+                        while ((r = in.read(actual, len, actual.length - len)) > 0) len += r;
+                        assertArrayEquals(expected, Arrays.copyOf(actual, len));
+                    }
+                    assertArrayEquals(expected, Files.readAllBytes(new File(dir, "env/assets/objects/" + asset.getHashPath()).toPath()));
+                }
+            }
+        }
+    }
+
+    private enum Fault {
+        NONE,
+        UNAVAILABLE,
+        TRUNCATE
+    }
+}
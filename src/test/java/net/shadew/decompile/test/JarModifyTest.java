@@ -0,0 +1,367 @@
+package net.shadew.decompile.test;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import net.shadew.gradle.decompile.Environment;
+import net.shadew.gradle.decompile.ProgressRenderer;
+import net.shadew.gradle.decompile.TaskFailException;
+import net.shadew.gradle.decompile.TaskRunContext;
+import net.shadew.gradle.decompile.task.Deploy;
+import net.shadew.gradle.decompile.task.JarModify;
+import net.shadew.gradle.decompile.task.RenameVars;
+import net.shadew.gradle.decompile.util.ArtifactStore;
+import net.shadew.gradle.decompile.util.BuildCache;
+import net.shadew.gradle.decompile.util.Fingerprint;
+import net.shadew.gradle.decompile.util.Hashing;
+import net.shadew.gradle.decompile.util.ZipWriter;
+import net.shadew.util.misc.IO;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that transforming jar entries in parallel gives the same output as transforming them sequentially
+ */
+public class JarModifyTest {
+    private File dir;
+    private File input;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("jar-modify-test").toFile();
+        input = new File(dir, "in.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(input))) {
+            for (int i = 0; i < 500; i++) {
+                out.putNextEntry(new JarEntry("entry" + i + (i % 3 == 0 ? ".bin" : ".txt")));
+                out.write(("contents of entry " + i).getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walk(dir.toPath())
+             .sorted((a, b) -> b.compareTo(a))
+             .forEach(p -> p.toFile().delete());
+    }
+
+    private Environment environment() {
+        Environment env = new Environment();
+        env.setWorkingDir(dir);
+        env.setCacheDir(new File(dir, "cache"));
+        env.setWriteReports(false);
+        env.setBuildCacheEnabled(false);
+        env.setProgressMode(ProgressRenderer.Mode.PLAIN);
+        return env;
+    }
+
+    private static List<String> read(File file) throws IOException {
+        List<String> out = new ArrayList<>();
+        try (JarFile jar = new JarFile(file)) {
+            Enumeration<JarEntry> entries = jar.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                ByteArrayOutputStream data = new ByteArrayOutputStream();
+                try (InputStream in = jar.getInputStream(entry)) {
+                    IO.copy(in, data);
+                }
+                out.add(entry.getName() + "=" + new String(data.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return out;
+    }
+
+    @Test
+    public void keepsOrderInParallel() throws Exception {
+        environment().run(new Uppercase("sequential", input, new File(dir, "sequential.jar")));
+        environment().run(new Uppercase("parallel", input, new File(dir, "parallel.jar")).parallelism(4).window(3));
+
+        List<String> sequential = read(new File(dir, "sequential.jar"));
+        assertEquals(500 - 167, sequential.size());
+        assertEquals("ENTRY1.TXT=CONTENTS OF ENTRY 1", sequential.get(0));
+        assertEquals(sequential, read(new File(dir, "parallel.jar")));
+    }
+
+    @Test
+    public void copiesEntriesAsIs() throws Exception {
+        Uppercase sequential = new Uppercase("sequential", input, new File(dir, "sequential.jar"));
+        Uppercase parallel = new Uppercase("parallel", input, new File(dir, "parallel.jar")).parallelism(4);
+        sequential.copy = true;
+        parallel.copy = true;
+        environment().run(sequential);
+        environment().run(parallel);
+
+        List<String> output = read(new File(dir, "sequential.jar"));
+        assertEquals(500, output.size());
+        assertEquals("entry0.bin=contents of entry 0", output.get(0));
+        assertEquals("ENTRY1.TXT=CONTENTS OF ENTRY 1", output.get(1));
+        assertEquals(output, read(new File(dir, "parallel.jar")));
+
+        // Copied entries keep their compressed data
+        try (JarFile in = new JarFile(input);
+             JarFile out = new JarFile(new File(dir, "parallel.jar"))) {
+            for (int i = 0; i < 500; i += 3) {
+                JarEntry inEntry = in.getJarEntry("entry" + i + ".bin");
+                JarEntry outEntry = out.getJarEntry("entry" + i + ".bin");
+                assertEquals(inEntry.getCompressedSize(), outEntry.getCompressedSize());
+                assertEquals(inEntry.getCrc(), outEntry.getCrc());
+            }
+        }
+    }
+
+    @Test
+    public void storesIntermediatesAndCompressesOnDeploy() throws Exception {
+        File large = new File(dir, "large.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(large))) {
+            for (int i = 0; i < 20; i++) {
+                out.putNextEntry(new JarEntry("entry" + i + ".txt"));
+                for (int j = 0; j < 100; j++) {
+                    out.write(("line " + j + " of entry " + i + "\n").getBytes(StandardCharsets.UTF_8));
+                }
+                out.closeEntry();
+            }
+        }
+
+        File stored = new File(dir, "stored.jar");
+        environment().run(new Uppercase("stored", large, stored).compression(ZipWriter.STORED).parallelism(2));
+        try (JarFile jar = new JarFile(stored)) {
+            jar.stream().forEach(e -> assertEquals(ZipEntry.STORED, e.getMethod()));
+        }
+
+        Environment env = environment();
+        env.setProperty("MCVersion", "1.0");
+        env.run(new Deploy("deploy", stored.getPath(), new File(dir, "repo").getPath(), "com.example:test"));
+
+        File deployed = new File(dir, "repo/com/example/test/1.0/test-1.0.jar");
+        try (JarFile jar = new JarFile(deployed)) {
+            jar.stream().forEach(e -> assertEquals(ZipEntry.DEFLATED, e.getMethod()));
+        }
+        assertTrue(deployed.length() < stored.length());
+        assertEquals(read(stored), read(deployed));
+    }
+
+    @Test
+    public void passesIntermediatesInMemory() throws Exception {
+        Environment env = environment();
+        ArtifactStore store = env.getArtifactStore();
+        File intermediate = new File(dir, "intermediate.jar");
+        File output = new File(dir, "output.jar");
+
+        Uppercase first = new Uppercase("first", input, intermediate).intermediate(true);
+        first.copy = true;
+        Uppercase second = new Uppercase("second", intermediate, output);
+        second.copy = true;
+        second.dependsOn(first);
+        env.run(second);
+
+        assertTrue(second.inputInMemory);
+        assertEquals(500, read(output).size());
+
+        // Written to disk once the second task is done with it, and dropped from memory
+        assertTrue(intermediate.exists());
+        assertFalse(store.contains(intermediate));
+        assertEquals(0, store.getUsed());
+
+        // Both tasks are up to date in a later run, which only finds the written file
+        long firstModified = intermediate.lastModified();
+        long modified = output.lastModified();
+        environment().run(second);
+        assertEquals(firstModified, intermediate.lastModified());
+        assertEquals(modified, output.lastModified());
+    }
+
+    @Test
+    public void spillsIntermediatesOverBudget() throws Exception {
+        Environment env = environment();
+        ArtifactStore store = env.getArtifactStore();
+        File intermediate = new File(dir, "intermediate.jar");
+
+        try (ZipWriter out = store.create(intermediate, ZipWriter.STORED, true, "owner")) {
+            out.write("entry.txt", "contents".getBytes(StandardCharsets.UTF_8), 0, 8);
+        }
+        assertFalse(intermediate.exists());
+        assertTrue(store.getUsed() > 0);
+
+        // Spilling writes the same bytes
+        String hash = store.hash(intermediate);
+        env.setArtifactBudget(0);
+        assertFalse(store.contains(intermediate));
+        assertEquals(hash, Hashing.sha1(intermediate));
+        assertEquals(0, store.getUsed());
+    }
+
+    @Test
+    public void storesIntermediatesInBuildCache() throws Exception {
+        ArtifactStore store = environment().getArtifactStore();
+        File intermediate = new File(dir, "intermediate.jar");
+        try (ZipWriter out = store.create(intermediate, ZipWriter.STORED, true, "owner")) {
+            out.write("entry.txt", "contents".getBytes(StandardCharsets.UTF_8), 0, 8);
+        }
+        String hash = store.hash(intermediate);
+
+        // Stored from memory, the artifact has no file yet
+        BuildCache cache = new BuildCache(new File(dir, "cache/build"));
+        Fingerprint fingerprint = Fingerprint.of(intermediate).artifacts(store).cacheable("test");
+        fingerprint.store(cache);
+        assertTrue(cache.has(fingerprint.cacheKey()));
+        assertTrue(store.contains(intermediate));
+
+        File restored = new File(dir, "restored.jar");
+        assertTrue(cache.restore(fingerprint.cacheKey(), Collections.singletonMap("output", restored)));
+        assertEquals(hash, Hashing.sha1(restored));
+    }
+
+    @Test
+    public void rewritesInPlace() throws Exception {
+        File copy = new File(dir, "copy.jar");
+        Files.copy(input.toPath(), copy.toPath());
+
+        Environment env = environment();
+        Uppercase task = new Uppercase("inPlace", copy, copy);
+        env.run(task);
+
+        List<String> output = read(copy);
+        assertEquals(500 - 167, output.size());
+        assertEquals("ENTRY1.TXT=CONTENTS OF ENTRY 1", output.get(0));
+        assertFalse(env.getArtifactStore().contains(copy));
+    }
+
+    private static byte[] classWithVariables(String name) {
+        ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        for (int access : new int[] {Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, Opcodes.ACC_PUBLIC}) {
+            MethodVisitor mv = cw.visitMethod(access, access == Opcodes.ACC_PUBLIC ? "get" : "run", "()V", null, null);
+            Label start = new Label();
+            Label end = new Label();
+            mv.visitCode();
+            mv.visitLabel(start);
+            mv.visitInsn(Opcodes.RETURN);
+            mv.visitLabel(end);
+            mv.visitLocalVariable("a", "I", null, start, end, 0);
+            mv.visitLocalVariable("b", "I", null, start, end, 1);
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+        cw.visitEnd();
+        return cw.toByteArray();
+    }
+
+    @Test
+    public void numbersVariablesAcrossJarInParallel() throws Exception {
+        File merged = new File(dir, "merged.jar");
+        try (JarOutputStream out = new JarOutputStream(new FileOutputStream(merged))) {
+            for (int i = 0; i < 50; i++) {
+                out.putNextEntry(new JarEntry("C" + i + ".class"));
+                out.write(classWithVariables("C" + i));
+                out.closeEntry();
+            }
+        }
+
+        environment().run(new RenameVars("renameVars").versionDir("{workingDir}/").parallelism(4).window(3));
+
+        // Numbers continue per method name and descriptor through the jar, as when renaming sequentially
+        String run = Integer.toHexString("run()V".hashCode());
+        String get = Integer.toHexString("get()V".hashCode());
+        try (JarFile jar = new JarFile(merged)) {
+            for (int i = 0; i < 50; i++) {
+                ClassNode node = new ClassNode();
+                new ClassReader(jar.getInputStream(jar.getEntry("C" + i + ".class"))).accept(node, 0);
+                for (MethodNode method : node.methods) {
+                    if (method.name.equals("run")) {
+                        assertEquals("lvt_" + run + "_" + 2 * i, method.localVariables.get(0).name);
+                        assertEquals("lvt_" + run + "_" + (2 * i + 1), method.localVariables.get(1).name);
+                    } else {
+                        assertEquals("this", method.localVariables.get(0).name);
+                        assertEquals("lvt_" + get + "_" + i, method.localVariables.get(1).name);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void reportsWorkerFailures() {
+        Uppercase task = new Uppercase("failing", input, new File(dir, "failing.jar")).parallelism(4);
+        task.failOn = "entry250.txt";
+        try {
+            environment().run(task);
+            fail("Expected failure");
+        } catch (TaskFailException exc) {
+            assertTrue(exc.getMessage().contains("Failing on purpose"));
+        }
+    }
+
+    private static class Uppercase extends JarModify<Uppercase> {
+        private final File input;
+        private final File output;
+        volatile String failOn;
+        boolean copy;
+        boolean inputInMemory;
+
+        Uppercase(String name, File input, File output) {
+            super(name);
+            this.input = input;
+            this.output = output;
+        }
+
+        @Override
+        protected String getInputFile(TaskRunContext ctx) {
+            inputInMemory = ctx.env().getArtifactStore().contains(input);
+            return input.getPath();
+        }
+
+        @Override
+        protected String getOutputFile(TaskRunContext ctx) {
+            return output.getPath();
+        }
+
+        @Override
+        protected Action getAction(TaskRunContext ctx, JarEntry entry) {
+            if (entry.getName().endsWith(".txt"))
+                return Action.MODIFY;
+            return copy ? Action.COPY : Action.IGNORE;
+        }
+
+        @Override
+        protected String rename(TaskRunContext ctx, JarEntry entry) {
+            return entry.getName();
+        }
+
+        @Override
+        protected String modify(TaskRunContext ctx, JarEntry entry, InputStream in, OutputStream out) throws Exception {
+            if (entry.getName().equals(failOn))
+                throw new IOException("Failing on purpose");
+
+            // Finish entries out of order
+            Thread.sleep(ThreadLocalRandom.current().nextInt(2));
+
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            IO.copy(in, data);
+            out.write(new String(data.toByteArray(), StandardCharsets.UTF_8).toUpperCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            return entry.getName().toUpperCase(Locale.ROOT);
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package net.shadew.decompile.test;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.shadew.gradle.decompile.Environment;
+import net.shadew.gradle.decompile.ProgressRenderer;
+import net.shadew.gradle.decompile.task.LoadVersionManifest;
+import net.shadew.gradle.decompile.util.AssetsIndex;
+import net.shadew.gradle.decompile.util.Constants;
+import net.shadew.gradle.decompile.util.Hashing;
+import net.shadew.gradle.decompile.util.OS;
+import net.shadew.gradle.decompile.util.SnapshotCache;
+import net.shadew.gradle.decompile.util.VersionInfo;
+import net.shadew.gradle.decompile.util.VersionManifest;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that the streaming parsers and binary snapshots read the same data as the tree parsers
+ */
+public class ManifestTest {
+    private static final String MANIFEST = "{"
+        + "\"latest\": {\"release\": \"1.16.4\", \"snapshot\": \"20w49a\"},"
+        + "\"versions\": ["
+        + "  {\"id\": \"20w49a\", \"type\": \"snapshot\", \"url\": \"https://example.com/20w49a.json\", \"time\": \"2020-12-02T14:33:51+00:00\"},"
+        + "  {\"id\": \"1.16.4\", \"type\": \"release\", \"url\": \"https://example.com/1.16.4.json\", \"complianceLevel\": 1}"
+        + "]}";
+
+    private static final String VERSION_INFO = "{"
+        + "\"arguments\": {\"game\": [\"--username\", {\"rules\": [], \"value\": \"--demo\"}]},"
+        + "\"assetIndex\": {\"id\": \"1.16\", \"sha1\": \"aa\", \"size\": 1, \"totalSize\": 2, \"url\": \"https://example.com/1.16.json\"},"
+        + "\"assets\": \"1.16\","
+        + "\"downloads\": {"
+        + "  \"client\": {\"sha1\": \"bb\", \"size\": 3, \"url\": \"https://example.com/client.jar\"},"
+        + "  \"client_mappings\": {\"sha1\": \"cc\", \"size\": 4, \"url\": \"https://example.com/client.txt\"},"
+        + "  \"server\": {\"sha1\": \"dd\", \"size\": 5, \"url\": \"https://example.com/server.jar\"},"
+        + "  \"server_mappings\": {\"sha1\": \"ee\", \"size\": 6, \"url\": \"https://example.com/server.txt\"}"
+        + "},"
+        + "\"libraries\": ["
+        + "  {\"downloads\": {"
+        + "    \"artifact\": {\"path\": \"a/b/1/b-1.jar\", \"sha1\": \"ff\", \"size\": 7, \"url\": \"https://example.com/b-1.jar\"},"
+        + "    \"classifiers\": {\"natives-linux\": {\"path\": \"a/b/1/b-1-natives-linux.jar\", \"sha1\": \"11\", \"size\": 8, \"url\": \"https://example.com/n.jar\"}}"
+        + "  }, \"name\": \"a:b:1\", \"natives\": {\"linux\": \"natives-linux\"}, \"extract\": {\"exclude\": [\"META-INF/\"]},"
+        + "  \"rules\": [{\"action\": \"allow\"}, {\"action\": \"disallow\", \"os\": {\"name\": \"osx\", \"version\": \"^10\\\\.5\"}}]}"
+        + "],"
+        + "\"mainClass\": \"net.minecraft.client.main.Main\""
+        + "}";
+
+    private static final String ASSETS_INDEX = "{\"objects\": {"
+        + "\"a.ogg\": {\"hash\": \"0123456789abcdef0123456789abcdef01234567\", \"size\": 10},"
+        + "\"b.ogg\": {\"hash\": \"89abcdef0123456789abcdef0123456789abcdef\", \"size\": 20}"
+        + "}, \"map_to_resources\": false}";
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("manifest-test").toFile();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        Files.walk(dir.toPath())
+             .sorted((a, b) -> b.compareTo(a))
+             .forEach(p -> p.toFile().delete());
+    }
+
+    private File write(String name, String json) throws IOException {
+        File file = new File(dir, name);
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static JsonObject parse(String json) {
+        return JsonParser.parseString(json).getAsJsonObject();
+    }
+
+    @Test
+    public void streamsVersionManifest() throws Exception {
+        VersionManifest streamed = VersionManifest.fromFile(write("manifest.json", MANIFEST));
+        VersionManifest tree = VersionManifest.fromJson(parse(MANIFEST));
+
+        assertEquals(tree.getVersions().keySet(), streamed.getVersions().keySet());
+        assertEquals("20w49a", streamed.getLatestSnapshot().getId());
+        assertEquals("1.16.4", streamed.getLatestRelease().getId());
+        for (VersionManifest.Version version : tree.getVersions().values()) {
+            VersionManifest.Version other = streamed.getVersion(version.getId());
+            assertEquals(version.getType(), other.getType());
+            assertEquals(version.getUrl(), other.getUrl());
+        }
+    }
+
+    @Test
+    public void streamsVersionInfo() throws Exception {
+        VersionInfo streamed = VersionInfo.fromFile(write("version.json", VERSION_INFO));
+        VersionInfo tree = VersionInfo.fromJson(parse(VERSION_INFO));
+
+        assertEquals(tree.getAssets(), streamed.getAssets());
+        assertEquals(tree.getAssetsIndex().getUrl(), streamed.getAssetsIndex().getUrl());
+        assertEquals(tree.getClientJar().getSha1(), streamed.getClientJar().getSha1());
+        assertEquals(tree.getServerMappings().getSize(), streamed.getServerMappings().getSize());
+
+        VersionInfo.Library lib = streamed.getLibraries().get(0);
+        VersionInfo.Library treeLib = tree.getLibraries().get(0);
+        assertEquals(treeLib.getName().toString(), lib.getName().toString());
+        assertEquals(treeLib.getArtifactDownload().getPath(), lib.getArtifactDownload().getPath());
+        assertEquals(treeLib.getNativeDownload(OS.LINUX).getSha1(), lib.getNativeDownload(OS.LINUX).getSha1());
+        for (OS os : OS.values()) {
+            assertEquals(tree.getLibraries(os).size(), streamed.getLibraries(os).size());
+        }
+        assertTrue(streamed.getLibraries(OS.OSX).isEmpty());
+    }
+
+    @Test
+    public void streamsAssetsIndex() throws Exception {
+        AssetsIndex streamed = AssetsIndex.fromFile(write("index.json", ASSETS_INDEX));
+        AssetsIndex tree = AssetsIndex.fromJson(parse(ASSETS_INDEX).getAsJsonObject("objects"));
+
+        assertTrue(streamed.diff(tree).isEmpty());
+        assertEquals(2, streamed.getAssets().size());
+        assertEquals(20, streamed.getByHash("89abcdef0123456789abcdef0123456789abcdef").getSize());
+    }
+
+    @Test
+    public void loadsFromSnapshots() throws Exception {
+        SnapshotCache cache = new SnapshotCache(new File(dir, "snapshots"));
+        File json = write("version.json", VERSION_INFO);
+        AtomicInteger parsed = new AtomicInteger();
+        SnapshotCache.Parser<VersionInfo> parser = file -> {
+            parsed.incrementAndGet();
+            return VersionInfo.fromFile(file);
+        };
+
+        VersionInfo first = cache.load("version", json, parser, VersionInfo::writeBinary, VersionInfo::readBinary);
+        VersionInfo second = cache.load("version", json, parser, VersionInfo::writeBinary, VersionInfo::readBinary);
+        assertEquals(1, parsed.get());
+        assertEquals(first.getClientMappings().getUrl(), second.getClientMappings().getUrl());
+        assertEquals(first.getLibraries().get(0).getRules().size(), second.getLibraries().get(0).getRules().size());
+        assertEquals(
+            first.getLibraries().get(0).getNativeDownload(OS.LINUX).getPath(),
+            second.getLibraries().get(0).getNativeDownload(OS.LINUX).getPath()
+        );
+        for (OS os : OS.values()) {
+            assertEquals(first.getLibraries(os).size(), second.getLibraries(os).size());
+        }
+
+        // Touching the file does not invalidate the snapshot, changing it does
+        json.setLastModified(json.lastModified() + 10000);
+        cache.load("version", json, parser, VersionInfo::writeBinary, VersionInfo::readBinary);
+        assertEquals(1, parsed.get());
+
+        write("version.json", VERSION_INFO.replace("\"assets\": \"1.16\"", "\"assets\": \"1.17\""));
+        VersionInfo changed = cache.load("version", json, parser, VersionInfo::writeBinary, VersionInfo::readBinary);
+        assertEquals(2, parsed.get());
+        assertEquals("1.17", changed.getAssets());
+    }
+
+    @Test
+    public void snapshotsManifestAndAssetsIndex() throws Exception {
+        SnapshotCache cache = new SnapshotCache(new File(dir, "snapshots"));
+        File manifestJson = write("manifest.json", MANIFEST);
+        File indexJson = write("index.json", ASSETS_INDEX);
+
+        for (int i = 0; i < 2; i++) {
+            VersionManifest manifest = cache.load("manifest", manifestJson, VersionManifest::fromFile, VersionManifest::writeBinary, VersionManifest::readBinary);
+            assertEquals("20w49a", manifest.getLatestSnapshot().getId());
+            assertEquals(VersionManifest.VersionType.RELEASE, manifest.getVersion("1.16.4").getType());
+
+            AssetsIndex index = cache.load("assets", indexJson, AssetsIndex::fromFile, AssetsIndex::writeBinary, AssetsIndex::readBinary);
+            assertTrue(index.diff(AssetsIndex.fromFile(indexJson)).isEmpty());
+        }
+        assertTrue(cache.getSnapshotFile("manifest", manifestJson).isFile());
+        assertTrue(cache.getSnapshotFile("assets", indexJson).isFile());
+    }
+
+    @Test
+    public void loadsManifestFromSnapshotInLaterRun() throws Exception {
+        File json = write("manifest.json", MANIFEST);
+        long modified = json.lastModified();
+
+        for (int run = 0; run < 2; run++) {
+            // A new environment for every run, like a new JVM, sharing only the cache directory
+            Environment env = new Environment();
+            env.setWorkingDir(dir);
+            env.setCacheDir(new File(dir, "cache"));
+            env.setWriteReports(false);
+            env.setProgressMode(ProgressRenderer.Mode.PLAIN);
+            env.run(new LoadVersionManifest("loadVersionManifest", "{workingDir}/manifest.json"));
+
+            VersionManifest manifest = env.getProperty(Constants.VERSION_MANIFEST);
+            assertEquals("20w49a", manifest.getLatestSnapshot().getId());
+
+            // Change the file without changing its size and time: only a parse would see the change
+            write("manifest.json", MANIFEST.replace("20w49a", "20w49b"));
+            json.setLastModified(modified);
+        }
+    }
+
+    @Test
+    public void looksUpCompactIndex() {
+        JsonObject objects = new JsonObject();
+        for (int i = 0; i < 5000; i++) {
+            JsonObject object = new JsonObject();
+            object.addProperty("hash", Hashing.sha1("object" + i % 4000));
+            object.addProperty("size", i % 4000);
+            objects.add("minecraft/sounds/" + i + ".ogg", object);
+        }
+        AssetsIndex index = AssetsIndex.fromJson(objects);
+
+        assertEquals(5000, index.size());
+        for (int i = 0; i < 5000; i++) {
+            String name = "minecraft/sounds/" + i + ".ogg";
+            String hash = Hashing.sha1("object" + i % 4000);
+            assertEquals(i, index.indexOf(name));
+            assertEquals(hash, index.getAsset(name).getHash());
+            assertEquals(hash.substring(0, 2) + "/" + hash, index.getAsset(name).getHashPath());
+            assertEquals(i % 4000, index.getSize(i));
+
+            // Objects used by more than one asset resolve to the last asset, like a map would
+            assertEquals(i < 1000 ? i + 4000 : i, index.indexOfHash(hash));
+        }
+        assertNull(index.getAsset("minecraft/sounds/missing.ogg"));
+        assertNull(index.getByHash(Hashing.sha1("missing")));
+        assertNull(index.getByHash("not a hash"));
+    }
+}
@@ -0,0 +1,96 @@
+package net.shadew.decompile.test;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.Executors;
+
+import net.shadew.gradle.decompile.util.Downloader;
+import net.shadew.gradle.decompile.util.Hashing;
+import net.shadew.gradle.decompile.util.HttpTransport;
+
+/**
+ * Compares single-connection and segmented downloads against a local server that throttles each connection, like a CDN
+ * that limits the bandwidth per connection does.
+ */
+public class SegmentedDownloadBenchmark {
+    private static final int SIZE = 8 * 1024 * 1024;
+    private static final int BYTES_PER_SECOND = 2 * 1024 * 1024;
+
+    public static void main(String[] args) throws Exception {
+        byte[] data = new byte[SIZE];
+        new Random(0).nextBytes(data);
+        String sha1 = Hashing.hex(Hashing.sha1().digest(data));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(Executors.newCachedThreadPool());
+        server.createContext("/", exchange -> {
+            try (InputStream in = exchange.getRequestBody()) {
+                while (in.read() != -1) ;
+            }
+
+            int from = 0;
+            int to = data.length - 1;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            if (range != null) {
+                int dash = range.indexOf('-');
+                from = Integer.parseInt(range.substring(6, dash));
+                if (dash < range.length() - 1)
+                    to = Integer.parseInt(range.substring(dash + 1));
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + data.length);
+                exchange.sendResponseHeaders(206, to - from + 1);
+            } else {
+                exchange.sendResponseHeaders(200, data.length);
+            }
+
+            try (OutputStream out = exchange.getResponseBody()) {
+                writeThrottled(out, data, from, to - from + 1);
+            }
+            exchange.close();
+        });
+        server.start();
+
+        File dir = Files.createTempDirectory("segmented-benchmark").toFile();
+        String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/file";
+        try {
+            for (int segments : new int[] {1, 2, 4, 8}) {
+                File out = new File(dir, "file-" + segments);
+                long start = System.nanoTime();
+                new Downloader(new HttpTransport(), url, out)
+                    .sha1(sha1)
+                    .size(data.length)
+                    .segments(segments, 0)
+                    .download();
+                double secs = (System.nanoTime() - start) / 1000000000d;
+                System.out.printf("%d segment(s): %.2f s, %.0f kB/s%n", segments, secs, SIZE / secs / 1024);
+                out.delete();
+            }
+        } finally {
+            server.stop(0);
+            dir.delete();
+        }
+    }
+
+    private static void writeThrottled(OutputStream out, byte[] data, int from, int len) throws IOException {
+        int chunk = BYTES_PER_SECOND / 20;
+        int off = from;
+        int end = from + len;
+        while (off < end) {
+            int n = Math.min(chunk, end - off);
+            out.write(data, off, n);
+            off += n;
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException exc) {
+                throw new IOException(exc);
+            }
+        }
+    }
+}
@@ -12,6 +12,7 @@ import net.shadew.gradle.decompile.TaskFailException;
 import net.shadew.gradle.decompile.task.*;
 import net.shadew.gradle.decompile.util.Constants;
 import net.shadew.gradle.decompile.util.OS;
+import net.shadew.gradle.decompile.util.ZipWriter;
 
 public class Test1 {
     public static void main(String[] args) throws TaskFailException {
@@ -44,11 +45,15 @@ public class Test1 {
         Task downloadAssets = new DownloadAssets("downloadAssets");
 
         Task collectLibraries = new CollectLibs("collectLibraries");
+        Task downloadLibraries = new DownloadLibraries("downloadLibraries");
 
         Task joinMappings = new JoinMappings("joinMappings");
 
-        Task remapClient = new RemapMinecraft("remapClient", RemapMinecraft.Type.CLIENT);
-        Task remapServer = new RemapMinecraft("remapServer", RemapMinecraft.Type.SERVER);
+        // Intermediate jars are read back right away from memory, only the deployed jars are compressed
+        Task remapClient = new RemapMinecraft("remapClient", RemapMinecraft.Type.CLIENT).compression(ZipWriter.STORED)
+                                                                                        .intermediate(true);
+        Task remapServer = new RemapMinecraft("remapServer", RemapMinecraft.Type.SERVER).compression(ZipWriter.STORED)
+                                                                                        .intermediate(true);
 
         Task mergeJars = new MergeJars(
             "mergeJars",
@@ -56,9 +61,9 @@ public class Test1 {
             "{workingDir}/versions/[[MCVersion]]/server_mapped.jar",
             new AnnotationSupplier(),
             "{workingDir}/versions/[[MCVersion]]/merged.jar"
-        );
+        ).compression(ZipWriter.STORED).intermediate(true);
 
-        Task renameVars = new RenameVars("renameVars");
+        Task renameVars = new RenameVars("renameVars").compression(ZipWriter.STORED);
 
         Task decompile = new DecompileMinecraft("decompile");
 
@@ -108,16 +113,21 @@ public class Test1 {
         loadAssetsIndex.dependsOn(downloadAssetsIndex);
         downloadAssets.dependsOn(loadAssetsIndex);
         collectLibraries.dependsOn(loadVersionInfo);
+        downloadLibraries.dependsOn(loadVersionInfo);
         remapClient.dependsOn(joinMappings);
         remapServer.dependsOn(joinMappings);
         joinMappings.dependsOn(downloadObjects);
         mergeJars.dependsOn(remapClient);
         mergeJars.dependsOn(remapServer);
         mergeJars.doLast(renameVars);
+        // Tasks run in parallel, so every task must depend on the tasks producing the files it reads
+        extractAssets.dependsOn(remapClient);
+        extractAssets.dependsOn(remapServer);
         decompile.dependsOn(mergeJars);
         initializeMinecraft.dependsOn(downloadAssets);
         initializeMinecraft.dependsOn(loadAssetsIndex);
         initializeMinecraft.dependsOn(collectLibraries);
+        initializeMinecraft.dependsOn(downloadLibraries);
         initializeMinecraft.dependsOn(decompile);
         initializeMinecraft.dependsOn(mergeJars);
         initializeMinecraft.dependsOn(extractAssets);
@@ -131,6 +141,7 @@ public class Test1 {
         Environment environment = new Environment();
         environment.setProperty("MCVersion", "20w49a");
         environment.setProperty("OS", OS.get());
+        environment.setWorkers(4);
         environment.run(setup);
     }
 